@@ -3,4 +3,6 @@ if ! [ -d classes ];
 then
    mkdir classes
 fi
-javac -cp pdfbox -d classes ir/*.java
+# the libraries other than PDFBox, like HdrHistogram, are fetched into lib by Maven
+mvn -B -q dependency:copy-dependencies -DincludeScope=runtime -DexcludeGroupIds=org.apache.pdfbox,commons-logging -DoutputDirectory=lib || exit 1
+javac -cp "pdfbox:lib/*" -d classes ir/*.java
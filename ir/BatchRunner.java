@@ -0,0 +1,174 @@
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ *  Replays a file of queries against the engine, for offline evaluation.
+ *
+ *  Every line of the query file has the form <code>type;ranking;query</code>,
+ *  with the type and ranking named like in the query server (for example
+ *  <code>ranked;tfidf;davis campus</code>). The queries run in parallel on
+ *  the engine's searcher, each in its own search session; the postings of
+ *  terms shared by several queries are fetched once if the engine has a
+ *  postings cache (see {@link CachedIndex}). The top results of every
+ *  query are streamed to the output file as lines
+ *  <code>number;docID:score,docID:score,...</code> in completion order,
+ *  and the throughput and latency percentiles are reported at the end.
+ */
+public class BatchRunner {
+
+	Engine engine;
+
+	/** Number of queries run at a time */
+	int numThreads;
+
+	/** Number of results written for every query */
+	int maxResults;
+
+	public BatchRunner(Engine engine, int numThreads, int maxResults) {
+		this.engine = engine;
+		this.numThreads = numThreads;
+		this.maxResults = maxResults;
+	}
+
+	/** One line of the query file */
+	static class BatchQuery {
+		int number;
+		QueryType queryType;
+		RankingType rankingType;
+		String text;
+	}
+
+	/** Reads the query file, skipping empty lines and lines starting with # */
+	static ArrayList<BatchQuery> readQueries(String filename) throws IOException {
+		ArrayList<BatchQuery> queries = new ArrayList<>();
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8))) {
+			String line;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				if (line.trim().isEmpty() || line.startsWith("#"))
+					continue;
+				String[] fields = line.split(";", 3);
+				if (fields.length < 3) {
+					System.err.println("Skipping malformed query on line " + lineNumber + ": " + line);
+					continue;
+				}
+				BatchQuery query = new BatchQuery();
+				query.number = queries.size();
+				try {
+					query.queryType = SearchServer.queryType(fields[0].trim());
+					query.rankingType = SearchServer.rankingType(fields[1].trim());
+				}
+				catch (IllegalArgumentException e) {
+					System.err.println("Skipping query on line " + lineNumber + ": " + e.getMessage());
+					continue;
+				}
+				query.text = fields[2].toLowerCase().trim();
+				queries.add(query);
+			}
+		}
+		return queries;
+	}
+
+	/**
+	 *  Runs all the queries of <code>queryFile</code> and writes their results
+	 *  to <code>outputFile</code>.
+	 *
+	 *  @return the latency of every query, in nanoseconds
+	 */
+	public long[] run(String queryFile, String outputFile) throws Exception {
+		ArrayList<BatchQuery> queries = readQueries(queryFile);
+		long[] latencies = new long[queries.size()];
+
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try (PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), StandardCharsets.UTF_8)))) {
+			long start = System.nanoTime();
+			ArrayList<Future<?>> results = new ArrayList<>();
+			for (BatchQuery query : queries) {
+				results.add(pool.submit(() -> {
+					long queryStart = System.nanoTime();
+					PostingsList answer = search(query);
+					latencies[query.number] = System.nanoTime() - queryStart;
+
+					String line = resultLine(query.number, answer);
+					synchronized (out) {
+						out.println(line);
+					}
+				}));
+			}
+			for (Future<?> result : results)
+				result.get();
+			long elapsed = System.nanoTime() - start;
+
+			report(latencies, elapsed);
+			if (engine.searchindex instanceof CachedIndex)
+				System.err.println(engine.searchindex);
+			if (engine.searcher.resultcache != null)
+				System.err.println(engine.searcher.resultcache);
+		}
+		finally {
+			pool.shutdown();
+		}
+		return latencies;
+	}
+
+	/** Searches under the read lock of the index */
+	PostingsList search(BatchQuery query) {
+		Query q = new Query(query.text);
+		if (q.queryterm.isEmpty())
+			return null;
+		engine.indexLock.readLock().lock();
+		engine.searcher.newSession();
+		try {
+			return engine.searcher.search(q, query.queryType, query.rankingType, maxResults);
+		}
+		finally {
+			engine.searcher.endSession();
+			engine.indexLock.readLock().unlock();
+		}
+	}
+
+	String resultLine(int number, PostingsList answer) {
+		StringBuilder line = new StringBuilder();
+		line.append(number).append(';');
+		for (int i = 0; answer != null && i < answer.size() && i < maxResults; i++) {
+			if (i > 0)
+				line.append(',');
+			line.append(answer.get(i).docID).append(':').append(answer.get(i).score);
+		}
+		return line.toString();
+	}
+
+	/** Prints the throughput and the latency percentiles */
+	static void report(long[] latencies, long elapsed) {
+		long[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+		double seconds = elapsed / 1e9;
+		System.err.println(String.format(Locale.ROOT, "%d queries in %.3f s, %.1f queries/s",
+				sorted.length, seconds, sorted.length / seconds));
+		if (sorted.length == 0)
+			return;
+
+		long total = 0;
+		for (long latency : sorted)
+			total += latency;
+		System.err.println(String.format(Locale.ROOT,
+				"latency ms: mean %.3f, p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f",
+				total / 1e6 / sorted.length, percentile(sorted, 50) / 1e6, percentile(sorted, 90) / 1e6,
+				percentile(sorted, 99) / 1e6, percentile(sorted, 99.9) / 1e6, sorted[sorted.length - 1] / 1e6));
+	}
+
+	/** Nearest-rank percentile of sorted values */
+	static long percentile(long[] sorted, double p) {
+		int rank = (int) Math.ceil(p / 100 * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+	}
+}
@@ -0,0 +1,257 @@
+package ir;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  Postings cache in front of another index, bounded by the estimated size
+ *  of the cached postings in bytes.
+ *
+ *  The cache is split in shards by term hash, each one locked on its own.
+ *  Every shard is a segmented LRU: a term enters the probation segment, and
+ *  moves to the protected segment when it is hit again. The protected
+ *  segment holds at most 80% of the shard, its least recently used terms go
+ *  back to probation, and the cache evicts from probation first. Terms
+ *  fetched once, like most spelling candidates, thus cannot push the popular
+ *  terms out.
+ *
+ *  The cached postings are shared by all searches and must not be modified.
+ */
+public class CachedIndex implements Index {
+
+	/** The index holding the postings */
+	Index index;
+
+	/** Number of shards, a power of two */
+	static final int NUM_SHARDS = 16;
+
+	/** Share of every shard used by the protected segment */
+	static final double PROTECTED_RATIO = 0.8;
+
+	Shard[] shards = new Shard[NUM_SHARDS];
+
+	LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+
+	/** Generation of the index the cached postings were read at */
+	volatile long generation = Index.generation.get();
+
+	public CachedIndex(Index index, long maxBytes) {
+		this.index = index;
+		for (int i = 0; i < NUM_SHARDS; i++)
+			shards[i] = new Shard(maxBytes / NUM_SHARDS);
+	}
+
+	/** Estimated size of a postings list in memory, in bytes */
+	static long sizeOf(String term, PostingsList list) {
+		long size = 64 + 2L * term.length() + 16L * list.size();
+		for (PostingsEntry e : list.list)
+			size += 48 + 20L * e.offset.size();
+		return size;
+	}
+
+	/** A cached postings list with its estimated size */
+	static class CacheEntry {
+		final PostingsList postings;
+		final long size;
+
+		CacheEntry(PostingsList postings, long size) {
+			this.postings = postings;
+			this.size = size;
+		}
+	}
+
+	/** One segmented LRU, all its methods are called with its lock held */
+	class Shard {
+		final long maxBytes, maxProtectedBytes;
+		long probationBytes = 0, protectedBytes = 0;
+
+		/** Both segments, in access order */
+		final LinkedHashMap<String,CacheEntry> probation = new LinkedHashMap<>(16, 0.75f, true);
+		final LinkedHashMap<String,CacheEntry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+		Shard(long maxBytes) {
+			this.maxBytes = maxBytes;
+			this.maxProtectedBytes = (long) (maxBytes * PROTECTED_RATIO);
+		}
+
+		PostingsList get(String term) {
+			CacheEntry entry = protectedSegment.get(term);
+			if (entry != null)
+				return entry.postings;
+
+			entry = probation.remove(term);
+			if (entry == null)
+				return null;
+			probationBytes -= entry.size;
+			protectedSegment.put(term, entry);
+			protectedBytes += entry.size;
+
+			// the least recently used protected terms get a second chance in probation
+			Iterator<Map.Entry<String,CacheEntry>> it = protectedSegment.entrySet().iterator();
+			while (protectedBytes > maxProtectedBytes && it.hasNext()) {
+				Map.Entry<String,CacheEntry> demoted = it.next();
+				if (demoted.getValue() == entry)
+					break;
+				it.remove();
+				protectedBytes -= demoted.getValue().size;
+				probation.put(demoted.getKey(), demoted.getValue());
+				probationBytes += demoted.getValue().size;
+			}
+			evict();
+			return entry.postings;
+		}
+
+		void put(String term, PostingsList list) {
+			if (probation.containsKey(term) || protectedSegment.containsKey(term))
+				return;
+			long size = sizeOf(term, list);
+			if (size > maxBytes)
+				return;
+			probation.put(term, new CacheEntry(list, size));
+			probationBytes += size;
+			evict();
+		}
+
+		void remove(String term) {
+			CacheEntry entry = probation.remove(term);
+			if (entry != null)
+				probationBytes -= entry.size;
+			entry = protectedSegment.remove(term);
+			if (entry != null)
+				protectedBytes -= entry.size;
+		}
+
+		void clear() {
+			probation.clear();
+			protectedSegment.clear();
+			probationBytes = protectedBytes = 0;
+		}
+
+		/** Evicts from probation first, then from the protected segment */
+		private void evict() {
+			while (probationBytes + protectedBytes > maxBytes) {
+				LinkedHashMap<String,CacheEntry> segment = probation.isEmpty() ? protectedSegment : probation;
+				Iterator<Map.Entry<String,CacheEntry>> it = segment.entrySet().iterator();
+				long size = it.next().getValue().size;
+				it.remove();
+				if (segment == probation)
+					probationBytes -= size;
+				else
+					protectedBytes -= size;
+				evictions.increment();
+			}
+		}
+	}
+
+	private Shard shard(String term) {
+		int h = term.hashCode();
+		return shards[(h ^ (h >>> 16)) & (NUM_SHARDS - 1)];
+	}
+
+	/* ----------------------------------------------- */
+
+	/**
+	 *  Returns the postings of a term from the cache, reading them from the
+	 *  underlying index on a miss. Terms without postings are not cached.
+	 */
+	public PostingsList getPostings(String token) {
+		long current = Index.generation.get();
+		if (current != generation) {
+			clear();
+			generation = current;
+		}
+
+		Shard shard = shard(token);
+		synchronized (shard) {
+			PostingsList list = shard.get(token);
+			if (list != null) {
+				hits.increment();
+				return list;
+			}
+		}
+		misses.increment();
+
+		// read outside the lock, two concurrent misses may both read the term
+		PostingsList list = index.getPostings(token);
+		if (list != null && Index.generation.get() == current) {
+			synchronized (shard) {
+				shard.put(token, list);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 *  Inserts into the underlying index, forgetting the cached postings of the
+	 *  token. The whole cache is dropped anyway when the index generation changes.
+	 */
+	public void insert(String token, int docID, int offset) {
+		index.insert(token, docID, offset);
+		Shard shard = shard(token);
+		synchronized (shard) {
+			shard.remove(token);
+		}
+	}
+
+	public void cleanup() {
+		index.cleanup();
+		clear();
+	}
+
+	/** Forgets all cached postings */
+	public void clear() {
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				shard.clear();
+			}
+		}
+	}
+
+	/* ----------------------------------------------- */
+
+	public long hits() {
+		return hits.sum();
+	}
+
+	public long misses() {
+		return misses.sum();
+	}
+
+	public long evictions() {
+		return evictions.sum();
+	}
+
+	/** Estimated size of the cached postings, in bytes */
+	public long bytes() {
+		long bytes = 0;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				bytes += shard.probationBytes + shard.protectedBytes;
+			}
+		}
+		return bytes;
+	}
+
+	/** Number of cached terms */
+	public int size() {
+		int size = 0;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				size += shard.probation.size() + shard.protectedSegment.size();
+			}
+		}
+		return size;
+	}
+
+	public double hitRate() {
+		long h = hits(), m = misses();
+		return h + m == 0 ? 0 : (double) h / (h + m);
+	}
+
+	public String toString() {
+		return String.format("postings cache: %d terms, %d bytes, %d hits, %d misses (%.1f%% hits), %d evictions",
+				size(), bytes(), hits(), misses(), 100 * hitRate(), evictions());
+	}
+}
@@ -0,0 +1,197 @@
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ *  Champion lists: for every term, the documents with the highest impact on
+ *  a COMBINATION query, sorted by decreasing impact. The impact of a document
+ *  for a term is the score the term adds to the document in a COMBINATION
+ *  query of weight 1, i.e. its weighted tf-idf plus its weighted PageRank.
+ *
+ *  The impacts are stored in the score of the postings entries, rounded up
+ *  so that they are never below the exact score.
+ */
+public class ChampionIndex {
+
+	/** The champion lists file name */
+	public static final String CHAMPIONS_FNAME = "champions";
+
+	/** Marks the beginning of a champion lists file */
+	private static final int MAGIC = 0x4348414D;
+
+	/** Maximum number of documents in a champion list */
+	int maxChampions;
+
+	/** The PageRank the impacts were computed with */
+	double[] rank;
+
+	/** Mapping from terms to their champion lists */
+	HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
+
+	/** Number of postings of every term, to know if its champion list is complete */
+	HashMap<String,Integer> numPostings = new HashMap<String,Integer>();
+
+	/** The champion lists file mapped in memory, if the index was read from disk */
+	ByteBuffer mapped;
+
+	/** Position in the mapped file of the champion list of every term */
+	HashMap<String,Integer> championsPtr = new HashMap<String,Integer>();
+
+	public ChampionIndex(int maxChampions) {
+		this.maxChampions = maxChampions;
+	}
+
+	/** Returns the impact of a posting on a COMBINATION query */
+	static double impact(PostingsEntry e, double idf, double[] rank) {
+		double score = Searcher.COMBINATION_TFIDF_WEIGHT * e.offset.size() * idf / Index.docLengths.get(e.docID);
+		if (e.docID < rank.length)
+			score += Searcher.COMBINATION_PAGERANK_WEIGHT * rank[e.docID];
+		return score;
+	}
+
+	/**
+	 *  Builds the champion lists of all the terms in the vocabulary of
+	 *  <code>kgIndex</code>, with the postings of <code>index</code>.
+	 */
+	public void build(Index index, KGramIndex kgIndex, double[] rank) {
+		this.index.clear();
+		numPostings.clear();
+		championsPtr.clear();
+		mapped = null;
+		this.rank = rank;
+
+		int N = Index.docLengths.size();
+		for (int id = 0; id <= kgIndex.lastTermID; id++) {
+			String term = kgIndex.getTermByID(id);
+			PostingsList list = index.getPostings(term);
+			if (list == null || list.size() == 0)
+				continue;
+
+			double idf = Math.log(N / (double) list.size());
+			ArrayList<PostingsEntry> champions = new ArrayList<PostingsEntry>(list.size());
+			for (PostingsEntry e : list.list) {
+				PostingsEntry champion = new PostingsEntry(e.docID);
+				champion.score = Math.nextUp((float) impact(e, idf, rank));
+				champions.add(champion);
+			}
+			champions.sort(null);
+			if (champions.size() > maxChampions)
+				champions = new ArrayList<PostingsEntry>(champions.subList(0, maxChampions));
+
+			this.index.put(term, new PostingsList(champions));
+			numPostings.put(term, list.size());
+		}
+	}
+
+	/**
+	 *  Returns the champion list of <code>term</code>, or null if the term
+	 *  has no postings.
+	 */
+	public PostingsList getChampions(String term) {
+		PostingsList list = index.get(term);
+		if (list == null && mapped != null && championsPtr.containsKey(term)) {
+			ByteBuffer buf = mapped.duplicate();
+			buf.position(championsPtr.get(term));
+
+			VByte.read(buf);
+			int size = VByte.read(buf);
+			list = new PostingsList(new ArrayList<PostingsEntry>(size));
+			for (int i = 0; i < size; i++) {
+				PostingsEntry e = new PostingsEntry(VByte.read(buf));
+				e.score = buf.getFloat();
+				list.addEntry(e);
+			}
+		}
+		return list;
+	}
+
+	/** Tells if the champion list of <code>term</code> holds all its postings */
+	public boolean isComplete(String term, PostingsList champions) {
+		Integer size = numPostings.get(term);
+		return size != null && size == champions.size();
+	}
+
+	/**
+	 *  Writes the champion lists to the file <code>name</code> of
+	 *  <code>dirname</code>, atomically: a header (magic, maximum list size,
+	 *  number of documents, hash of the PageRank, number of terms), then every
+	 *  term with its number of postings and its champions.
+	 */
+	public void writeIndex(String dirname, String name) throws IOException {
+		IndexManifest.writeAtomically(dirname, name, out -> {
+			out.writeInt(MAGIC);
+			out.writeInt(maxChampions);
+			out.writeInt(Index.docLengths.size());
+			out.writeInt(Arrays.hashCode(rank));
+			out.writeInt(index.size());
+
+			for (HashMap.Entry<String,PostingsList> entry : index.entrySet()) {
+				VByte.writeString(out, entry.getKey());
+				VByte.write(out, numPostings.get(entry.getKey()));
+				VByte.write(out, entry.getValue().size());
+				for (PostingsEntry e : entry.getValue().list) {
+					VByte.write(out, e.docID);
+					out.writeFloat((float) e.score);
+				}
+			}
+		});
+	}
+
+	/**
+	 *  Maps the champion lists written by {@link #writeIndex} in memory.
+	 *
+	 *  @return false if there is no file <code>name</code> in <code>dirname</code>,
+	 *  if it is damaged, or if the lists were built for other documents or
+	 *  another PageRank
+	 */
+	public boolean readIndex(String dirname, String name, double[] rank) {
+		if (name == null)
+			return false;
+		File file = new File(dirname, name);
+		if (!file.exists())
+			return false;
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			ByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+
+			if (buf.getInt() != MAGIC || buf.getInt() != maxChampions
+					|| buf.getInt() != Index.docLengths.size() || buf.getInt() != Arrays.hashCode(rank)) {
+				System.err.println("The champion lists on disk do not match the index");
+				return false;
+			}
+			int numTerms = buf.getInt();
+
+			index.clear();
+			numPostings = new HashMap<String,Integer>(numTerms * 2);
+			championsPtr = new HashMap<String,Integer>(numTerms * 2);
+			for (int i = 0; i < numTerms; i++) {
+				String term = VByte.readString(buf);
+				championsPtr.put(term, buf.position());
+				numPostings.put(term, VByte.read(buf));
+				int size = VByte.read(buf);
+				for (int j = 0; j < size; j++) {
+					VByte.read(buf);
+					buf.position(buf.position() + 4);
+				}
+			}
+			if (buf.position() != buf.limit())
+				throw new IllegalStateException("trailing bytes");
+			this.rank = rank;
+			mapped = buf;
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		catch (RuntimeException e) {
+			System.err.println("Damaged champion lists " + file + ": " + e);
+			return false;
+		}
+		return true;
+	}
+}
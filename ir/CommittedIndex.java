@@ -0,0 +1,24 @@
+package ir;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ *  An index committed to the index directory through a manifest, from which
+ *  the engine derives its k-gram, forward, symmetric delete and champion
+ *  indexes. Their files are listed in the manifest with those of the index.
+ */
+public interface CommittedIndex extends Index {
+
+	/** The manifest of the committed index, or null if the index predates manifests */
+	IndexManifest manifest();
+
+	/**
+	 *  Lists the derived file <code>name</code>, already written to the index
+	 *  directory, in the manifest, in place of the previous file of its role.
+	 */
+	void commitDerivedFile(String name) throws IOException;
+
+	/** The terms of the committed index */
+	List<String> terms() throws IOException;
+}
@@ -0,0 +1,399 @@
+package ir;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ir.ShardProtocol.Connection;
+import ir.ShardProtocol.Frame;
+
+/**
+ *  Searcher of a coordinator holding no index: the queries are sent to the
+ *  {@link ShardServer}s of a distributed index, each holding a part of the
+ *  documents, and their answers are merged.
+ *
+ *  Every shard may be served by several replicas. A request goes to the
+ *  first replica of the shard; if it has not answered after the hedge
+ *  delay, or fails, the same request goes to the next replica, and the
+ *  first answer is used. Shards which have not answered within the timeout
+ *  are left out of the results.
+ *
+ *  All the sockets are handled by one selector thread; the searching
+ *  threads only queue their requests and wait for the answers.
+ */
+public class DistributedSearcher extends Searcher {
+
+	/** Addresses of the replicas of every shard, in the order they are asked */
+	ArrayList<ArrayList<InetSocketAddress>> replicas = new ArrayList<>();
+
+	/** Milliseconds before a request is sent again to the next replica */
+	long hedgeDelay;
+
+	/** Milliseconds after which a shard is left out of the results */
+	long timeout;
+
+	Selector selector;
+
+	/** Connections to the replicas, used by the selector thread only */
+	HashMap<InetSocketAddress, Connection> connections = new HashMap<>();
+
+	/** Frames to send, queued by the searching threads */
+	ConcurrentLinkedQueue<Map.Entry<InetSocketAddress, ByteBuffer>> outgoing = new ConcurrentLinkedQueue<>();
+
+	/** Requests waiting for their answer, by requestID */
+	ConcurrentHashMap<Integer, CompletableFuture<Frame>> pending = new ConcurrentHashMap<>();
+
+	/** Replica of every pending request, to fail them when its connection breaks */
+	ConcurrentHashMap<Integer, InetSocketAddress> pendingServer = new ConcurrentHashMap<>();
+
+	AtomicInteger nextRequestID = new AtomicInteger();
+
+	/** Number of requests sent again to another replica, and of shards left out of a result */
+	AtomicLong hedges = new AtomicLong(), missing = new AtomicLong();
+
+	/**
+	 *  Creates a coordinator for the shard servers <code>servers</code>:
+	 *  the shards are separated by commas, and the replicas of a shard by
+	 *  '+', like <code>localhost:9000+localhost:9100,localhost:9001</code>.
+	 */
+	public DistributedSearcher(Index index, String servers, long hedgeDelay, long timeout) throws IOException {
+		super(index);
+		this.hedgeDelay = hedgeDelay;
+		this.timeout = timeout;
+		for (String shard : servers.split(",")) {
+			ArrayList<InetSocketAddress> addresses = new ArrayList<>();
+			for (String server : shard.split("\\+")) {
+				int colon = server.lastIndexOf(':');
+				if (colon < 0)
+					throw new IllegalArgumentException("shard server without port: " + server);
+				addresses.add(new InetSocketAddress(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1))));
+			}
+			replicas.add(addresses);
+		}
+		selector = Selector.open();
+		Thread io = new Thread(this::serve, "shard connections");
+		io.setDaemon(true);
+		io.start();
+	}
+
+	/* ----------------------------------------------- */
+
+	/**
+	 *  Runs a query on all the shards. A ranked query first gets the number
+	 *  of documents and the document frequencies of its terms from every
+	 *  shard, then sends them summed with the query, so that the shards rank
+	 *  their documents with the idf of the whole collection.
+	 *  The top results of the shards are merged; the results of the other
+	 *  queries are joined in docID order.
+	 */
+	PostingsList searchIndex(Query query, QueryType queryType, RankingType rankingType, int maxResults) {
+		if (query.queryterm.isEmpty())
+			return null;
+
+		ShardProtocol.SearchRequest request = new ShardProtocol.SearchRequest();
+		request.queryType = queryType;
+		request.rankingType = rankingType;
+		request.maxResults = maxResults;
+		request.query = query;
+		boolean ranked = queryType == QueryType.RANKED_QUERY;
+		if (ranked && !globalStatistics(request))
+			return null;
+
+		Frame[] answers = scatter(id -> ShardProtocol.search(id, request));
+		ArrayList<PostingsEntry> merged = new ArrayList<>();
+		HashMap<Integer, String> names = new HashMap<>();
+		for (Frame answer : answers) {
+			if (answer == null)
+				continue;
+			try {
+				merged.addAll(ShardProtocol.readResults(answer, names).list);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		synchronized (Index.docNames) {
+			Index.docNames.putAll(names);
+		}
+
+		if (ranked)
+			merged.sort(Comparator.<PostingsEntry>naturalOrder().thenComparingInt(e -> e.docID));
+		else
+			merged.sort(Comparator.comparingInt(e -> e.docID));
+		if (merged.size() > maxResults)
+			merged = new ArrayList<>(merged.subList(0, maxResults));
+		return new PostingsList(merged);
+	}
+
+	/**
+	 *  First phase of a ranked query: replaces the query of the request by
+	 *  its terms, with the wildcard terms expanded on the vocabularies of
+	 *  all the shards and placed last, like the searcher does, and sets their
+	 *  document frequencies summed over the shards.
+	 *
+	 *  @return false if a term is in no document, and the query has no results
+	 */
+	boolean globalStatistics(ShardProtocol.SearchRequest request) {
+		Query query = request.query;
+		int numTerms = query.queryterm.size();
+		Frame[] answers = scatter(id -> ShardProtocol.stats(id, query));
+
+		ArrayList<LinkedHashMap<String, Integer>> df = new ArrayList<>();
+		boolean[] wildcard = new boolean[numTerms];
+		for (int i = 0; i < numTerms; i++)
+			df.add(new LinkedHashMap<>());
+		int numDocs = 0;
+		for (Frame answer : answers) {
+			if (answer == null)
+				continue;
+			try {
+				ShardProtocol.Statistics stats = ShardProtocol.readStatistics(answer, numTerms);
+				numDocs += stats.numDocs;
+				for (int i = 0; i < numTerms; i++) {
+					wildcard[i] |= stats.wildcard[i];
+					for (Map.Entry<String, Integer> entry : stats.df.get(i).entrySet())
+						df.get(i).merge(entry.getKey(), entry.getValue(), Integer::sum);
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		Query expanded = new Query();
+		ArrayList<Double> frequencies = new ArrayList<>();
+		for (int i = 0; i < numTerms; i++) {
+			if (wildcard[i])
+				continue;
+			String term = query.queryterm.get(i).term;
+			int termDF = df.get(i).getOrDefault(term, 0);
+			if (termDF == 0)
+				return false;
+			expanded.addQueryTerm(term, query.queryterm.get(i).weight);
+			frequencies.add((double) termDF);
+		}
+		for (int i = 0; i < numTerms; i++) {
+			if (!wildcard[i])
+				continue;
+			for (Map.Entry<String, Integer> entry : df.get(i).entrySet()) {
+				expanded.addQueryTerm(entry.getKey(), 1);
+				frequencies.add((double) entry.getValue());
+			}
+		}
+		if (expanded.queryterm.isEmpty())
+			return false;
+
+		request.query = expanded;
+		request.numDocs = numDocs;
+		request.df = new double[frequencies.size()];
+		for (int i = 0; i < request.df.length; i++)
+			request.df[i] = frequencies.get(i);
+		return true;
+	}
+
+	/** Encodes a request under a given requestID */
+	interface Request {
+		ByteBuffer encode(int requestID);
+	}
+
+	/**
+	 *  Sends a request to every shard and waits for their answers until the
+	 *  timeout. The shards which failed or did not answer in time get null.
+	 */
+	Frame[] scatter(Request request) {
+		ArrayList<HedgedRequest> requests = new ArrayList<>();
+		for (ArrayList<InetSocketAddress> servers : replicas) {
+			HedgedRequest hedged = new HedgedRequest(servers, request);
+			hedged.start();
+			requests.add(hedged);
+		}
+
+		Frame[] answers = new Frame[requests.size()];
+		long deadline = System.nanoTime() + timeout * 1000000;
+		for (int s = 0; s < answers.length; s++) {
+			try {
+				answers[s] = requests.get(s).answer.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				missing.incrementAndGet();
+			}
+			catch (TimeoutException e) {
+				System.err.println("Shard " + s + " did not answer within " + timeout + " ms");
+				missing.incrementAndGet();
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof TimeoutException)
+					System.err.println("Shard " + s + " did not answer within " + timeout + " ms");
+				else
+					System.err.println("Shard " + s + " failed: " + e.getCause());
+				missing.incrementAndGet();
+			}
+		}
+		return answers;
+	}
+
+	/**
+	 *  A request to one shard, sent to its replicas one after the other: to
+	 *  the next one when the hedge delay has passed, or at once when one
+	 *  fails. The answer is the first one received.
+	 */
+	class HedgedRequest {
+		final CompletableFuture<Frame> answer = new CompletableFuture<>();
+		final ArrayList<InetSocketAddress> servers;
+		final Request request;
+		final AtomicInteger started = new AtomicInteger(), failed = new AtomicInteger();
+
+		HedgedRequest(ArrayList<InetSocketAddress> servers, Request request) {
+			this.servers = servers;
+			this.request = request;
+		}
+
+		void start() {
+			int i = started.getAndIncrement();
+			if (i >= servers.size() || answer.isDone())
+				return;
+			if (i > 0)
+				hedges.incrementAndGet();
+			send(servers.get(i), request).whenComplete((frame, error) -> {
+				if (error == null)
+					answer.complete(frame);
+				else if (failed.incrementAndGet() == servers.size())
+					answer.completeExceptionally(error);
+				else
+					start();
+			});
+			if (i + 1 < servers.size())
+				CompletableFuture.delayedExecutor(hedgeDelay, TimeUnit.MILLISECONDS).execute(this::start);
+		}
+	}
+
+	/**
+	 *  Queues a request to one server. The answer fails if the connection
+	 *  breaks, or after the timeout, so that no request stays pending.
+	 */
+	CompletableFuture<Frame> send(InetSocketAddress server, Request request) {
+		int requestID = nextRequestID.incrementAndGet();
+		CompletableFuture<Frame> answer = new CompletableFuture<>();
+		pending.put(requestID, answer);
+		pendingServer.put(requestID, server);
+		answer.orTimeout(timeout, TimeUnit.MILLISECONDS).whenComplete((frame, error) -> {
+			pending.remove(requestID);
+			pendingServer.remove(requestID);
+		});
+		outgoing.add(Map.entry(server, request.encode(requestID)));
+		selector.wakeup();
+		return answer;
+	}
+
+	/* ----------------------------------------------- */
+
+	/** Selector loop: connects to the servers, writes the requests and reads the answers */
+	void serve() {
+		while (selector.isOpen()) {
+			try {
+				selector.select();
+				Map.Entry<InetSocketAddress, ByteBuffer> request;
+				while ((request = outgoing.poll()) != null)
+					queue(request.getKey(), request.getValue());
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					exchange(key);
+				}
+			}
+			catch (ClosedSelectorException e) {
+				return;
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** Queues a frame on the connection to a server, opening it if needed */
+	void queue(InetSocketAddress server, ByteBuffer frame) {
+		Connection connection = connections.get(server);
+		try {
+			if (connection == null) {
+				SocketChannel channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				connection = new Connection(channel);
+				connections.put(server, connection);
+				if (channel.connect(server))
+					channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, server);
+				else
+					channel.register(selector, SelectionKey.OP_CONNECT, server);
+			}
+			connection.send(frame);
+			SelectionKey key = connection.channel.keyFor(selector);
+			if (connection.channel.isConnected())
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+		catch (IOException e) {
+			fail(server, e);
+		}
+	}
+
+	void exchange(SelectionKey key) {
+		InetSocketAddress server = (InetSocketAddress) key.attachment();
+		Connection connection = connections.get(server);
+		if (connection == null)
+			return;
+		try {
+			if (key.isConnectable()) {
+				connection.channel.finishConnect();
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+			if (key.isReadable()) {
+				for (Frame frame : connection.read()) {
+					CompletableFuture<Frame> answer = pending.get(frame.requestID);
+					if (answer == null)
+						continue;
+					// a replica failing the request is like one not answering, the next one is asked
+					if (frame.type == ShardProtocol.ERROR)
+						answer.completeExceptionally(new IOException(server + ": " + ShardProtocol.readError(frame)));
+					else
+						answer.complete(frame);
+				}
+			}
+			if (key.isValid() && key.isWritable() && connection.flush())
+				key.interestOps(SelectionKey.OP_READ);
+		}
+		catch (IOException e) {
+			fail(server, e);
+		}
+	}
+
+	/** Closes a broken connection and fails the requests sent on it */
+	void fail(InetSocketAddress server, IOException e) {
+		Connection connection = connections.remove(server);
+		if (connection != null)
+			connection.close();
+		for (Map.Entry<Integer, InetSocketAddress> entry : pendingServer.entrySet()) {
+			if (entry.getValue().equals(server)) {
+				CompletableFuture<Frame> answer = pending.get(entry.getKey());
+				if (answer != null)
+					answer.completeExceptionally(new IOException(server + ": " + e.getMessage(), e));
+			}
+		}
+	}
+
+	public String toString() {
+		return replicas.size() + " shards, " + hedges.get() + " hedged requests, " + missing.get() + " missing shard answers";
+	}
+}
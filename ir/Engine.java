@@ -8,6 +8,7 @@
 package ir;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -15,16 +16,45 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  *  This is the main class for the search engine.
  */
 public class Engine {
     
-    /** The inverted index. */
-    Index index = new HashedIndex();
-//    Index index = new PersistentHashedIndex();
-//    Index index = new PersistentScalableHashedIndex();
+    /** The inverted index, of the kind given by the -index option. */
+    Index index;
+
+    /** Kind of inverted index: hashed (in memory), persistent, scalable or segmented. */
+    String index_type = "hashed";
+
+    /** Number of shards of an in-memory index, whose ranked queries run on all shards in parallel. */
+    int num_shards = 1;
+
+    /** Shard of a distributed index indexed and served by this engine, or -1. */
+    int shard_id = -1;
+
+    /** Port serving the shard to a coordinator. */
+    int shard_port = 9000;
+
+    /** The shard server, if this engine serves a shard. */
+    ShardServer shardserver;
+
+    /** Shard servers of the distributed index searched by this engine, if it is a coordinator. */
+    String shard_servers = null;
+
+    /** Milliseconds before a shard request is sent again to another replica. */
+    long hedge_delay = 50;
+
+    /** The index searches read from: the index itself, or a postings cache in front of it. */
+    Index searchindex;
+
+    /** Size of the postings cache in megabytes, 0 for no cache. */
+    long cache_mb = 0;
+
+    /** Size of the query result cache in megabytes, 0 for no cache. */
+    long result_cache_mb = 0;
 
     /**  The indexer creating the search index. */
     Indexer indexer;
@@ -34,6 +64,9 @@ public class Engine {
     
     KGramIndex kgramindex = new KGramIndex(K);
 
+    /** Term vectors of all documents, used by relevance feedback. */
+    ForwardIndex forwardindex = new ForwardIndex();
+
     /** The searcher used to search the index. */
     Searcher searcher;
 
@@ -42,11 +75,17 @@ public class Engine {
     
     SpellChecker speller;
 
+    /** Symmetric delete spelling index, only used with the -ss option. */
+    SymSpellIndex symspellindex = new SymSpellIndex( 2 );
+
     /**  Directories that should be indexed. */
     ArrayList<String> dirNames = new ArrayList<String>();
 
-    /**  Lock to prevent simultaneous access to the index. */
-    Object indexLock = new Object();
+    /**
+     *  Lock to prevent searching while the index is written. Searches share
+     *  the read lock and run in parallel, indexing holds the write lock.
+     */
+    ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
 
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file = null;
@@ -57,9 +96,81 @@ public class Engine {
     /** The file containing the pageranks. */
     String rank_file = "";
 
+    /** The link file the pageranks are kept up to date with, if any. */
+    String links_file = "";
+
+    /** The file mapping the names in the link file to document names. */
+    String titles_file = "";
+
+    /** Updates the pageranks when the link file changes. */
+    PageRankMaintainer rankMaintainer;
+
+    /** Stop COMBINATION queries early with champion lists. */
+    boolean use_champions = false;
+
+    /** Maximum number of documents in the champion list of a term. */
+    static final int CHAMPIONS_PER_TERM = 500;
+
+    /** Seconds between two checks of the link file. */
+    static final int PAGERANK_REFRESH_SECONDS = 60;
+
     /** For persistent indexes, we might not need to do any indexing. */
     boolean is_indexing = true;
 
+    /** Use the symmetric delete spelling index instead of the k-gram one. */
+    boolean use_symspell = false;
+
+    /** Expand wildcard terms with a permuterm index instead of k-gram intersection. */
+    boolean use_permuterm = false;
+
+    /** Port of the headless query server, or -1 to run the GUI. */
+    int server_port = -1;
+
+    /** Maximum number of requests the query server, or the batch replay, processes at a time. */
+    int server_concurrency = 16;
+
+    /** Timeout of the query server requests, in milliseconds. */
+    long server_timeout = 5000;
+
+    /** The headless query server, if any. */
+    SearchServer server;
+
+    /** File of queries to replay instead of running the GUI, if any. */
+    String batch_file = null;
+
+    /** File receiving the results of the replayed queries. */
+    String batch_output = "batch_results.txt";
+
+    /** Number of results kept for every replayed query. */
+    int batch_results = 10;
+
+    /** File of queries to load test the searcher with instead of running the GUI, if any. */
+    String loadtest_file = null;
+
+    /** Queries per second sent by the load test, or 0 for a closed loop of clients. */
+    double loadtest_qps = 0;
+
+    /** Seconds of warmup, then of measurement, of the load test. */
+    double loadtest_warmup = 10, loadtest_duration = 60;
+
+    /** File receiving the report of the load test. */
+    String loadtest_report = "loadtest_report.json";
+
+    /** Report of an earlier load test whose p99 latency must not be exceeded, if any. */
+    String loadtest_baseline = null;
+
+    /** Allowed growth of the p99 latency over the baseline, in percent. */
+    double loadtest_tolerance = 10;
+
+    /** Seconds between two scans of the indexed directories for changed files, -1 for no scan. */
+    int watch_seconds = -1;
+
+    /** The index taking the documents changed after startup, if the directories are watched. */
+    SegmentedIndex segmentedindex;
+
+    /** Applies the changes found in the watched directories. */
+    IndexUpdater updater;
+
 
     /* ----------------------------------------------- */
 
@@ -70,21 +181,50 @@ public class Engine {
      */
     public Engine( String[] args ) {
 	decodeArgs( args );
-	indexer = new Indexer( index, patterns_file, kgramindex);
-	speller = new SpellChecker(index, kgramindex);
-	searcher = new Searcher( index, kgramindex );
-	searcher.pageRank = readPageRank("/home/luca/Desktop/Uni/Search Engines and Information Retrieval Systems/skeleton/davisPageRank.txt");
-	gui = new SearchGUI( this );
-	gui.init();
+	index = newIndex();
+	indexer = new Indexer( index, patterns_file, kgramindex, forwardindex );
+	if ( shard_id >= 0 ) {
+	    indexer.setShard( shard_id, num_shards );
+	}
+	Index liveindex = index;
+	if ( watch_seconds > 0 ) {
+	    segmentedindex = new SegmentedIndex( index, indexLock );
+	    liveindex = segmentedindex;
+	}
+	searchindex = cache_mb > 0 ? new CachedIndex( liveindex, cache_mb << 20 ) : liveindex;
+	speller = newSpeller();
+	searcher = newSearcher();
+	if ( index instanceof ShardedIndex && segmentedindex == null ) {
+	    // documents changed after startup are only in the segments, the shards cannot be searched alone
+	    searcher.shards = (ShardedIndex) index;
+	}
+	if ( result_cache_mb > 0 ) {
+	    searcher.resultcache = new ResultCache( result_cache_mb << 20 );
+	}
+	if ( server_port < 0 && batch_file == null && loadtest_file == null && shard_id < 0 ) {
+	    gui = new SearchGUI( this );
+	    gui.init();
+	}
 	/* 
 	 *   Calls the indexer to index the chosen directory structure.
-	 *   Access to the index is synchronized since we don't want to 
-	 *   search at the same time we're indexing new files (this might 
-	 *   corrupt the index).
+	 *   Indexing holds the write lock since we don't want to search
+	 *   at the same time we're indexing new files (this might corrupt
+	 *   the index).
 	 */
+	long indexTime = System.currentTimeMillis();
 	if (is_indexing) {
-            synchronized ( indexLock ) {
-                gui.displayInfoText( "Indexing, please wait..." );
+            indexLock.writeLock().lock();
+            try {
+                if ( index instanceof MultiSegmentIndex && !Index.docNames.isEmpty() ) {
+                    // the new documents are added as a segment of the existing index;
+                    // the derived indexes are decoded whole, as their files are replaced
+                    readDerivedIndexes();
+                    forwardindex.decodeAll();
+                    kgramindex.decodeAll();
+                    indexer.skipIndexedFiles();
+                    indexer.setNextDocID( Collections.max( Index.docNames.keySet() ) + 1 );
+                }
+                displayInfoText( "Indexing, please wait..." );
                 long startTime = System.currentTimeMillis();
                 for ( int i=0; i<dirNames.size(); i++ ) {
                     File dokDir = new File( dirNames.get( i ));
@@ -92,11 +232,254 @@ public class Engine {
                 }
                 long elapsedTime = System.currentTimeMillis() - startTime;
                 
-                gui.displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
+                displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
                 index.cleanup();
+                if ( use_symspell ) {
+                    symspellindex.build( kgramindex );
+                }
+                if ( isPersistent() ) {
+                    writeDerivedIndexes();
+                }
+            } finally {
+                indexLock.writeLock().unlock();
+            }
+        } else if ( shard_servers == null ) {
+            if ( isPersistent() ) {
+                readDerivedIndexes();
+            }
+            if ( kgramindex.lastTermID >= 0 ) {
+                displayInfoText( "Index is loaded from disk" );
+            } else {
+                displayInfoText( "Index is loaded from disk (no k-gram index, wildcards and spelling disabled)" );
+            }
+        }
+        if ( segmentedindex != null ) {
+            if ( !is_indexing ) {
+                // files changed after the index was committed are indexed again
+                File committed = new File( PersistentHashedIndex.INDEXDIR, IndexManifest.MANIFEST_FNAME );
+                if ( !committed.exists() ) {
+                    committed = new File( PersistentHashedIndex.INDEXDIR, PersistentHashedIndex.DOCINFO_FNAME );
+                }
+                indexTime = committed.lastModified();
+            }
+            updater = new IndexUpdater( this, segmentedindex );
+            updater.startWatching( dirNames, watch_seconds, indexTime );
+        }
+        if ( use_permuterm && kgramindex.lastTermID >= 0 ) {
+            // the index updater extends it with the terms of new documents
+            indexLock.readLock().lock();
+            try {
+                searcher.permuterm = new PermutermIndex( kgramindex );
+            } finally {
+                indexLock.readLock().unlock();
+            }
+        }
+        if ( !rank_file.equals( "" )) {
+            loadPageRank( rank_file );
+        }
+        if ( !links_file.equals( "" )) {
+            startPageRankRefresh();
+        }
+        if ( use_champions ) {
+            loadChampions();
+        }
+        if ( batch_file != null ) {
+            try {
+                new BatchRunner( this, server_concurrency, batch_results ).run( batch_file, batch_output );
+            } catch ( Exception e ) {
+                e.printStackTrace();
+            }
+        }
+        if ( loadtest_file != null ) {
+            boolean passed = false;
+            try {
+                LoadTest test = new LoadTest( this, loadtest_file, loadtest_qps, server_concurrency, loadtest_warmup, loadtest_duration );
+                test.tolerance = loadtest_tolerance;
+                passed = test.report( test.run(), loadtest_report, loadtest_baseline );
+            } catch ( Exception e ) {
+                e.printStackTrace();
+            }
+            if ( !passed ) {
+                System.exit( 1 );
+            }
+        }
+        if ( shard_id >= 0 ) {
+            try {
+                shardserver = new ShardServer( this, shard_port, server_concurrency );
+                shardserver.start();
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            }
+        }
+        if ( server_port >= 0 ) {
+            try {
+                server = new SearchServer( this, server_port, server_concurrency, server_timeout );
+                server.start();
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+    /**
+     *  Creates the inverted index of the kind given on the command line.
+     */
+    Index newIndex() {
+        switch ( index_type ) {
+        case "hashed":
+            return num_shards > 1 && shard_id < 0 ? new ShardedIndex( num_shards ) : new HashedIndex();
+        case "persistent":
+            return new PersistentHashedIndex();
+        case "scalable":
+            return new PersistentScalableHashedIndex();
+        case "segmented":
+            return new MultiSegmentIndex();
+        default:
+            System.err.println( "Unknown index type: " + index_type );
+            return new HashedIndex();
+        }
+    }
+
+    /**
+     *  Creates the searcher: a coordinator of shard servers if they were
+     *  given, or a searcher of the index of the engine.
+     */
+    Searcher newSearcher() {
+        if ( shard_servers != null ) {
+            try {
+                return new DistributedSearcher( searchindex, shard_servers, hedge_delay, server_timeout );
+            } catch ( IOException e ) {
+                e.printStackTrace();
             }
+        }
+        return new Searcher( searchindex, kgramindex );
+    }
+
+    /** Returns true if the index is written to the index directory. */
+    boolean isPersistent() {
+        return index instanceof CommittedIndex;
+    }
+
+    /**
+     *  Returns the file of the derived index with role <code>role</code>
+     *  listed in the manifest of the committed index, if it is intact, or the
+     *  file named by the role alone for an index without manifest.
+     *
+     *  @return null if there is no usable file
+     */
+    String derivedFile( String role ) {
+        IndexManifest manifest = ((CommittedIndex) index).manifest();
+        if ( manifest == null ) {
+            return role;
+        }
+        String name = manifest.derivedFile( role );
+        return name != null && manifest.verify( PersistentHashedIndex.INDEXDIR, name ) ? name : null;
+    }
+
+    /**
+     *  Returns the name under which to write the derived index with role
+     *  <code>role</code>: the file of that role of the committed generation.
+     */
+    String newDerivedFile( String role ) {
+        IndexManifest manifest = ((CommittedIndex) index).manifest();
+        return manifest == null ? role : manifest.fileName( role );
+    }
+
+    /** Lists a derived file just written in the manifest of the committed index, if it has one. */
+    void commitDerivedFile( String name ) throws IOException {
+        CommittedIndex committed = (CommittedIndex) index;
+        if ( committed.manifest() != null ) {
+            committed.commitDerivedFile( name );
+        }
+    }
+
+    /**
+     *  Writes the k-gram, forward and symmetric delete indexes built while
+     *  indexing, and lists them in the manifest of the committed index.
+     */
+    void writeDerivedIndexes() {
+        try {
+            String name = newDerivedFile( KGramIndex.KGRAM_FNAME );
+            kgramindex.writeIndex( PersistentHashedIndex.INDEXDIR, name );
+            commitDerivedFile( name );
+            name = newDerivedFile( ForwardIndex.FORWARD_FNAME );
+            forwardindex.writeIndex( PersistentHashedIndex.INDEXDIR, name );
+            commitDerivedFile( name );
+            if ( use_symspell ) {
+                name = newDerivedFile( SymSpellIndex.SYMSPELL_FNAME );
+                symspellindex.writeIndex( PersistentHashedIndex.INDEXDIR, name );
+                commitDerivedFile( name );
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     *  Reads the k-gram, forward and symmetric delete indexes of the committed
+     *  index. Those that are missing or damaged are rebuilt from the terms of
+     *  the index, and written back. The symmetric delete index is rebuilt
+     *  with the k-gram index, whose term ids it holds.
+     */
+    void readDerivedIndexes() {
+        CommittedIndex committed = (CommittedIndex) index;
+        String dir = PersistentHashedIndex.INDEXDIR;
+        try {
+            List<String> terms = null;
+            boolean kgramsRead = kgramindex.readIndex( dir, derivedFile( KGramIndex.KGRAM_FNAME ));
+            if ( !kgramsRead && !Index.docNames.isEmpty() ) {
+                System.err.println( "Rebuilding the k-gram index" );
+                terms = committed.terms();
+                kgramindex.build( terms );
+                String name = newDerivedFile( KGramIndex.KGRAM_FNAME );
+                kgramindex.writeIndex( dir, name );
+                commitDerivedFile( name );
+            }
+            if ( !forwardindex.readIndex( dir, derivedFile( ForwardIndex.FORWARD_FNAME )) && !Index.docNames.isEmpty() ) {
+                System.err.println( "Rebuilding the forward index" );
+                if ( terms == null ) {
+                    terms = committed.terms();
+                }
+                forwardindex.build( index, terms );
+                String name = newDerivedFile( ForwardIndex.FORWARD_FNAME );
+                forwardindex.writeIndex( dir, name );
+                commitDerivedFile( name );
+            }
+            if ( use_symspell && kgramindex.lastTermID >= 0
+                    && ( !kgramsRead || !symspellindex.readIndex( dir, derivedFile( SymSpellIndex.SYMSPELL_FNAME ), kgramindex ))) {
+                symspellindex.build( kgramindex );
+                String name = newDerivedFile( SymSpellIndex.SYMSPELL_FNAME );
+                symspellindex.writeIndex( dir, name );
+                commitDerivedFile( name );
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     *  Creates the spell checker on the indexes of the engine, shared by all
+     *  the searches.
+     */
+    SpellChecker newSpeller() {
+        if ( use_symspell ) {
+            return new SymSpellChecker( searchindex, kgramindex, symspellindex );
+        } else {
+            return new SpellChecker( searchindex, kgramindex );
+        }
+    }
+
+    /**
+     *  Shows a message in the GUI, or on the standard error when headless.
+     */
+    void displayInfoText( String text ) {
+        if ( gui != null ) {
+            gui.displayInfoText( text );
         } else {
-            gui.displayInfoText( "Index is loaded from disk" );
+            System.err.println( text );
         }
     }
 
@@ -133,10 +516,167 @@ public class Engine {
 		    rank_file = args[i++];
 		}
 	    }	
+	    else if ( "-g".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    links_file = args[i++];
+		}
+	    }
+	    else if ( "-t".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    titles_file = args[i++];
+		}
+	    }
 	    else if ( "-ni".equals( args[i] )) {
                 i++;
                 is_indexing = false;
             }
+	    else if ( "-server".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    server_port = Integer.parseInt( args[i++] );
+		}
+	    }
+	    else if ( "-concurrency".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    server_concurrency = Integer.parseInt( args[i++] );
+		}
+	    }
+	    else if ( "-timeout".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    server_timeout = Long.parseLong( args[i++] );
+		}
+	    }
+	    else if ( "-batch".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    batch_file = args[i++];
+		}
+	    }
+	    else if ( "-batchout".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    batch_output = args[i++];
+		}
+	    }
+	    else if ( "-k".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    batch_results = Integer.parseInt( args[i++] );
+		}
+	    }
+	    else if ( "-loadtest".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    loadtest_file = args[i++];
+		}
+	    }
+	    else if ( "-qps".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    loadtest_qps = Double.parseDouble( args[i++] );
+		}
+	    }
+	    else if ( "-warmup".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    loadtest_warmup = Double.parseDouble( args[i++] );
+		}
+	    }
+	    else if ( "-duration".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    loadtest_duration = Double.parseDouble( args[i++] );
+		}
+	    }
+	    else if ( "-loadreport".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    loadtest_report = args[i++];
+		}
+	    }
+	    else if ( "-baseline".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    loadtest_baseline = args[i++];
+		}
+	    }
+	    else if ( "-tolerance".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    loadtest_tolerance = Double.parseDouble( args[i++] );
+		}
+	    }
+	    else if ( "-cache".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    cache_mb = Long.parseLong( args[i++] );
+		}
+	    }
+	    else if ( "-rcache".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    result_cache_mb = Long.parseLong( args[i++] );
+		}
+	    }
+	    else if ( "-ch".equals( args[i] )) {
+		i++;
+		use_champions = true;
+	    }
+	    else if ( "-index".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    index_type = args[i++];
+		}
+	    }
+	    else if ( "-shards".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    num_shards = Integer.parseInt( args[i++] );
+		}
+	    }
+	    else if ( "-shard".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    shard_id = Integer.parseInt( args[i++] );
+		}
+	    }
+	    else if ( "-shardport".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    shard_port = Integer.parseInt( args[i++] );
+		}
+	    }
+	    else if ( "-coordinator".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    shard_servers = args[i++];
+		    is_indexing = false;
+		}
+	    }
+	    else if ( "-hedge".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    hedge_delay = Long.parseLong( args[i++] );
+		}
+	    }
+	    else if ( "-watch".equals( args[i] )) {
+		i++;
+		if ( i < args.length ) {
+		    watch_seconds = Integer.parseInt( args[i++] );
+		}
+	    }
+	    else if ( "-pt".equals( args[i] )) {
+		i++;
+		use_permuterm = true;
+	    }
+	    else if ( "-ss".equals( args[i] )) {
+                i++;
+                use_symspell = true;
+            }
 	    else {
 		System.err.println( "Unknown option: " + args[i] );
 		break;
@@ -146,10 +686,111 @@ public class Engine {
     
     /* ----------------------------------------------- */
 
-    HashMap<String, Double> readPageRank(String file) {
+    /**
+     *  Runs the random walks on the link graph and starts a thread checking the
+     *  link file for changes. Only the walks affected by a change are simulated
+     *  again, and the new ranks replace the searcher's ones in one assignment.
+     *  The walks are used as ranks right away if no rank file was given.
+     */
+    void startPageRankRefresh() {
+        try {
+            PageRank graph = new PageRank();
+            graph.readLinks( links_file );
+            if ( !titles_file.equals( "" )) {
+                graph.readTitles( titles_file );
+            }
+            rankMaintainer = new PageRankMaintainer( graph, 10, 1L );
+            rankMaintainer.simulate();
+            if ( rank_file.equals( "" )) {
+                searcher.setPageRank( rankMaintainer.ranksByName(), docNames() );
+            }
+        } catch ( Exception e ) {
+            e.printStackTrace();
+            return;
+        }
+
+        Thread refresh = new Thread( () -> {
+            long lastModified = new File( links_file ).lastModified();
+            while ( true ) {
+                try {
+                    Thread.sleep( PAGERANK_REFRESH_SECONDS * 1000L );
+                    long modified = new File( links_file ).lastModified();
+                    if ( modified != lastModified ) {
+                        lastModified = modified;
+                        int walks = rankMaintainer.refresh( links_file );
+                        if ( walks > 0 ) {
+                            searcher.setPageRank( rankMaintainer.ranksByName(), docNames() );
+                            if ( use_champions ) {
+                                loadChampions();
+                            }
+                            System.err.println( "PageRank refreshed, " + walks + " walks simulated" );
+                        }
+                    }
+                } catch ( InterruptedException e ) {
+                    return;
+                } catch ( IOException | RuntimeException e ) {
+                    // a failed refresh keeps the previous ranks, the next change of the links is tried again
+                    e.printStackTrace();
+                }
+            }
+        });
+        refresh.setDaemon( true );
+        refresh.start();
+    }
+
+    /* ----------------------------------------------- */
+
+    /**
+     *  Gives the searcher champion lists matching its current PageRank, read
+     *  from disk if the manifest of the committed index lists them, built from
+     *  the index and committed with it otherwise.
+     *
+     *  Once documents were changed after startup, the lists are built from the
+     *  live index, with the new documents and without the deleted ones, and are
+     *  not written. The read lock keeps the index, the vocabulary and the
+     *  document lengths still meanwhile; the next change drops the lists.
+     */
+    void loadChampions() {
+        indexLock.readLock().lock();
+        try {
+            double[] rank = searcher.staticRank.rank;
+            ChampionIndex champions = new ChampionIndex( CHAMPIONS_PER_TERM );
+            boolean committed = isPersistent() && ( segmentedindex == null || segmentedindex.isUnchanged() );
+            if ( !committed || !champions.readIndex( PersistentHashedIndex.INDEXDIR, derivedFile( ChampionIndex.CHAMPIONS_FNAME ), rank )) {
+                champions.build( segmentedindex != null ? segmentedindex : index, kgramindex, rank );
+                if ( committed ) {
+                    try {
+                        String name = newDerivedFile( ChampionIndex.CHAMPIONS_FNAME );
+                        champions.writeIndex( PersistentHashedIndex.INDEXDIR, name );
+                        commitDerivedFile( name );
+                    } catch ( IOException e ) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            searcher.championindex = champions;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /* ----------------------------------------------- */
+
+    /**
+     *  Gives the searcher the PageRank of the documents, read either from a
+     *  binary rank file indexed by docID (written by <code>PageRank</code>) or
+     *  from a text file with lines <code>name;rank</code>.
+     */
+    void loadPageRank(String file) {
         HashMap<String, Double> pageRank = new HashMap<>();
         
 	    try {
+	    	double[] ranks = PageRank.readBinaryRanks( file );
+	    	if ( ranks != null ) {
+	    		searcher.setPageRank( ranks, docNames() );
+	    		return;
+	    	}
+	    	
 	    	BufferedReader in = new BufferedReader( new FileReader( file ));
 		    String line, fName;
 		    double score;
@@ -169,7 +810,20 @@ public class Engine {
 			e.printStackTrace();
 		}
         
-    	return pageRank;
+    	searcher.setPageRank( pageRank, docNames() );
+    }
+
+    /**
+     *  Returns a copy of the document names, made under the read lock since
+     *  the index updater adds and removes names under the write lock.
+     */
+    HashMap<Integer, String> docNames() {
+        indexLock.readLock().lock();
+        try {
+            return new HashMap<Integer, String>( Index.docNames );
+        } finally {
+            indexLock.readLock().unlock();
+        }
     }
     
     /* ----------------------------------------------- */
@@ -0,0 +1,313 @@
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ *  Forward index: for every document, the ids of its terms with their term
+ *  frequencies, and for every term its document frequency. Built while
+ *  indexing, so that relevance feedback does not need to read the documents
+ *  again.
+ */
+public class ForwardIndex {
+
+	/** The forward index file name */
+	public static final String FORWARD_FNAME = "forward";
+
+	/** Marks the beginning of a forward index file */
+	private static final int MAGIC = 0x46574449;
+
+	/** Mapping from term strings to term ids */
+	HashMap<String,Integer> term2id = new HashMap<String,Integer>();
+
+	/** Mapping from term ids to term strings */
+	ArrayList<String> id2term = new ArrayList<String>();
+
+	/** Document frequency of every term, indexed by term id */
+	int[] df = new int[1024];
+
+	/**
+	 *  Term vector of every document, indexed by docID. A vector holds pairs
+	 *  (term id, term frequency) sorted by term id.
+	 */
+	int[][] vectors = new int[1024][];
+
+	/** Number of docIDs covered by the forward index */
+	int numDocs = 0;
+
+	/** The forward index file mapped in memory, if the index was read from disk */
+	ByteBuffer mapped;
+
+	/** Position in the mapped file of the vector of every document */
+	int[] vectorPtr = new int[0];
+
+	/** Term frequencies of the document being indexed, indexed by term id */
+	private int[] tf = new int[1024];
+
+	/** Ids of the terms of the document being indexed */
+	private int[] docTerms = new int[1024];
+	private int numDocTerms = 0;
+
+	/** Adds one occurrence of <code>token</code> to the document being indexed */
+	public void insert(String token) {
+		Integer id = term2id.get(token);
+		if (id == null) {
+			id = id2term.size();
+			term2id.put(token, id);
+			id2term.add(token);
+			if (id == df.length) {
+				df = Arrays.copyOf(df, 2 * id);
+				tf = Arrays.copyOf(tf, 2 * id);
+			}
+		}
+		if (tf[id]++ == 0) {
+			if (numDocTerms == docTerms.length)
+				docTerms = Arrays.copyOf(docTerms, 2 * numDocTerms);
+			docTerms[numDocTerms++] = id;
+		}
+	}
+
+	/** Stores the vector of the document being indexed under <code>docID</code> */
+	public void endDocument(int docID) {
+		Arrays.sort(docTerms, 0, numDocTerms);
+		int[] vector = new int[2 * numDocTerms];
+		for (int i = 0; i < numDocTerms; i++) {
+			int id = docTerms[i];
+			vector[2*i] = id;
+			vector[2*i + 1] = tf[id];
+			df[id]++;
+			tf[id] = 0;
+		}
+		numDocTerms = 0;
+
+		if (docID >= vectors.length)
+			vectors = Arrays.copyOf(vectors, Math.max(2 * vectors.length, docID + 1));
+		vectors[docID] = vector;
+		numDocs = Math.max(numDocs, docID + 1);
+	}
+
+	/** Forgets the vector of a deleted document, and its share of the document frequencies */
+	public void removeDocument(int docID) {
+		int[] vector = getVector(docID);
+		if (vector == null)
+			return;
+		for (int i = 0; i < vector.length; i += 2)
+			df[vector[i]]--;
+		vectors[docID] = new int[0];
+	}
+
+	/** Number of terms in the vocabulary */
+	public int numTerms() {
+		return id2term.size();
+	}
+
+	/** Get a term by the given id */
+	public String getTerm(int id) {
+		return id2term.get(id);
+	}
+
+	/** Get the document frequency of the term with the given id */
+	public int getDf(int id) {
+		return df[id];
+	}
+
+	/**
+	 *  Returns the vector of document <code>docID</code> as pairs (term id,
+	 *  term frequency), or null if the document is not in the forward index.
+	 */
+	public int[] getVector(int docID) {
+		if (docID >= numDocs)
+			return null;
+		int[] vector = vectors[docID];
+
+		// vectors of an index read from disk are decoded on every access, they
+		// are small and not caching them keeps concurrent readers safe
+		if (vector == null && mapped != null && docID < vectorPtr.length) {
+			ByteBuffer buf = mapped.duplicate();
+			buf.position(vectorPtr[docID]);
+
+			vector = new int[2 * VByte.read(buf)];
+			VByte.read(buf);
+			int id = 0;
+			for (int i = 0; i < vector.length; i += 2) {
+				id += VByte.read(buf);
+				vector[i] = id;
+				vector[i + 1] = VByte.read(buf);
+			}
+		}
+		return vector;
+	}
+
+	/**
+	 *  Writes the forward index to the file <code>name</code> of
+	 *  <code>dirname</code>, atomically: a header (magic, number of terms,
+	 *  number of documents), the terms with their document frequency, then
+	 *  the vector of every document with term ids stored as gaps.
+	 */
+	public void writeIndex(String dirname, String name) throws IOException {
+		IndexManifest.writeAtomically(dirname, name, out -> {
+			out.writeInt(MAGIC);
+			out.writeInt(numTerms());
+			out.writeInt(numDocs);
+
+			for (int id = 0; id < numTerms(); id++) {
+				VByte.writeString(out, id2term.get(id));
+				VByte.write(out, df[id]);
+			}
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream vectorOut = new DataOutputStream(bytes);
+			for (int docID = 0; docID < numDocs; docID++) {
+				int[] vector = getVector(docID);
+				if (vector == null)
+					vector = new int[0];
+				int last = 0;
+
+				bytes.reset();
+				for (int i = 0; i < vector.length; i += 2) {
+					VByte.write(vectorOut, vector[i] - last);
+					VByte.write(vectorOut, vector[i + 1]);
+					last = vector[i];
+				}
+
+				VByte.write(out, vector.length / 2);
+				VByte.write(out, bytes.size());
+				bytes.writeTo(out);
+			}
+		});
+	}
+
+	/**
+	 *  Maps the forward index written by {@link #writeIndex} in memory. Terms
+	 *  are read right away, document vectors are decoded on first access.
+	 *
+	 *  @return false if there is no file <code>name</code> in <code>dirname</code>,
+	 *  or if it is damaged; the forward index is then empty
+	 */
+	public boolean readIndex(String dirname, String name) {
+		if (name == null)
+			return false;
+		File file = new File(dirname, name);
+		if (!file.exists())
+			return false;
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			ByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+
+			if (buf.getInt() != MAGIC) {
+				System.err.println("Not a forward index: " + file);
+				return false;
+			}
+			int numTerms = buf.getInt();
+			numDocs = buf.getInt();
+
+			term2id = new HashMap<String,Integer>(numTerms * 2);
+			id2term = new ArrayList<String>(numTerms);
+			df = new int[Math.max(numTerms, 1024)];
+			tf = new int[df.length];
+			for (int id = 0; id < numTerms; id++) {
+				String term = VByte.readString(buf);
+				term2id.put(term, id);
+				id2term.add(term);
+				df[id] = VByte.read(buf);
+			}
+
+			vectors = new int[Math.max(numDocs, 1024)][];
+			vectorPtr = new int[numDocs];
+			for (int docID = 0; docID < numDocs; docID++) {
+				vectorPtr[docID] = buf.position();
+				VByte.read(buf);
+				int len = VByte.read(buf);
+				buf.position(buf.position() + len);
+			}
+			if (buf.position() != buf.limit())
+				throw new IllegalStateException("trailing bytes");
+			mapped = buf;
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			clear();
+			return false;
+		}
+		catch (RuntimeException e) {
+			System.err.println("Damaged forward index " + file + ": " + e);
+			clear();
+			return false;
+		}
+		return true;
+	}
+
+	/** Empties the forward index */
+	void clear() {
+		term2id = new HashMap<String,Integer>();
+		id2term = new ArrayList<String>();
+		df = new int[1024];
+		tf = new int[1024];
+		vectors = new int[1024][];
+		vectorPtr = new int[0];
+		numDocs = 0;
+		mapped = null;
+	}
+
+	/**
+	 *  Decodes all the vectors of an index read from disk, so that it no
+	 *  longer depends on the mapped file.
+	 */
+	public void decodeAll() {
+		for (int docID = 0; docID < numDocs; docID++) {
+			if (vectors[docID] == null)
+				vectors[docID] = getVector(docID);
+		}
+		mapped = null;
+		vectorPtr = new int[0];
+	}
+
+	/**
+	 *  Builds the forward index again from the postings of the terms
+	 *  <code>terms</code> of <code>index</code>, when its file is lost.
+	 */
+	public void build(Index index, List<String> terms) {
+		clear();
+		int[] lengths = new int[1024];
+		for (String term : terms) {
+			PostingsList postings = index.getPostings(term);
+			if (postings == null)
+				continue;
+			int id = id2term.size();
+			term2id.put(term, id);
+			id2term.add(term);
+			if (id == df.length) {
+				df = Arrays.copyOf(df, 2 * id);
+				tf = Arrays.copyOf(tf, 2 * id);
+			}
+			df[id] = postings.size();
+
+			// term ids grow, so the vectors are built sorted
+			for (int i = 0; i < postings.size(); i++) {
+				PostingsEntry entry = postings.get(i);
+				int docID = entry.docID;
+				if (docID >= vectors.length) {
+					vectors = Arrays.copyOf(vectors, Math.max(2 * vectors.length, docID + 1));
+					lengths = Arrays.copyOf(lengths, vectors.length);
+				}
+				int[] vector = vectors[docID];
+				if (vector == null)
+					vector = vectors[docID] = new int[8];
+				else if (lengths[docID] == vector.length)
+					vector = vectors[docID] = Arrays.copyOf(vector, 2 * vector.length);
+				vector[lengths[docID]++] = id;
+				vector[lengths[docID]++] = entry.offset.size();
+				numDocs = Math.max(numDocs, docID + 1);
+			}
+		}
+		for (int docID = 0; docID < numDocs; docID++) {
+			if (vectors[docID] != null)
+				vectors[docID] = Arrays.copyOf(vectors[docID], lengths[docID]);
+		}
+	}
+}
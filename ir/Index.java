@@ -8,6 +8,7 @@
 package ir;
 
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *  Defines some common data structures and methods that all types of
@@ -21,6 +22,9 @@ public interface Index {
     /** Mapping from document identifier to document length. */
     public HashMap<Integer,Integer> docLengths = new HashMap<Integer,Integer>();
 
+    /** Generation of the index, incremented every time cleanup() commits changes. */
+    public AtomicLong generation = new AtomicLong();
+
     /** Inserts a token into the index. */
     public void insert( String token, int docID, int offset );
 
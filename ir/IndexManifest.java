@@ -0,0 +1,364 @@
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ *  Manifest of the committed files of a persistent index: a generation
+ *  number and, for every file, its name, length and checksum.
+ *
+ *  A commit writes the files of the new generation under new names, syncs
+ *  them to disk, then writes the manifest to a temporary file, syncs it and
+ *  renames it over the old manifest, which is atomic. Until the rename the
+ *  old manifest and its files are untouched, after it the new ones are
+ *  complete, so a crash at any point leaves a usable index. The files of
+ *  the old generation are deleted after the rename.
+ *
+ *  The manifest itself is a small text file, ending with the checksum of
+ *  its own lines.
+ *
+ *  The indexes derived from the committed index (k-grams, forward index,
+ *  symmetric deletes, champion lists) are listed too, under the generation
+ *  they were built for. A commit that changes the documents drops them, and with them their
+ *  files; a damaged derived file does not fail the index, the derived index
+ *  is rebuilt.
+ */
+public class IndexManifest {
+
+	/** The manifest file name */
+	public static final String MANIFEST_FNAME = "manifest";
+
+	/** First line of a manifest */
+	private static final String HEADER = "ir-index-manifest 1";
+
+	/** Roles of the files of the indexes derived from the committed index */
+	static final String[] DERIVED_ROLES = { KGramIndex.KGRAM_FNAME, ForwardIndex.FORWARD_FNAME, SymSpellIndex.SYMSPELL_FNAME, ChampionIndex.CHAMPIONS_FNAME };
+
+	/** Writes the contents of a file */
+	interface Contents {
+		void writeTo(DataOutputStream out) throws IOException;
+	}
+
+	/** One committed file */
+	static class FileEntry {
+		final String name;
+		final long length;
+		final long checksum;
+
+		FileEntry(String name, long length, long checksum) {
+			this.name = name;
+			this.length = length;
+			this.checksum = checksum;
+		}
+	}
+
+	/** Generation of the committed files, incremented by every commit */
+	long generation;
+
+	ArrayList<FileEntry> files = new ArrayList<>();
+
+	public IndexManifest(long generation) {
+		this.generation = generation;
+	}
+
+	/** Name of the file of this generation with role <code>role</code>, like "dictionary" */
+	public String fileName(String role) {
+		return fileName(role, generation);
+	}
+
+	/** Name of the file of segment <code>segment</code> with role <code>role</code> */
+	public static String fileName(String role, long segment) {
+		return role + "." + segment;
+	}
+
+	/**
+	 *  Returns the ids of the segments of the index, in manifest order. A
+	 *  segment is named by the generation that created it, and has one file
+	 *  of every role.
+	 */
+	public ArrayList<Long> segments() {
+		ArrayList<Long> segments = new ArrayList<>();
+		String prefix = PersistentHashedIndex.DICTIONARY_FNAME + ".";
+		for (FileEntry f : files) {
+			if (f.name.startsWith(prefix))
+				segments.add(Long.parseLong(f.name.substring(prefix.length())));
+		}
+		return segments;
+	}
+
+	/** Names of the listed files with role <code>role</code>, in manifest order */
+	public ArrayList<String> files(String role) {
+		ArrayList<String> names = new ArrayList<>();
+		for (FileEntry f : files) {
+			if (role(f.name).equals(role))
+				names.add(f.name);
+		}
+		return names;
+	}
+
+	/** Name of the listed file of the derived index with role <code>role</code>, or null */
+	public String derivedFile(String role) {
+		for (FileEntry f : files) {
+			if (role(f.name).equals(role))
+				return f.name;
+		}
+		return null;
+	}
+
+	/** Role of a file, its name without the generation */
+	static String role(String name) {
+		int dot = name.lastIndexOf('.');
+		return dot > 0 && name.substring(dot + 1).matches("[0-9]+") ? name.substring(0, dot) : name;
+	}
+
+	static boolean isDerived(String name) {
+		return Arrays.asList(DERIVED_ROLES).contains(role(name));
+	}
+
+	/** Returns true if the manifest lists a file with the given name */
+	public boolean contains(String name) {
+		for (FileEntry f : files) {
+			if (f.name.equals(name))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 *  Syncs a file of the new generation to disk and records its length and
+	 *  checksum in the manifest.
+	 */
+	public void add(String dirname, String name) throws IOException {
+		File file = new File(dirname, name);
+		sync(file);
+		files.add(new FileEntry(name, file.length(), checksum(file)));
+	}
+
+	/** Lists a file of <code>previous</code>, already synced and checksummed, in this manifest */
+	public void keep(IndexManifest previous, String name) {
+		for (FileEntry f : previous.files) {
+			if (f.name.equals(name))
+				files.add(f);
+		}
+	}
+
+	/** Lists the derived files of <code>previous</code> in this manifest, for a commit that keeps the documents */
+	public void keepDerived(IndexManifest previous) {
+		for (FileEntry f : previous.files) {
+			if (isDerived(f.name))
+				files.add(f);
+		}
+	}
+
+	/**
+	 *  Returns a copy of this manifest, of the same generation, listing the
+	 *  derived file <code>name</code> in place of the previous file of its role.
+	 */
+	public IndexManifest withDerivedFile(String dirname, String name) throws IOException {
+		IndexManifest next = new IndexManifest(generation);
+		for (FileEntry f : files) {
+			if (!role(f.name).equals(role(name)))
+				next.files.add(f);
+		}
+		next.add(dirname, name);
+		return next;
+	}
+
+	/**
+	 *  Checks that all the files of the committed index are there, with the
+	 *  right length and checksum. Derived files are checked when they are read.
+	 */
+	public boolean verify(String dirname) {
+		for (FileEntry f : files) {
+			if (!isDerived(f.name) && !verify(dirname, f.name))
+				return false;
+		}
+		return true;
+	}
+
+	/** Checks that the listed file <code>name</code> is there, with the right length and checksum */
+	public boolean verify(String dirname, String name) {
+		for (FileEntry f : files) {
+			if (!f.name.equals(name))
+				continue;
+			File file = new File(dirname, f.name);
+			try {
+				if (!file.exists() || file.length() != f.length || checksum(file) != f.checksum) {
+					System.err.println("Index file " + file + " does not match the manifest");
+					return false;
+				}
+				return true;
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/* ----------------------------------------------- */
+
+	/**
+	 *  Commits this manifest: writes and syncs it under a temporary name,
+	 *  renames it over the current manifest and syncs the directory. Files
+	 *  of <code>previous</code> not listed in this manifest are deleted
+	 *  afterwards.
+	 */
+	public void commit(String dirname, IndexManifest previous) throws IOException {
+		StringBuilder text = new StringBuilder();
+		text.append(HEADER).append('\n');
+		text.append("generation ").append(generation).append('\n');
+		for (FileEntry f : files)
+			text.append("file ").append(f.name).append(' ').append(f.length).append(' ').append(Long.toHexString(f.checksum)).append('\n');
+		long checksum = checksum(text.toString());
+		text.append("end ").append(Long.toHexString(checksum)).append('\n');
+
+		File tmp = new File(dirname, MANIFEST_FNAME + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		}
+		Files.move(tmp.toPath(), new File(dirname, MANIFEST_FNAME).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		sync(new File(dirname));
+
+		if (previous != null) {
+			for (FileEntry f : previous.files) {
+				if (!contains(f.name))
+					Files.deleteIfExists(new File(dirname, f.name).toPath());
+			}
+		}
+	}
+
+	/**
+	 *  Writes the file <code>name</code> of <code>dirname</code> under a
+	 *  temporary name, syncs it and renames it, so that the file is either
+	 *  the old one or the complete new one. Files mapped in memory keep their
+	 *  old contents.
+	 */
+	static void writeAtomically(String dirname, String name, Contents contents) throws IOException {
+		File tmp = new File(dirname, name + ".tmp");
+		try (FileOutputStream file = new FileOutputStream(tmp)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+			contents.writeTo(out);
+			out.flush();
+			file.getFD().sync();
+		}
+		catch (IOException | RuntimeException e) {
+			tmp.delete();
+			throw e;
+		}
+		Files.move(tmp.toPath(), new File(dirname, name).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		sync(new File(dirname));
+	}
+
+	/**
+	 *  Reads the manifest of <code>dirname</code>, and deletes the files an
+	 *  interrupted commit may have left behind.
+	 *
+	 *  @return null if there is no manifest, or if it is damaged
+	 */
+	public static IndexManifest read(String dirname) {
+		return read(dirname, true);
+	}
+
+	/**
+	 *  Reads the manifest of <code>dirname</code>, without deleting anything
+	 *  if <code>clean</code> is false, for readers of an index that another
+	 *  process may be writing.
+	 */
+	public static IndexManifest read(String dirname, boolean clean) {
+		File file = new File(dirname, MANIFEST_FNAME);
+		if (!file.exists())
+			return null;
+		try {
+			String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+			int end = text.lastIndexOf("end ");
+			String[] lines = text.substring(0, Math.max(end, 0)).split("\n");
+			if (end < 0 || !lines[0].equals(HEADER)
+					|| Long.parseUnsignedLong(text.substring(end + 4).trim(), 16) != checksum(text.substring(0, end))) {
+				System.err.println("Damaged index manifest: " + file);
+				return null;
+			}
+
+			IndexManifest manifest = new IndexManifest(Long.parseLong(lines[1].split(" ")[1]));
+			for (int i = 2; i < lines.length; i++) {
+				String[] data = lines[i].split(" ");
+				manifest.files.add(new FileEntry(data[1], Long.parseLong(data[2]), Long.parseUnsignedLong(data[3], 16)));
+			}
+			if (clean)
+				manifest.removeUncommitted(dirname);
+			return manifest;
+		}
+		catch (IOException | RuntimeException e) {
+			System.err.println("Damaged index manifest: " + file);
+			return null;
+		}
+	}
+
+	/**
+	 *  Deletes the generation files not listed in this manifest: files of a
+	 *  commit that did not finish, or of a generation whose deletion did not,
+	 *  temporary files of derived indexes, and derived files written before
+	 *  they were listed in the manifest.
+	 */
+	void removeUncommitted(String dirname) throws IOException {
+		new File(dirname, MANIFEST_FNAME + ".tmp").delete();
+		String[] names = new File(dirname).list();
+		if (names == null)
+			return;
+		for (String name : names) {
+			if (name.endsWith(".tmp") && isDerived(name.substring(0, name.length() - 4))) {
+				Files.deleteIfExists(new File(dirname, name).toPath());
+				continue;
+			}
+			if (contains(name))
+				continue;
+			String role = role(name);
+			if (isDerived(name) || !role.equals(name) && (role.equals(PersistentHashedIndex.DICTIONARY_FNAME)
+					|| role.equals(PersistentHashedIndex.DATA_FNAME) || role.equals(PersistentHashedIndex.DOCINFO_FNAME)))
+				Files.deleteIfExists(new File(dirname, name).toPath());
+		}
+	}
+
+	/* ----------------------------------------------- */
+
+	/**
+	 *  Flushes a file, or the entries of a directory, to disk. Some platforms
+	 *  cannot sync directories, the rename is then as durable as they allow.
+	 */
+	static void sync(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), file.isDirectory() ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+		catch (IOException e) {
+			if (!file.isDirectory())
+				throw e;
+		}
+	}
+
+	static long checksum(File file) throws IOException {
+		CRC32C crc = new CRC32C();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				crc.update(buffer);
+				buffer.clear();
+			}
+		}
+		return crc.getValue();
+	}
+
+	static long checksum(String text) {
+		CRC32C crc = new CRC32C();
+		crc.update(text.getBytes(StandardCharsets.UTF_8));
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,138 @@
+package ir;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+import ir.PersistentHashedIndex.Entry;
+
+/**
+ *  One immutable segment of a {@link MultiSegmentIndex}: a dictionary hash
+ *  table, a postings data file and a doc info file, in the format of
+ *  PersistentHashedIndex, named by the id of the segment. A segment holds
+ *  a range of docIDs, and is never modified once written; merging two
+ *  segments writes a new one.
+ *
+ *  A segment is only read, its files are read by a PersistentHashedIndex
+ *  which is never written to.
+ */
+public class IndexSegment {
+
+	/** Id of the segment, the generation of the commit that created it */
+	long id;
+
+	/** Reads the files of the segment */
+	PersistentHashedIndex reader = new PersistentHashedIndex(0);
+
+	/** Opens the committed segment <code>id</code> for reading */
+	public IndexSegment(long id) throws IOException {
+		this.id = id;
+		reader.dictionaryFile = new RandomAccessFile(PersistentHashedIndex.INDEXDIR + "/" + IndexManifest.fileName(PersistentHashedIndex.DICTIONARY_FNAME, id), "r");
+		reader.dataFile = new RandomAccessFile(PersistentHashedIndex.INDEXDIR + "/" + IndexManifest.fileName(PersistentHashedIndex.DATA_FNAME, id), "r");
+	}
+
+	/** Returns the postings of a term in the segment, or null */
+	public PostingsList getPostings(String token) {
+		return reader.getPostings(token);
+	}
+
+	/** Returns the terms of the segment */
+	public List<String> terms() throws IOException {
+		return reader.terms();
+	}
+
+	/** Reads the names and lengths of the documents of the segment */
+	public void readDocInfo() throws IOException {
+		reader.readDocInfo(new File(PersistentHashedIndex.INDEXDIR + "/" + IndexManifest.fileName(PersistentHashedIndex.DOCINFO_FNAME, id)));
+	}
+
+	/** Size of the postings of the segment, in bytes */
+	public long size() {
+		try {
+			return reader.dataFile.length();
+		}
+		catch (IOException e) {
+			return 0;
+		}
+	}
+
+	public void close() {
+		try {
+			reader.dictionaryFile.close();
+			reader.dataFile.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/* ----------------------------------------------- */
+
+	/**
+	 *  Writes the postings <code>postings</code> of the documents
+	 *  <code>docIDs</code> as segment <code>id</code>. The files are not
+	 *  committed until a manifest lists them.
+	 */
+	public static IndexSegment write(long id, HashMap<String,PostingsList> postings, Set<Integer> docIDs) throws IOException {
+		PersistentHashedIndex writer = new PersistentHashedIndex(0);
+		writer.index = postings;
+		writer.dictionaryFile = writer.openWorkFile(IndexManifest.fileName(PersistentHashedIndex.DICTIONARY_FNAME, id));
+		writer.dataFile = writer.openWorkFile(IndexManifest.fileName(PersistentHashedIndex.DATA_FNAME, id));
+		writer.writeIndex(true);
+		writer.writeDocInfo(IndexManifest.fileName(PersistentHashedIndex.DOCINFO_FNAME, id), docIDs);
+		writer.dictionaryFile.close();
+		writer.dataFile.close();
+		return new IndexSegment(id);
+	}
+
+	/**
+	 *  Merges two adjacent segments into segment <code>id</code>. The docIDs
+	 *  of <code>first</code> are all smaller than those of <code>second</code>,
+	 *  so the postings of a term are the postings of the first segment followed
+	 *  by those of the second one. The postings are copied in their stored
+	 *  form, without being decoded.
+	 */
+	public static IndexSegment merge(long id, IndexSegment first, IndexSegment second) throws IOException {
+		PersistentHashedIndex writer = new PersistentHashedIndex(0);
+		writer.dictionaryFile = writer.openWorkFile(IndexManifest.fileName(PersistentHashedIndex.DICTIONARY_FNAME, id));
+		writer.dataFile = writer.openWorkFile(IndexManifest.fileName(PersistentHashedIndex.DATA_FNAME, id));
+
+		PersistentHashedIndex r1 = first.reader, r2 = second.reader;
+		for (long ptr = 0; ptr < r1.dictionaryFile.length(); ptr += PersistentHashedIndex.ENTRY_BYTE_SIZE) {
+			Entry entry = r1.readEntry(r1.dictionaryFile, r1.dataFile, ptr);
+			if (entry == null)
+				continue;
+			String postings = r1.readData(r1.dataFile, entry.ptr, entry.size);
+			Entry other = second.findEntry(entry.token);
+			if (other != null) {
+				String more = r2.readData(r2.dataFile, other.ptr, other.size);
+				postings += ":" + more.substring(entry.token.length() + 1);
+			}
+			writer.writePostings(entry.token, postings);
+		}
+		for (long ptr = 0; ptr < r2.dictionaryFile.length(); ptr += PersistentHashedIndex.ENTRY_BYTE_SIZE) {
+			Entry entry = r2.readEntry(r2.dictionaryFile, r2.dataFile, ptr);
+			if (entry != null && first.findEntry(entry.token) == null)
+				writer.writePostings(entry.token, r2.readData(r2.dataFile, entry.ptr, entry.size));
+		}
+		writer.dictionaryFile.close();
+		writer.dataFile.close();
+
+		// the doc info files are lists of lines, they are simply concatenated
+		try (OutputStream out = new FileOutputStream(PersistentHashedIndex.INDEXDIR + "/" + IndexManifest.fileName(PersistentHashedIndex.DOCINFO_FNAME, id))) {
+			for (IndexSegment segment : new IndexSegment[] { first, second })
+				out.write(java.nio.file.Files.readAllBytes(new File(PersistentHashedIndex.INDEXDIR + "/" + IndexManifest.fileName(PersistentHashedIndex.DOCINFO_FNAME, segment.id)).toPath()));
+		}
+		return new IndexSegment(id);
+	}
+
+	/** Looks up the dictionary entry of a term, or returns null */
+	Entry findEntry(String token) {
+		int i = 0;
+		Entry entry = reader.readEntry(reader.dictionaryFile, reader.dataFile, reader.hash(token, 0, PersistentHashedIndex.TABLESIZE));
+		while (entry != null && !entry.token.equals(token))
+			entry = reader.readEntry(reader.dictionaryFile, reader.dataFile, reader.hash(token, ++i, PersistentHashedIndex.TABLESIZE));
+		return entry;
+	}
+}
@@ -0,0 +1,204 @@
+package ir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ *  Adds, deletes and updates documents of a running engine, through a
+ *  {@link SegmentedIndex}, so that an edited document does not require
+ *  indexing the whole collection again. An updated document is deleted and
+ *  indexed again under a new docID.
+ *
+ *  Every change holds the write lock of the engine while it is made, and is
+ *  searchable as soon as the call returns. The updater can also watch the
+ *  indexed directories and apply the changes it finds in their files.
+ */
+public class IndexUpdater {
+
+	Engine engine;
+
+	/** The index receiving the changes */
+	SegmentedIndex segments;
+
+	/** Indexes the new documents into the segmented index */
+	Indexer indexer;
+
+	/** DocIDs of the documents in the index, by file name */
+	HashMap<String,Integer> docIDs = new HashMap<>();
+
+	public IndexUpdater(Engine engine, SegmentedIndex segments) {
+		this.engine = engine;
+		this.segments = segments;
+		indexer = new Indexer(segments, engine.patterns_file, engine.kgramindex, engine.forwardindex);
+
+		int nextDocID = 0;
+		for (Map.Entry<Integer,String> entry : Index.docNames.entrySet()) {
+			docIDs.put(entry.getValue(), entry.getKey());
+			nextDocID = Math.max(nextDocID, entry.getKey() + 1);
+		}
+		indexer.setNextDocID(nextDocID);
+	}
+
+	/**
+	 *  Indexes a new document. A document already in the index is updated.
+	 *
+	 *  @return the docID of the document
+	 */
+	public int addDocument(File f) {
+		engine.indexLock.writeLock().lock();
+		try {
+			Integer old = docIDs.get(f.getPath());
+			if (old != null)
+				remove(old);
+			int docID = indexer.indexFile(f);
+			docIDs.put(f.getPath(), docID);
+			commit();
+			return docID;
+		}
+		finally {
+			engine.indexLock.writeLock().unlock();
+		}
+	}
+
+	/** Indexes a document again after it has changed */
+	public int updateDocument(File f) {
+		return addDocument(f);
+	}
+
+	/**
+	 *  Deletes a document from the index.
+	 *
+	 *  @return false if the document was not in the index
+	 */
+	public boolean deleteDocument(String path) {
+		engine.indexLock.writeLock().lock();
+		try {
+			Integer docID = docIDs.remove(path);
+			if (docID == null)
+				return false;
+			remove(docID);
+			commit();
+			return true;
+		}
+		finally {
+			engine.indexLock.writeLock().unlock();
+		}
+	}
+
+	/** Tombstones a document and forgets its name and length */
+	private void remove(int docID) {
+		segments.delete(docID);
+		engine.forwardindex.removeDocument(docID);
+		Index.docNames.remove(docID);
+		Index.docLengths.remove(docID);
+	}
+
+	/**
+	 *  Makes the changes visible: moves the index to a new generation, which
+	 *  drops the postings of the search sessions, and drops the champion
+	 *  lists, which do not know the new documents. The next PageRank
+	 *  refresh builds them again from the live index. The permuterm index,
+	 *  if any, gets the rotations of the new terms.
+	 */
+	private void commit() {
+		segments.cleanup();
+		engine.searcher.championindex = null;
+		PermutermIndex permuterm = engine.searcher.permuterm;
+		if (permuterm != null)
+			engine.searcher.permuterm = permuterm.extend(engine.kgramindex);
+	}
+
+	/* ----------------------------------------------- */
+
+	/**
+	 *  Applies the changes made to the files of <code>dirNames</code> since
+	 *  <code>since</code>: new files are added, files modified since then are
+	 *  updated and files that disappeared are deleted.
+	 *
+	 *  @return the number of documents added, updated or deleted
+	 */
+	public int scan(ArrayList<String> dirNames, long since) {
+		HashSet<String> seen = new HashSet<>();
+		int changes = 0;
+		for (String dirName : dirNames)
+			changes += scan(new File(dirName), since, seen);
+
+		ArrayList<String> gone = new ArrayList<>();
+		engine.indexLock.readLock().lock();
+		try {
+			for (String path : docIDs.keySet()) {
+				if (!seen.contains(path))
+					gone.add(path);
+			}
+		}
+		finally {
+			engine.indexLock.readLock().unlock();
+		}
+		for (String path : gone) {
+			if (deleteDocument(path))
+				changes++;
+		}
+		return changes;
+	}
+
+	/** Visits the files like {@link Indexer#processFiles} does, to get the same names */
+	private int scan(File f, long since, HashSet<String> seen) {
+		if (!f.canRead())
+			return 0;
+		if (f.isDirectory()) {
+			int changes = 0;
+			String[] fs = f.list();
+			if (fs != null) {
+				for (String name : fs)
+					changes += scan(new File(f, name), since, seen);
+			}
+			return changes;
+		}
+
+		seen.add(f.getPath());
+		boolean known;
+		engine.indexLock.readLock().lock();
+		try {
+			known = docIDs.containsKey(f.getPath());
+		}
+		finally {
+			engine.indexLock.readLock().unlock();
+		}
+		if (known && f.lastModified() < since)
+			return 0;
+		addDocument(f);
+		return 1;
+	}
+
+	/**
+	 *  Starts a thread scanning <code>dirNames</code> for changes every
+	 *  <code>seconds</code> seconds. The first scan picks the changes made
+	 *  since <code>since</code>, usually the time the index was built.
+	 */
+	public void startWatching(ArrayList<String> dirNames, int seconds, long since) {
+		Thread watcher = new Thread(() -> {
+			long last = since;
+			while (true) {
+				try {
+					long start = System.currentTimeMillis();
+					int changes = scan(dirNames, last);
+					last = start;
+					if (changes > 0)
+						System.err.println(changes + " documents updated, " + segments.numSegments() + " segments");
+					Thread.sleep(seconds * 1000L);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "index watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+}
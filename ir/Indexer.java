@@ -27,9 +27,22 @@ public class Indexer {
     /** The kgram index to be built by this Indexer. */
     KGramIndex kgramindex;
     
+    /** The forward index to be built by this Indexer, if any. */
+    ForwardIndex forwardindex;
+    
     /** The next docID to be generated. */
     private int lastDocID = 0;
 
+    /** 
+     *  Shard indexed by this Indexer, out of numShards: the other documents
+     *  get a docID but are not read.
+     */
+    int shard = 0;
+    int numShards = 1;
+
+    /** Absolute paths of the files already in the index, skipped by processFiles, or null. */
+    HashSet<String> indexedPaths;
+
      /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file;
 
@@ -44,6 +57,12 @@ public class Indexer {
 		this.kgramindex = kgramindex;
     }
     
+    /** Constructor */
+    public Indexer( Index index, String patterns_file, KGramIndex kgramindex, ForwardIndex forwardindex) {
+		this( index, patterns_file, kgramindex );
+		this.forwardindex = forwardindex;
+    }
+    
     /** Constructor */
     public Indexer( Index index, String patterns_file) {
 		this.index = index;
@@ -56,6 +75,29 @@ public class Indexer {
 	return lastDocID++;
     }
 
+    /** Only indexes the documents of shard <code>shard</code> out of <code>numShards</code>. */
+    public void setShard( int shard, int numShards ) {
+	this.shard = shard;
+	this.numShards = numShards;
+    }
+
+    /** Makes the next document identifiers start at <code>docID</code>. */
+    public void setNextDocID( int docID ) {
+	lastDocID = docID;
+    }
+
+    /**
+     *  Makes processFiles skip the files already in the index, when new
+     *  documents are added to it. Files changed since they were indexed
+     *  are not indexed again, that is done by watching the directories.
+     */
+    public void skipIndexedFiles() {
+	indexedPaths = new HashSet<String>();
+	for ( String name : Index.docNames.values() ) {
+	    indexedPaths.add( new File( name ).getAbsolutePath() );
+	}
+    }
+
 
 
     /**
@@ -73,47 +115,67 @@ public class Indexer {
 			processFiles( new File( f, fs[i] ));
 		    }
 		}
+	    } else if ( indexedPaths != null && indexedPaths.contains( f.getAbsolutePath() )) {
+		// the document is already in the index
+	    } else if ( lastDocID % numShards != shard ) {
+		// the document belongs to another shard, only its docID is taken
+		generateDocID();
 	    } else {
-		// First register the document and get a docID
-		int docID = generateDocID();
-		if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
-		index.docNames.put( docID, f.getPath() );
+		indexFile( f );
+	    }
+	}
+    }
+
+
+    /**
+     *  Tokenizes and indexes the single file <code>f</code> under a new
+     *  document identifier.
+     *
+     *  @return the identifier of the document
+     */
+    public int indexFile( File f ) {
+	// First register the document and get a docID
+	int docID = generateDocID();
+	if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
+	index.docNames.put( docID, f.getPath() );
+	try {
+	    //  Read the first few bytes of the file to see if it is 
+	    // likely to be a PDF 
+	    Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
+	    char[] buf = new char[4];
+	    reader.read( buf, 0, 4 );
+	    reader.close();
+	    if ( buf[0] == '%' && buf[1]=='P' && buf[2]=='D' && buf[3]=='F' ) {
+		// We assume this is a PDF file
 		try {
-		    //  Read the first few bytes of the file to see if it is 
-		    // likely to be a PDF 
-		    Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-		    char[] buf = new char[4];
-		    reader.read( buf, 0, 4 );
-		    reader.close();
-		    if ( buf[0] == '%' && buf[1]=='P' && buf[2]=='D' && buf[3]=='F' ) {
-			// We assume this is a PDF file
-			try {
-			    String contents = extractPDFContents( f );
-			    reader = new StringReader( contents );
-			}
-			catch ( IOException e ) {
-			    // Perhaps it wasn't a PDF file after all
-			    reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-			}
-		    }
-		    else {
-			// We hope this is ordinary text
-			reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-		    }
-		    Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
-		    int offset = 0;
-		    while ( tok.hasMoreTokens() ) {
-			String token = tok.nextToken();
-			insertIntoIndex( docID, token, offset++ );
-		    }
-		    index.docLengths.put( docID, offset );
-		    reader.close();
+		    String contents = extractPDFContents( f );
+		    reader = new StringReader( contents );
 		}
 		catch ( IOException e ) {
-		    System.err.println( "Warning: IOException during indexing." );
+		    // Perhaps it wasn't a PDF file after all
+		    reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
 		}
 	    }
+	    else {
+		// We hope this is ordinary text
+		reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
+	    }
+	    Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
+	    int offset = 0;
+	    while ( tok.hasMoreTokens() ) {
+		String token = tok.nextToken();
+		insertIntoIndex( docID, token, offset++ );
+	    }
+	    index.docLengths.put( docID, offset );
+	    reader.close();
+	}
+	catch ( IOException e ) {
+	    System.err.println( "Warning: IOException during indexing." );
+	}
+	if ( forwardindex != null ) {
+	    forwardindex.endDocument( docID );
 	}
+	return docID;
     }
 
     
@@ -194,6 +256,8 @@ public class Indexer {
     public void insertIntoIndex( int docID, String token, int offset ) {
     	index.insert( token, docID, offset );
     	kgramindex.insert( token );
+    	if ( forwardindex != null )
+    		forwardindex.insert( token );
     }
 }
 	
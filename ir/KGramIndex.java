@@ -9,19 +9,41 @@ package ir;
 
 import java.io.*;
 import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class KGramIndex {
 
+    /** The k-gram index file name */
+    public static final String KGRAM_FNAME = "kgram";
+
+    /** Marks the beginning of a k-gram index file */
+    private static final int MAGIC = 0x4B47524D;
+
     /** Mapping from term ids to actual term strings */
     HashMap<Integer,String> id2term = new HashMap<Integer,String>();
 
     /** Mapping from term strings to term ids */
     HashMap<String,Integer> term2id = new HashMap<String,Integer>();
 
-    /** Index from k-grams to list of term ids that contain the k-gram */
-    HashMap<String,List<KGramPostingsEntry>> index = new HashMap<String,List<KGramPostingsEntry>>();
+    /**
+     *  Index from k-grams to list of term ids that contain the k-gram. Concurrent
+     *  since postings read from disk are added to it while searching.
+     */
+    ConcurrentHashMap<String,List<KGramPostingsEntry>> index = new ConcurrentHashMap<String,List<KGramPostingsEntry>>();
+
+    /** The k-gram index file mapped in memory, if the index was read from disk */
+    ByteBuffer mapped;
+
+    /** Position in the mapped file of the postings of every k-gram */
+    HashMap<String,Integer> kgramPtr = new HashMap<String,Integer>();
+
+    /** Length of every term, indexed by term id */
+    int[] termLengths = new int[1024];
 
     /** The ID of the last processed term */
     int lastTermID = -1;
@@ -92,24 +114,29 @@ public class KGramIndex {
     	
     	term2id.put(token, ++lastTermID);
     	id2term.put(lastTermID, token);
+    	if (lastTermID == termLengths.length)
+    		termLengths = Arrays.copyOf(termLengths, 2 * termLengths.length);
+    	termLengths[lastTermID] = token.length();
     	    	
     	int storedTermID;
     	String kgram;
+    	List<KGramPostingsEntry> postingsList;
     	token = "$" + token + "$";
     	for (int i = 0; i < token.length() - K + 1; i++) {
     		
     		kgram = token.substring(i, i + K);
+    		postingsList = getPostings(kgram);
     		
-    		if (!index.containsKey(kgram)) {
-    			ArrayList<KGramPostingsEntry> postingsList = new ArrayList<>();
+    		if (postingsList == null) {
+    			postingsList = new ArrayList<>();
     			postingsList.add(new KGramPostingsEntry(lastTermID));
     			
     			index.put(kgram, postingsList);
     		} 
     		else {
-    			storedTermID = index.get(kgram).get(index.get(kgram).size() - 1).tokenID;
+    			storedTermID = postingsList.get(postingsList.size() - 1).tokenID;
     			if (storedTermID != lastTermID)
-    				index.get(kgram).add(new KGramPostingsEntry(lastTermID));
+    				postingsList.add(new KGramPostingsEntry(lastTermID));
     		}
     		
     	}
@@ -117,10 +144,173 @@ public class KGramIndex {
 
     /** Get postings for the given k-gram */
     public List<KGramPostingsEntry> getPostings(String kgram) {
-    	if (!index.containsKey(kgram))
-    		return null;
+    	List<KGramPostingsEntry> postings = index.get(kgram);
+    	
+    	// postings of an index read from disk are decoded on first access,
+    	// concurrent readers decoding the same k-gram all get the first copy
+    	if (postings == null && mapped != null && kgramPtr.containsKey(kgram)) {
+    		postings = readPostings(kgramPtr.get(kgram));
+    		List<KGramPostingsEntry> previous = index.putIfAbsent(kgram, postings);
+    		if (previous != null)
+    			postings = previous;
+    	}
+    	
+    	return postings;
+    }
+
+    /**
+     *  Writes the k-gram index and the term mappings to the file <code>name</code>
+     *  of <code>dirname</code>, atomically.
+     *
+     *  The file starts with a header (magic, K, number of terms, number of k-grams),
+     *  followed by all terms in id order and by the k-grams, each one with its
+     *  postings stored as variable byte encoded gaps between term ids.
+     */
+    public void writeIndex(String dirname, String name) throws IOException {
+    	HashSet<String> kgrams = new HashSet<>(index.keySet());
+    	kgrams.addAll(kgramPtr.keySet());
+    	
+    	IndexManifest.writeAtomically(dirname, name, out -> {
+    		out.writeInt(MAGIC);
+    		out.writeInt(K);
+    		out.writeInt(lastTermID + 1);
+    		out.writeInt(kgrams.size());
+    		
+    		for (int id = 0; id <= lastTermID; id++) {
+    			VByte.writeString(out, id2term.get(id));
+    		}
+    		
+    		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    		DataOutputStream postingsOut = new DataOutputStream(bytes);
+    		for (String kgram : kgrams) {
+    			List<KGramPostingsEntry> postings = getPostings(kgram);
+    			int last = 0;
+    			
+    			bytes.reset();
+    			for (KGramPostingsEntry p : postings) {
+    				VByte.write(postingsOut, p.tokenID - last);
+    				last = p.tokenID;
+    			}
+    			
+    			VByte.writeString(out, kgram);
+    			VByte.write(out, postings.size());
+    			VByte.write(out, bytes.size());
+    			bytes.writeTo(out);
+    		}
+    	});
+    }
+
+    /**
+     *  Maps the k-gram index written by {@link #writeIndex} in memory. Terms are
+     *  read right away, the postings of a k-gram are decoded on the first
+     *  {@link #getPostings} call.
+     *
+     *  @return false if there is no file <code>name</code> in <code>dirname</code>,
+     *  or if it is damaged; the k-gram index is then empty
+     */
+    public boolean readIndex(String dirname, String name) {
+    	if (name == null)
+    		return false;
+    	File file = new File(dirname, name);
+    	if (!file.exists())
+    		return false;
     	
-    	return index.get(kgram);
+    	try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+    		MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    		
+    		if (buf.getInt() != MAGIC) {
+    			System.err.println("Not a k-gram index: " + file);
+    			clear();
+    			return false;
+    		}
+    		if (buf.getInt() != K) {
+    			System.err.println("The k-gram index on disk was built for a different K");
+    			clear();
+    			return false;
+    		}
+    		int numTerms = buf.getInt();
+    		int numKgrams = buf.getInt();
+    		
+    		id2term = new HashMap<Integer,String>(numTerms * 2);
+    		term2id = new HashMap<String,Integer>(numTerms * 2);
+    		termLengths = new int[Math.max(numTerms, 1024)];
+    		for (int id = 0; id < numTerms; id++) {
+    			String term = VByte.readString(buf);
+    			id2term.put(id, term);
+    			term2id.put(term, id);
+    			termLengths[id] = term.length();
+    		}
+    		lastTermID = numTerms - 1;
+    		
+    		index.clear();
+    		kgramPtr.clear();
+    		for (int i = 0; i < numKgrams; i++) {
+    			String kgram = VByte.readString(buf);
+    			kgramPtr.put(kgram, buf.position());
+    			VByte.read(buf);
+    			int len = VByte.read(buf);
+    			buf.position(buf.position() + len);
+    		}
+    		if (buf.position() != buf.limit())
+    			throw new IllegalStateException("trailing bytes");
+    		mapped = buf;
+    	}
+    	catch (IOException e) {
+    		e.printStackTrace();
+    		clear();
+    		return false;
+    	}
+    	catch (RuntimeException e) {
+    		System.err.println("Damaged k-gram index " + file + ": " + e);
+    		clear();
+    		return false;
+    	}
+    	return true;
+    }
+
+    /** Empties the k-gram index */
+    void clear() {
+    	id2term = new HashMap<Integer,String>();
+    	term2id = new HashMap<String,Integer>();
+    	termLengths = new int[1024];
+    	lastTermID = -1;
+    	index.clear();
+    	kgramPtr.clear();
+    	mapped = null;
+    }
+
+    /**
+     *  Decodes the postings of all the k-grams of an index read from disk, so
+     *  that it no longer depends on the mapped file.
+     */
+    public void decodeAll() {
+    	for (String kgram : kgramPtr.keySet())
+    		getPostings(kgram);
+    	mapped = null;
+    	kgramPtr.clear();
+    }
+
+    /** Builds the k-gram index again from the terms of the inverted index, when its file is lost. */
+    public void build(List<String> terms) {
+    	clear();
+    	for (String term : terms)
+    		insert(term);
+    }
+
+    /** Decodes the postings stored at position <code>ptr</code> of the mapped file */
+    private ArrayList<KGramPostingsEntry> readPostings(int ptr) {
+    	ByteBuffer buf = mapped.duplicate();
+    	buf.position(ptr);
+    	
+    	int size = VByte.read(buf);
+    	VByte.read(buf);
+    	ArrayList<KGramPostingsEntry> postings = new ArrayList<>(size);
+    	int tokenID = 0;
+    	for (int i = 0; i < size; i++) {
+    		tokenID += VByte.read(buf);
+    		postings.add(new KGramPostingsEntry(tokenID));
+    	}
+    	return postings;
     }
 
     /** Get id of a term */
@@ -128,6 +318,11 @@ public class KGramIndex {
         return term2id.get(term);
     }
 
+    /** Get the length of the term with the given id */
+    public int getTermLength(int id) {
+        return termLengths[id];
+    }
+
     /** Get a term by the given id */
     public String getTermByID(Integer id) {
         return id2term.get(id);
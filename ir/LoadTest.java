@@ -0,0 +1,358 @@
+package ir;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ *  Drives the engine's searcher in-process with the queries of a query log
+ *  (in the format of {@link BatchRunner}), for a fixed time, and reports
+ *  the latency percentiles, the throughput and the garbage collection
+ *  pauses of the run.
+ *
+ *  In a closed loop, <code>numClients</code> clients each send the next
+ *  query as soon as they have the answer to the previous one: this
+ *  measures the capacity of the engine. In an open loop, the queries
+ *  arrive at the target rate whether or not the engine keeps up, like the
+ *  queries of independent users, and wait for one of the
+ *  <code>numClients</code> workers. The latency of a query is then
+ *  counted from the time it was due to be sent, so that a stall shows up
+ *  in the latency of every query it delays, and not only of the one it
+ *  happened in.
+ *
+ *  Like the GUI, a client asks for spelling corrections when a query finds
+ *  nothing, which is part of the latency of the query. The queries of the
+ *  warmup period are not counted.
+ *
+ *  Latencies are recorded in nanoseconds by HdrHistogram recorders, which
+ *  the clients share without locking, with 3 significant digits.
+ */
+public class LoadTest {
+
+	Engine engine;
+
+	/** Runs the queries, under the read lock of the index */
+	BatchRunner runner;
+
+	/** Target number of queries per second, or 0 for a closed loop */
+	double targetQPS;
+
+	/** Number of clients in a closed loop, of workers in an open loop */
+	int numClients;
+
+	/** Duration of the warmup and of the measured run, in seconds */
+	double warmupSeconds, durationSeconds;
+
+	/** Allowed growth of the p99 latency over the baseline, in percent */
+	double tolerance = 10;
+
+	ArrayList<BatchRunner.BatchQuery> queries;
+
+	/** Index in the query log of the next query to send */
+	AtomicLong next = new AtomicLong();
+
+	/** Significant digits of the recorded latencies */
+	static final int PRECISION = 3;
+
+	Recorder latencyRecorder = new Recorder(PRECISION);
+
+	/** Latencies by query type and ranking, as they are written in the log */
+	ConcurrentHashMap<String,Recorder> latencyRecordersByType = new ConcurrentHashMap<>();
+
+	/** Garbage collection pauses during the measured run */
+	Recorder gcPauseRecorder = new Recorder(PRECISION);
+
+	/** What the recorders recorded, taken at the end of the run */
+	Histogram latencies, gcPauses;
+	TreeMap<String,Histogram> latenciesByType = new TreeMap<>();
+
+	/** Collections and collection time in milliseconds of every collector during the measured run */
+	String[] collectorNames;
+	long[] gcCounts, gcTimes;
+
+	AtomicLong errors = new AtomicLong();
+
+	/** Start and end of the measured run, in System.nanoTime */
+	volatile long measureStart, measureEnd;
+
+	/** When the last query sent during the measured run was answered */
+	AtomicLong lastAnswer = new AtomicLong();
+
+	public LoadTest(Engine engine, String queryFile, double targetQPS, int numClients, double warmupSeconds, double durationSeconds) throws IOException {
+		this.engine = engine;
+		this.targetQPS = targetQPS;
+		this.numClients = numClients;
+		this.warmupSeconds = warmupSeconds;
+		this.durationSeconds = durationSeconds;
+		runner = new BatchRunner(engine, numClients, engine.batch_results);
+		queries = BatchRunner.readQueries(queryFile);
+		if (queries.isEmpty())
+			throw new IOException("no queries in " + queryFile);
+	}
+
+	/** The queries are sent in the order of the log, which is replayed as many times as needed */
+	BatchRunner.BatchQuery nextQuery() {
+		return queries.get((int) (next.getAndIncrement() % queries.size()));
+	}
+
+	static String typeName(BatchRunner.BatchQuery query) {
+		return query.queryType.toString().replace("_QUERY", "").toLowerCase(Locale.ROOT) + ";" +
+			query.rankingType.toString().replace("_", "").toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 *  Runs <code>query</code>, and counts its latency from
+	 *  <code>sendTime</code> if it was sent during the measured run.
+	 */
+	void execute(BatchRunner.BatchQuery query, long sendTime) {
+		try {
+			PostingsList answer = runner.search(query);
+			if (answer == null || answer.size() == 0) {
+				Query q = new Query(query.text);
+				engine.indexLock.readLock().lock();
+				try {
+					engine.speller.check(q, 10);
+				}
+				finally {
+					engine.indexLock.readLock().unlock();
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			errors.incrementAndGet();
+		}
+		long now = System.nanoTime(), latency = now - sendTime;
+		if (sendTime >= measureStart && sendTime < measureEnd) {
+			lastAnswer.accumulateAndGet(now, Math::max);
+			latency = Math.max(0, latency);
+			latencyRecorder.recordValue(latency);
+			latencyRecordersByType.computeIfAbsent(typeName(query), t -> new Recorder(PRECISION)).recordValue(latency);
+		}
+	}
+
+	/** Each client sends its next query when it has the answer to the last one */
+	void closedLoop(ExecutorService pool) throws Exception {
+		ArrayList<Future<?>> clients = new ArrayList<>();
+		for (int c = 0; c < numClients; c++) {
+			clients.add(pool.submit(() -> {
+				long now;
+				while ((now = System.nanoTime()) < measureEnd)
+					execute(nextQuery(), now);
+			}));
+		}
+		for (Future<?> client : clients)
+			client.get();
+	}
+
+	/**
+	 *  The queries are due at a fixed rate from the start of the warmup,
+	 *  and wait in the queue of the pool while all workers are busy.
+	 */
+	void openLoop(ExecutorService pool, long start) {
+		double interval = 1e9 / targetQPS;
+		for (long i = 0; ; i++) {
+			long due = start + (long) (i * interval);
+			if (due >= measureEnd)
+				break;
+			long wait = due - System.nanoTime();
+			if (wait > 0)
+				LockSupport.parkNanos(wait);
+			BatchRunner.BatchQuery query = nextQuery();
+			pool.execute(() -> execute(query, due));
+		}
+	}
+
+	/** Records the stop-the-world collections; concurrent cycles of the collector are not pauses */
+	NotificationListener gcListener = (Notification notification, Object handback) -> {
+		if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()))
+			return;
+		GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+		if (info.getGcName().contains("Concurrent") || info.getGcAction().contains("concurrent"))
+			return;
+		long now = System.nanoTime();
+		if (now >= measureStart && now < measureEnd)
+			gcPauseRecorder.recordValue(info.getGcInfo().getDuration() * 1000000);
+	};
+
+	/**
+	 *  Runs the load test.
+	 *
+	 *  @return the measured run, until the answer to its last query, in nanoseconds
+	 */
+	public long run() throws Exception {
+		List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+		for (GarbageCollectorMXBean collector : collectors) {
+			if (collector instanceof NotificationEmitter)
+				((NotificationEmitter) collector).addNotificationListener(gcListener, null, null);
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(numClients);
+		long start = System.nanoTime();
+		measureStart = start + (long) (warmupSeconds * 1e9);
+		measureEnd = measureStart + (long) (durationSeconds * 1e9);
+		long[] gcCounts = new long[collectors.size()], gcTimes = new long[collectors.size()];
+		Thread baseline = new Thread(() -> {
+			// the collector counters are read when the measured run starts
+			LockSupport.parkNanos(measureStart - System.nanoTime());
+			for (int i = 0; i < collectors.size(); i++) {
+				gcCounts[i] = collectors.get(i).getCollectionCount();
+				gcTimes[i] = collectors.get(i).getCollectionTime();
+			}
+		});
+		baseline.start();
+		try {
+			if (targetQPS > 0)
+				openLoop(pool, start);
+			else
+				closedLoop(pool);
+		}
+		finally {
+			pool.shutdown();
+			pool.awaitTermination(1, TimeUnit.DAYS);
+		}
+		baseline.join();
+		for (int i = 0; i < collectors.size(); i++) {
+			gcCounts[i] = collectors.get(i).getCollectionCount() - gcCounts[i];
+			gcTimes[i] = collectors.get(i).getCollectionTime() - gcTimes[i];
+		}
+		for (GarbageCollectorMXBean collector : collectors) {
+			if (collector instanceof NotificationEmitter)
+				((NotificationEmitter) collector).removeNotificationListener(gcListener);
+		}
+		this.gcCounts = gcCounts;
+		this.gcTimes = gcTimes;
+		collectorNames = new String[collectors.size()];
+		for (int i = 0; i < collectors.size(); i++)
+			collectorNames[i] = collectors.get(i).getName();
+
+		latencies = latencyRecorder.getIntervalHistogram();
+		gcPauses = gcPauseRecorder.getIntervalHistogram();
+		for (Map.Entry<String,Recorder> e : latencyRecordersByType.entrySet())
+			latenciesByType.put(e.getKey(), e.getValue().getIntervalHistogram());
+		return Math.max(measureEnd, lastAnswer.get()) - measureStart;
+	}
+
+	/* ----------------------------------------------- */
+
+	static String ms(double nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+	static void appendLatencies(StringBuilder json, Histogram h) {
+		json.append("{\"count\":").append(h.getTotalCount());
+		json.append(",\"mean\":").append(ms(h.getMean()));
+		json.append(",\"p50\":").append(ms(h.getValueAtPercentile(50)));
+		json.append(",\"p90\":").append(ms(h.getValueAtPercentile(90)));
+		json.append(",\"p99\":").append(ms(h.getValueAtPercentile(99)));
+		json.append(",\"p99.9\":").append(ms(h.getValueAtPercentile(99.9)));
+		json.append(",\"max\":").append(ms(h.getMaxValue())).append('}');
+	}
+
+	/**
+	 *  The report of the run, as one JSON object. The latencies are in
+	 *  milliseconds, over all queries and by query type and ranking.
+	 */
+	String report(long elapsed) {
+		StringBuilder json = new StringBuilder("{");
+		json.append("\"mode\":\"").append(targetQPS > 0 ? "open" : "closed").append('"');
+		json.append(",\"targetQPS\":").append(String.format(Locale.ROOT, "%.1f", targetQPS));
+		json.append(",\"clients\":").append(numClients);
+		json.append(",\"durationSeconds\":").append(String.format(Locale.ROOT, "%.3f", elapsed / 1e9));
+		json.append(",\"queries\":").append(latencies.getTotalCount());
+		json.append(",\"errors\":").append(errors.get());
+		json.append(",\"throughputQPS\":").append(String.format(Locale.ROOT, "%.1f", latencies.getTotalCount() / (elapsed / 1e9)));
+		json.append(",\"latencyMs\":");
+		appendLatencies(json, latencies);
+		json.append(",\"latencyMsByType\":{");
+		boolean first = true;
+		for (Map.Entry<String,Histogram> e : latenciesByType.entrySet()) {
+			if (!first)
+				json.append(',');
+			json.append(SearchServer.quote(e.getKey())).append(':');
+			appendLatencies(json, e.getValue());
+			first = false;
+		}
+		json.append("},\"gc\":{\"pauses\":").append(gcPauses.getTotalCount());
+		json.append(",\"pauseMsTotal\":").append(ms(gcPauses.getMean() * gcPauses.getTotalCount()));
+		json.append(",\"pauseMsMax\":").append(ms(gcPauses.getMaxValue()));
+		json.append(",\"collectors\":{");
+		for (int i = 0; i < collectorNames.length; i++) {
+			if (i > 0)
+				json.append(',');
+			json.append(SearchServer.quote(collectorNames[i]));
+			json.append(":{\"collections\":").append(gcCounts[i]).append(",\"timeMs\":").append(gcTimes[i]).append('}');
+		}
+		return json.append("}}}").toString();
+	}
+
+	/**
+	 *  Reads the p99 latency over all queries from a report written by an
+	 *  earlier run.
+	 *
+	 *  @return the latency in milliseconds, or -1 if the report has none
+	 */
+	static double baselineP99(String reportFile) throws IOException {
+		String report = new String(Files.readAllBytes(Paths.get(reportFile)), StandardCharsets.UTF_8);
+		Matcher m = Pattern.compile("\"latencyMs\":\\{[^}]*\"p99\":([0-9.]+)").matcher(report);
+		return m.find() ? Double.parseDouble(m.group(1)) : -1;
+	}
+
+	/**
+	 *  Writes the report of the run to <code>reportFile</code>, and compares
+	 *  its p99 latency with the one of <code>baselineFile</code>, if given.
+	 *
+	 *  @return false if the p99 latency grew by more than the tolerance
+	 */
+	public boolean report(long elapsed, String reportFile, String baselineFile) throws IOException {
+		String report = report(elapsed);
+		try (Writer out = new OutputStreamWriter(new FileOutputStream(reportFile), StandardCharsets.UTF_8)) {
+			out.write(report + "\n");
+		}
+		System.err.println(String.format(Locale.ROOT, "%s loop: %d queries in %.1f s, %.1f queries/s, %d errors",
+				targetQPS > 0 ? "Open" : "Closed", latencies.getTotalCount(), elapsed / 1e9, latencies.getTotalCount() / (elapsed / 1e9), errors.get()));
+		System.err.println(String.format(Locale.ROOT,
+				"latency ms: mean %s, p50 %s, p90 %s, p99 %s, p99.9 %s, max %s",
+				ms(latencies.getMean()), ms(latencies.getValueAtPercentile(50)), ms(latencies.getValueAtPercentile(90)),
+				ms(latencies.getValueAtPercentile(99)), ms(latencies.getValueAtPercentile(99.9)), ms(latencies.getMaxValue())));
+		System.err.println(String.format(Locale.ROOT, "gc: %d pauses, max %s ms", gcPauses.getTotalCount(), ms(gcPauses.getMaxValue())));
+		System.err.println("Report written to " + reportFile);
+
+		if (baselineFile == null)
+			return true;
+		double baseline = baselineP99(baselineFile), p99 = latencies.getValueAtPercentile(99) / 1e6;
+		if (baseline < 0) {
+			System.err.println("No p99 latency in the baseline " + baselineFile);
+			return true;
+		}
+		if (p99 > baseline * (1 + tolerance / 100)) {
+			System.err.println(String.format(Locale.ROOT, "p99 regression: %.3f ms, baseline %.3f ms, tolerance %.0f%%", p99, baseline, tolerance));
+			return false;
+		}
+		System.err.println(String.format(Locale.ROOT, "p99 %.3f ms, baseline %.3f ms: no regression", p99, baseline));
+		return true;
+	}
+}
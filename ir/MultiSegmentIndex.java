@@ -0,0 +1,253 @@
+package ir;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+/**
+ *  Persistent index made of immutable segments, each with its own
+ *  dictionary, postings and doc info files (see {@link IndexSegment}).
+ *
+ *  Every cleanup() writes the documents inserted since the previous one as
+ *  a new segment and commits it through the manifest, without rewriting the
+ *  existing segments. The segments hold increasing ranges of docIDs, so the
+ *  postings of a term are the concatenation of its postings in every
+ *  segment, which are read in parallel. When there are too many segments,
+ *  the two adjacent ones with the smallest postings are merged in the
+ *  background into a new segment, which replaces them in the next manifest.
+ *  A merge keeps the documents, so the derived files listed in the manifest
+ *  are kept; a new segment drops them.
+ */
+public class MultiSegmentIndex implements CommittedIndex {
+
+	/** Segments are merged when there are more of them than this */
+	static final int MAX_SEGMENTS = 10;
+
+	/** Postings of the documents inserted since the last commit */
+	HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
+
+	/** The committed segments, in docID order, replaced and never modified */
+	volatile List<IndexSegment> segments = new ArrayList<>();
+
+	/** Documents in the committed segments */
+	HashSet<Integer> committedDocs = new HashSet<>();
+
+	/** The manifest of the committed segments, null if nothing was committed */
+	IndexManifest manifest;
+
+	/** Next commit generation, also the id of the segment it creates */
+	AtomicLong nextGeneration = new AtomicLong(1);
+
+	/** Searches read the segments under the read lock, replaced segments are closed under the write lock */
+	ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** Runs the merges, one at a time */
+	ExecutorService merger = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "segment merger");
+		t.setDaemon(true);
+		return t;
+	});
+
+	AtomicBoolean merging = new AtomicBoolean();
+
+	/** Opens the segments listed in the manifest of the index directory, after verifying their checksums */
+	public MultiSegmentIndex() {
+		manifest = IndexManifest.read(PersistentHashedIndex.INDEXDIR);
+		if (manifest != null && !manifest.verify(PersistentHashedIndex.INDEXDIR)) {
+			System.err.println("The committed index is damaged, it must be rebuilt");
+			manifest = null;
+		}
+		if (manifest == null)
+			return;
+		nextGeneration.set(manifest.generation + 1);
+
+		ArrayList<IndexSegment> opened = new ArrayList<>();
+		try {
+			for (long id : manifest.segments()) {
+				IndexSegment segment = new IndexSegment(id);
+				segment.readDocInfo();
+				opened.add(segment);
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		segments = opened;
+		committedDocs.addAll(docNames.keySet());
+		System.err.println(opened.size() + " index segments");
+	}
+
+	/** Inserts a token into the postings of the next segment. */
+	public void insert(String token, int docID, int offset) {
+		PostingsList list = index.get(token);
+		if (list == null)
+			index.put(token, new PostingsList(docID, offset));
+		else
+			list.addEntry(docID, offset);
+	}
+
+	/**
+	 *  Returns the postings of a term in all the committed segments. The
+	 *  segments are read in parallel.
+	 */
+	public PostingsList getPostings(String token) {
+		lock.readLock().lock();
+		try {
+			List<IndexSegment> current = segments;
+			if (current.size() == 1)
+				return current.get(0).getPostings(token);
+
+			List<PostingsList> lists = current.parallelStream().map(s -> s.getPostings(token)).collect(Collectors.toList());
+			PostingsList result = null;
+			for (PostingsList list : lists) {
+				if (list == null)
+					continue;
+				if (result == null)
+					result = new PostingsList();
+				result.list.addAll(list.list);
+			}
+			return result;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 *  Writes the documents inserted since the last call as a new segment,
+	 *  commits it, and starts a merge if there are too many segments.
+	 */
+	public void cleanup() {
+		HashSet<Integer> newDocs = new HashSet<>(docNames.keySet());
+		newDocs.removeAll(committedDocs);
+		if (!newDocs.isEmpty()) {
+			System.err.print("Writing segment of " + newDocs.size() + " documents, " + index.size() + " unique words...");
+			try {
+				long id = nextGeneration.getAndIncrement();
+				IndexSegment segment = IndexSegment.write(id, index, newDocs);
+				synchronized (this) {
+					ArrayList<IndexSegment> next = new ArrayList<>(segments);
+					next.add(segment);
+					commit(next, false);
+				}
+				committedDocs.addAll(newDocs);
+				index.clear();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+			System.err.println("done!");
+		}
+		generation.incrementAndGet();
+
+		if (segments.size() > MAX_SEGMENTS && merging.compareAndSet(false, true))
+			merger.submit(this::merge);
+	}
+
+	/**
+	 *  Commits the segments <code>next</code> as a new generation, then makes
+	 *  them the segments searched. The derived files of the previous manifest
+	 *  are listed again if <code>keepDerived</code>. Called with the monitor of
+	 *  the index held, commits are made one at a time.
+	 */
+	private void commit(List<IndexSegment> next, boolean keepDerived) throws IOException {
+		IndexManifest committed = new IndexManifest(nextGeneration.getAndIncrement());
+		for (IndexSegment segment : next) {
+			for (String role : new String[] { PersistentHashedIndex.DICTIONARY_FNAME, PersistentHashedIndex.DATA_FNAME, PersistentHashedIndex.DOCINFO_FNAME }) {
+				String name = IndexManifest.fileName(role, segment.id);
+				if (manifest != null && manifest.contains(name))
+					committed.keep(manifest, name);
+				else
+					committed.add(PersistentHashedIndex.INDEXDIR, name);
+			}
+		}
+		if (keepDerived && manifest != null)
+			committed.keepDerived(manifest);
+		committed.commit(PersistentHashedIndex.INDEXDIR, manifest);
+		manifest = committed;
+
+		// segments no longer used are closed once no search reads them
+		List<IndexSegment> previous = segments;
+		lock.writeLock().lock();
+		try {
+			segments = next;
+			for (IndexSegment segment : previous) {
+				if (!next.contains(segment))
+					segment.close();
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public synchronized IndexManifest manifest() {
+		return manifest;
+	}
+
+	/** Commits the manifest again, listing the derived file <code>name</code> */
+	public synchronized void commitDerivedFile(String name) throws IOException {
+		IndexManifest committed = manifest.withDerivedFile(PersistentHashedIndex.INDEXDIR, name);
+		committed.commit(PersistentHashedIndex.INDEXDIR, manifest);
+		manifest = committed;
+	}
+
+	/** Returns the terms of all the committed segments */
+	public List<String> terms() throws IOException {
+		TreeSet<String> terms = new TreeSet<>();
+		lock.readLock().lock();
+		try {
+			for (IndexSegment segment : segments)
+				terms.addAll(segment.terms());
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+		return new ArrayList<>(terms);
+	}
+
+	/**
+	 *  Merges the two adjacent segments with the smallest postings, until
+	 *  there are at most MAX_SEGMENTS segments. The merge itself runs
+	 *  without any lock, the segments being immutable; new segments are only
+	 *  appended meanwhile, so the merged ones stay adjacent.
+	 */
+	void merge() {
+		try {
+			while (segments.size() > MAX_SEGMENTS) {
+				List<IndexSegment> current = segments;
+				int best = 0;
+				for (int i = 1; i + 1 < current.size(); i++) {
+					if (current.get(i).size() + current.get(i + 1).size() < current.get(best).size() + current.get(best + 1).size())
+						best = i;
+				}
+				IndexSegment first = current.get(best), second = current.get(best + 1);
+
+				IndexSegment merged = IndexSegment.merge(nextGeneration.getAndIncrement(), first, second);
+				synchronized (this) {
+					ArrayList<IndexSegment> next = new ArrayList<>(segments);
+					int i = next.indexOf(first);
+					next.set(i, merged);
+					next.remove(i + 1);
+					commit(next, true);
+				}
+				System.err.println("Merged index segments " + first.id + " and " + second.id);
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+		}
+		finally {
+			merging.set(false);
+		}
+	}
+}
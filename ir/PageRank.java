@@ -0,0 +1,481 @@
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+/**
+ *  Computes PageRank over a link graph, either exactly by power iteration or
+ *  approximately with Monte Carlo random walks run in parallel.
+ *
+ *  The graph is read from a link file where every line has the form
+ *  <code>from;to1,to2,...</code>, and is stored in compressed sparse row
+ *  form: the out-links of node <code>i</code> are
+ *  <code>links[linkStart[i]]</code> to <code>links[linkStart[i+1]-1]</code>.
+ */
+public class PageRank {
+
+	/** The different ways of computing PageRank */
+	public enum Method {
+		/** Power iteration until convergence */
+		POWER_ITERATION,
+		/** Walks from random nodes, ranks from their end points (MC1) */
+		MC_END_POINT_RANDOM,
+		/** Walks from every node, ranks from their end points (MC2) */
+		MC_END_POINT_CYCLIC,
+		/** Walks from every node, ranks from all the nodes visited (MC4) */
+		MC_COMPLETE_PATH,
+		/** Walks from random nodes, ranks from all the nodes visited (MC5) */
+		MC_COMPLETE_PATH_RANDOM
+	}
+
+	/** Marks the beginning of a binary rank file */
+	public static final int MAGIC = 0x5052414E;
+
+	/** Probability of following a link rather than jumping to a random node */
+	public static final double DAMPING = 0.85;
+
+	/** Power iteration stops when the ranks change less than this */
+	public static final double EPSILON = 0.0001;
+
+	/** Maximum number of power iterations */
+	public static final int MAX_NUMBER_OF_STEPS = 1000;
+
+	/** Number of nodes in the graph */
+	int numNodes = 0;
+
+	/** Names of the nodes, as found in the link file or in the titles file */
+	String[] nodeNames = new String[0];
+
+	/** Mapping from node names to node ids */
+	HashMap<String,Integer> nodeIDs = new HashMap<String,Integer>();
+
+	/** Position in <code>links</code> of the first out-link of every node */
+	int[] linkStart = new int[1];
+
+	/** Targets of the out-links, grouped by source node */
+	int[] links = new int[0];
+
+	/** Number of threads running random walks */
+	int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/** Seed of the random walks */
+	long seed = 1L;
+
+	/** The ranks computed last, indexed by node id */
+	double[] rank;
+
+	/* ----------------------------------------------- */
+
+	private int nodeID(String name) {
+		Integer id = nodeIDs.get(name);
+		if (id == null) {
+			id = nodeIDs.size();
+			nodeIDs.put(name, id);
+		}
+		return id;
+	}
+
+	/**
+	 *  Reads the link file and builds the compressed graph. Duplicate links
+	 *  are only stored once.
+	 */
+	public void readLinks(String filename) throws IOException {
+		int[] from = new int[1024], to = new int[1024];
+		int numLinks = 0;
+
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int idx = line.indexOf(";");
+				if (idx < 0)
+					continue;
+				int source = nodeID(line.substring(0, idx).trim());
+				for (String target : line.substring(idx + 1).split(",")) {
+					target = target.trim();
+					if (target.isEmpty())
+						continue;
+					if (numLinks == from.length) {
+						from = Arrays.copyOf(from, 2 * numLinks);
+						to = Arrays.copyOf(to, 2 * numLinks);
+					}
+					from[numLinks] = source;
+					to[numLinks++] = nodeID(target);
+				}
+			}
+		}
+
+		numNodes = nodeIDs.size();
+		nodeNames = new String[numNodes];
+		for (HashMap.Entry<String,Integer> entry : nodeIDs.entrySet())
+			nodeNames[entry.getValue()] = entry.getKey();
+
+		// counting sort of the links by source node
+		linkStart = new int[numNodes + 1];
+		for (int i = 0; i < numLinks; i++)
+			linkStart[from[i] + 1]++;
+		for (int i = 0; i < numNodes; i++)
+			linkStart[i + 1] += linkStart[i];
+		int[] next = Arrays.copyOf(linkStart, numNodes);
+		int[] sorted = new int[numLinks];
+		for (int i = 0; i < numLinks; i++)
+			sorted[next[from[i]]++] = to[i];
+
+		// remove duplicate links
+		int free = 0;
+		for (int i = 0; i < numNodes; i++) {
+			int start = linkStart[i], end = linkStart[i + 1];
+			Arrays.sort(sorted, start, end);
+			linkStart[i] = free;
+			for (int j = start; j < end; j++) {
+				if (j == start || sorted[j] != sorted[j - 1])
+					sorted[free++] = sorted[j];
+			}
+		}
+		linkStart[numNodes] = free;
+		links = Arrays.copyOf(sorted, free);
+
+		System.err.println("Read " + numNodes + " nodes and " + free + " links");
+	}
+
+	/**
+	 *  Replaces the node names with the titles found in <code>filename</code>,
+	 *  where every line has the form <code>name;title</code>.
+	 */
+	public void readTitles(String filename) throws IOException {
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int idx = line.indexOf(";");
+				if (idx < 0)
+					continue;
+				Integer id = nodeIDs.get(line.substring(0, idx).trim());
+				if (id != null)
+					nodeNames[id] = line.substring(idx + 1).trim();
+			}
+		}
+	}
+
+	/** Number of out-links of node <code>i</code> */
+	int outDegree(int i) {
+		return linkStart[i + 1] - linkStart[i];
+	}
+
+	/* ----------------------------------------------- */
+
+	/**
+	 *  Computes the ranks with <code>method</code>. The Monte Carlo methods run
+	 *  <code>walksPerNode</code> walks per node in total.
+	 */
+	public double[] compute(Method method, int walksPerNode) throws Exception {
+		switch (method) {
+		case POWER_ITERATION:
+			rank = powerIteration();
+			break;
+		default:
+			rank = monteCarlo(method, walksPerNode);
+		}
+		return rank;
+	}
+
+	/**
+	 *  Power iteration. Every new rank is the sum over the in-links, so the
+	 *  nodes can be updated in parallel. The rank of dangling nodes is spread
+	 *  over all nodes.
+	 */
+	double[] powerIteration() {
+		int n = numNodes;
+
+		// in-links of every node, in the same compressed form
+		int[] inStart = new int[n + 1];
+		for (int l : links)
+			inStart[l + 1]++;
+		for (int i = 0; i < n; i++)
+			inStart[i + 1] += inStart[i];
+		int[] next = Arrays.copyOf(inStart, n);
+		int[] inLinks = new int[links.length];
+		for (int i = 0; i < n; i++)
+			for (int j = linkStart[i]; j < linkStart[i + 1]; j++)
+				inLinks[next[links[j]]++] = i;
+
+		double[] x = new double[n], share = new double[n];
+		Arrays.fill(x, 1.0 / n);
+
+		for (int step = 0; step < MAX_NUMBER_OF_STEPS; step++) {
+			double dangling = 0;
+			for (int i = 0; i < n; i++) {
+				if (outDegree(i) == 0) {
+					dangling += x[i];
+					share[i] = 0;
+				} else {
+					share[i] = x[i] / outDegree(i);
+				}
+			}
+			final double base = (DAMPING * dangling + 1 - DAMPING) / n;
+			final double[] old = x;
+			double[] y = IntStream.range(0, n).parallel().mapToDouble(j -> {
+				double sum = 0;
+				for (int k = inStart[j]; k < inStart[j + 1]; k++)
+					sum += share[inLinks[k]];
+				return base + DAMPING * sum;
+			}).toArray();
+
+			double diff = 0;
+			for (int i = 0; i < n; i++)
+				diff += Math.abs(y[i] - old[i]);
+			x = y;
+			if (diff < EPSILON) {
+				System.err.println("Power iteration converged in " + (step + 1) + " steps");
+				break;
+			}
+		}
+		return x;
+	}
+
+	/**
+	 *  Runs the random walks of <code>method</code> on <code>numThreads</code>
+	 *  threads. Every thread has its own random generator, split from the same
+	 *  seed, and its own counters, which are summed at the end.
+	 */
+	double[] monteCarlo(Method method, int walksPerNode) throws Exception {
+		int n = numNodes;
+		long numWalks = (long) walksPerNode * n;
+		boolean cyclic = method == Method.MC_END_POINT_CYCLIC || method == Method.MC_COMPLETE_PATH;
+		boolean completePath = method == Method.MC_COMPLETE_PATH || method == Method.MC_COMPLETE_PATH_RANDOM;
+
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		ArrayList<Future<long[]>> results = new ArrayList<>();
+		SplittableRandom master = new SplittableRandom(seed);
+		try {
+			for (int t = 0; t < numThreads; t++) {
+				final SplittableRandom random = master.split();
+				final long first = numWalks * t / numThreads, last = numWalks * (t + 1) / numThreads;
+				results.add(pool.submit(() -> {
+					long[] visits = new long[n];
+					for (long w = first; w < last; w++) {
+						int node = cyclic ? (int) (w % n) : random.nextInt(n);
+						if (completePath)
+							walkCompletePath(node, random, visits);
+						else
+							visits[walkEndPoint(node, random)]++;
+					}
+					return visits;
+				}));
+			}
+
+			long[] visits = new long[n];
+			for (Future<long[]> result : results) {
+				long[] v = result.get();
+				for (int i = 0; i < n; i++)
+					visits[i] += v[i];
+			}
+
+			long total = 0;
+			for (long v : visits)
+				total += v;
+			double[] x = new double[n];
+			for (int i = 0; i < n; i++)
+				x[i] = (double) visits[i] / total;
+			return x;
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 *  Walks from <code>node</code> until the surfer gets bored, and returns the
+	 *  node where the walk ends. Dangling nodes jump to a random node.
+	 */
+	int walkEndPoint(int node, SplittableRandom random) {
+		while (random.nextDouble() < DAMPING) {
+			int degree = outDegree(node);
+			if (degree == 0)
+				node = random.nextInt(numNodes);
+			else
+				node = links[linkStart[node] + random.nextInt(degree)];
+		}
+		return node;
+	}
+
+	/**
+	 *  Walks from <code>node</code> until the surfer gets bored or reaches a
+	 *  dangling node, counting every node visited.
+	 */
+	void walkCompletePath(int node, SplittableRandom random, long[] visits) {
+		visits[node]++;
+		while (outDegree(node) > 0 && random.nextDouble() < DAMPING) {
+			node = links[linkStart[node] + random.nextInt(outDegree(node))];
+			visits[node]++;
+		}
+	}
+
+	/* ----------------------------------------------- */
+
+	/**
+	 *  Writes the ranks as lines <code>name;rank</code>, the format read by
+	 *  <code>Engine.readPageRank</code>.
+	 */
+	public void writeRanks(String filename) throws IOException {
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8))) {
+			for (int i = 0; i < numNodes; i++)
+				out.write(nodeNames[i] + ";" + rank[i] + "\n");
+		}
+	}
+
+	/**
+	 *  Writes the ranks in binary form, indexed by the docIDs of the index whose
+	 *  document names are in <code>docNames</code>. A node matches a document
+	 *  when its name is the file name at the end of the document path.
+	 *  Documents without a node get rank 0.
+	 */
+	public void writeBinaryRanks(String filename, HashMap<Integer,String> docNames) throws IOException {
+		int numDocs = 0;
+		for (int docID : docNames.keySet())
+			numDocs = Math.max(numDocs, docID + 1);
+
+		HashMap<String,Integer> byName = new HashMap<String,Integer>();
+		for (int i = 0; i < numNodes; i++)
+			byName.put(nodeNames[i], i);
+
+		double[] ranks = new double[numDocs];
+		for (HashMap.Entry<Integer,String> entry : docNames.entrySet()) {
+			Integer id = byName.get(fileName(entry.getValue()));
+			if (id != null)
+				ranks[entry.getKey()] = rank[id];
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(numDocs);
+			for (double r : ranks)
+				out.writeDouble(r);
+		}
+	}
+
+	/**
+	 *  Reads a rank file written by {@link #writeBinaryRanks}.
+	 *
+	 *  @return the ranks indexed by docID, or null if the file is not a binary rank file
+	 */
+	public static double[] readBinaryRanks(String filename) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)))) {
+			if (in.readInt() != MAGIC)
+				return null;
+			double[] ranks = new double[in.readInt()];
+			for (int i = 0; i < ranks.length; i++)
+				ranks[i] = in.readDouble();
+			return ranks;
+		}
+		catch (EOFException e) {
+			return null;
+		}
+	}
+
+	/** Returns the file name at the end of a path */
+	static String fileName(String path) {
+		return path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1);
+	}
+
+	/**
+	 *  Reads the document names of a persistent index from its docInfo files,
+	 *  where every line has the form <code>docID;path;length</code>. If
+	 *  <code>filename</code> is the index directory, the docInfo files are
+	 *  those of the manifest, one per segment of a segmented index.
+	 */
+	static HashMap<Integer,String> readDocNames(String filename) throws IOException {
+		ArrayList<File> files = new ArrayList<File>();
+		if (new File(filename).isDirectory()) {
+			// the index may be in use, nothing is cleaned up
+			IndexManifest manifest = IndexManifest.read(filename, false);
+			if (manifest == null)
+				files.add(new File(filename, PersistentHashedIndex.DOCINFO_FNAME));
+			else
+				for (String name : manifest.files(PersistentHashedIndex.DOCINFO_FNAME))
+					files.add(new File(filename, name));
+		}
+		else
+			files.add(new File(filename));
+
+		HashMap<Integer,String> docNames = new HashMap<Integer,String>();
+		for (File file : files) {
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					String[] data = line.split(";");
+					docNames.put(Integer.parseInt(data[0]), data[1]);
+				}
+			}
+		}
+		return docNames;
+	}
+
+	/* ----------------------------------------------- */
+
+	private static HashMap<String,String> decodeArgs( String[] args ) {
+		HashMap<String,String> decodedArgs = new HashMap<String,String>();
+		int i=0;
+		while ( i < args.length ) {
+			String option = args[i++];
+			if ( i < args.length && ( "-l".equals( option ) || "-t".equals( option ) || "-m".equals( option ) ||
+				"-w".equals( option ) || "-o".equals( option ) || "-b".equals( option ) ||
+				"-i".equals( option ) || "-j".equals( option ) || "-s".equals( option ))) {
+				decodedArgs.put( option, args[i++] );
+			}
+			else {
+				System.err.println( "Unknown option: " + option );
+				break;
+			}
+		}
+		return decodedArgs;
+	}
+
+	/**
+	 *  Usage: PageRank -l link_file [-t titles_file] [-m power|mc1|mc2|mc4|mc5]
+	 *  [-w walks_per_node] [-j threads] [-s seed] [-o rank_file]
+	 *  [-i index_dir|docInfo_file -b binary_rank_file]
+	 */
+	public static void main( String[] arguments ) throws Exception {
+		HashMap<String,String> args = decodeArgs( arguments );
+		if ( !args.containsKey( "-l" )) {
+			System.err.println( "Please give the name of the link file (-l)" );
+			System.exit( 1 );
+		}
+
+		HashMap<String,Method> methods = new HashMap<String,Method>();
+		methods.put( "power", Method.POWER_ITERATION );
+		methods.put( "mc1", Method.MC_END_POINT_RANDOM );
+		methods.put( "mc2", Method.MC_END_POINT_CYCLIC );
+		methods.put( "mc4", Method.MC_COMPLETE_PATH );
+		methods.put( "mc5", Method.MC_COMPLETE_PATH_RANDOM );
+		Method method = methods.get( args.getOrDefault( "-m", "mc4" ));
+		if ( method == null ) {
+			System.err.println( "Unknown method: " + args.get( "-m" ));
+			System.exit( 1 );
+		}
+
+		PageRank pr = new PageRank();
+		pr.numThreads = Integer.parseInt( args.getOrDefault( "-j", "" + pr.numThreads ));
+		pr.seed = Long.parseLong( args.getOrDefault( "-s", "1" ));
+		pr.readLinks( args.get( "-l" ));
+		if ( args.containsKey( "-t" ))
+			pr.readTitles( args.get( "-t" ));
+
+		long startTime = System.currentTimeMillis();
+		pr.compute( method, Integer.parseInt( args.getOrDefault( "-w", "10" )));
+		System.err.println( String.format( "%s done in %.1f seconds", method, ( System.currentTimeMillis() - startTime ) / 1000.0 ));
+
+		pr.writeRanks( args.getOrDefault( "-o", "pagerank.txt" ));
+		if ( args.containsKey( "-b" )) {
+			String docInfo = args.getOrDefault( "-i", PersistentHashedIndex.INDEXDIR );
+			pr.writeBinaryRanks( args.get( "-b" ), readDocNames( docInfo ));
+		}
+	}
+}
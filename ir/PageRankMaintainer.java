@@ -0,0 +1,335 @@
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ *  Keeps a Monte Carlo PageRank up to date while the link graph changes.
+ *
+ *  The complete path of every random walk is stored, together with the list
+ *  of walks passing through every node. When the out-links of some nodes
+ *  change, only the walks visiting those nodes are simulated again, from
+ *  their first visit to a changed node on. The rest of the walk did not
+ *  depend on the changed links, so the ranks stay those of a full
+ *  recomputation on the new graph.
+ */
+public class PageRankMaintainer {
+
+	/** Number of nodes in the graph */
+	int numNodes;
+
+	/** Names of the nodes, used as keys of the published ranks */
+	String[] nodeNames;
+
+	/** Mapping from the node names of the link file to node ids */
+	HashMap<String,Integer> nodeIDs;
+
+	/** Out-links of every node */
+	int[][] outLinks;
+
+	/** Number of walks starting from every node */
+	int walksPerNode;
+
+	/** Nodes visited by every walk, in order */
+	int[][] walks = new int[0][];
+	int numWalks = 0;
+
+	/**
+	 *  Walks passing through every node. A walk may appear more than once, or
+	 *  not pass through the node any more after being simulated again.
+	 */
+	int[][] walksThrough;
+	int[] numWalksThrough;
+
+	/** Number of visits to every node, over all walks */
+	long[] visits;
+	long totalVisits = 0;
+
+	/** Random generator of the walks simulated again */
+	SplittableRandom random;
+
+	/** Number of threads running the first simulation */
+	int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 *  Creates a maintainer for the graph read by <code>graph</code>, running
+	 *  <code>walksPerNode</code> walks from every node.
+	 */
+	public PageRankMaintainer(PageRank graph, int walksPerNode, long seed) {
+		this.walksPerNode = walksPerNode;
+		this.random = new SplittableRandom(seed);
+		numNodes = graph.numNodes;
+		nodeNames = Arrays.copyOf(graph.nodeNames, numNodes);
+		nodeIDs = new HashMap<String,Integer>(graph.nodeIDs);
+		outLinks = new int[numNodes][];
+		for (int i = 0; i < numNodes; i++)
+			outLinks[i] = Arrays.copyOfRange(graph.links, graph.linkStart[i], graph.linkStart[i + 1]);
+		walksThrough = new int[numNodes][];
+		numWalksThrough = new int[numNodes];
+		visits = new long[numNodes];
+	}
+
+	/* ----------------------------------------------- */
+
+	/**
+	 *  Simulates a complete path from <code>node</code>, until the surfer gets
+	 *  bored or reaches a dangling node. The path is appended to <code>path</code>
+	 *  from position <code>len</code> on.
+	 *
+	 *  @return the path, possibly reallocated
+	 */
+	int[] walk(int node, int[] path, int len, SplittableRandom random) {
+		for (;;) {
+			if (len == path.length)
+				path = Arrays.copyOf(path, 2 * len);
+			path[len++] = node;
+			if (outLinks[node].length == 0 || random.nextDouble() >= PageRank.DAMPING)
+				break;
+			node = outLinks[node][random.nextInt(outLinks[node].length)];
+		}
+		return Arrays.copyOf(path, len);
+	}
+
+	/**
+	 *  Runs all the walks of the current graph, in parallel. Every thread has
+	 *  its own random generator split from the maintainer's one.
+	 */
+	public void simulate() throws Exception {
+		numWalks = numNodes * walksPerNode;
+		walks = new int[numWalks][];
+		Arrays.fill(numWalksThrough, 0);
+		Arrays.fill(visits, 0);
+		totalVisits = 0;
+
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		ArrayList<Future<?>> results = new ArrayList<>();
+		try {
+			for (int t = 0; t < numThreads; t++) {
+				final SplittableRandom r = random.split();
+				final int first = (int) ((long) numWalks * t / numThreads), last = (int) ((long) numWalks * (t + 1) / numThreads);
+				results.add(pool.submit(() -> {
+					int[] path = new int[16];
+					for (int w = first; w < last; w++)
+						walks[w] = walk(w / walksPerNode, path, 0, r);
+				}));
+			}
+			for (Future<?> result : results)
+				result.get();
+		}
+		finally {
+			pool.shutdown();
+		}
+
+		for (int w = 0; w < numWalks; w++)
+			addVisits(w, 0);
+	}
+
+	/** Counts the visits of walk <code>w</code> from position <code>from</code> on */
+	private void addVisits(int w, int from) {
+		int[] path = walks[w];
+		for (int p = from; p < path.length; p++) {
+			int node = path[p];
+			visits[node]++;
+			totalVisits++;
+			int n = numWalksThrough[node];
+			if (n > 0 && walksThrough[node][n - 1] == w)
+				continue;
+			if (walksThrough[node] == null)
+				walksThrough[node] = new int[4];
+			else if (n == walksThrough[node].length)
+				walksThrough[node] = Arrays.copyOf(walksThrough[node], 2 * n);
+			walksThrough[node][numWalksThrough[node]++] = w;
+		}
+	}
+
+	/** Adds a node without out-links */
+	private int addNode(String name) {
+		int id = numNodes++;
+		nodeIDs.put(name, id);
+		if (id == outLinks.length) {
+			int size = 2 * id + 1;
+			nodeNames = Arrays.copyOf(nodeNames, size);
+			outLinks = Arrays.copyOf(outLinks, size);
+			walksThrough = Arrays.copyOf(walksThrough, size);
+			numWalksThrough = Arrays.copyOf(numWalksThrough, size);
+			visits = Arrays.copyOf(visits, size);
+		}
+		nodeNames[id] = name;
+		outLinks[id] = new int[0];
+		return id;
+	}
+
+	/* ----------------------------------------------- */
+
+	/**
+	 *  Replaces the out-links of the nodes in <code>changes</code>, a mapping
+	 *  from node names to the names of their new targets. Unknown nodes are
+	 *  added to the graph, and <code>walksPerNode</code> walks start from each
+	 *  of them.
+	 *
+	 *  @return the number of walks simulated
+	 */
+	public synchronized int update(HashMap<String,String[]> changes) {
+		boolean[] changed = new boolean[numNodes + 16];
+		int firstNewNode = numNodes;
+
+		for (HashMap.Entry<String,String[]> entry : changes.entrySet()) {
+			int node = nodeIDs.containsKey(entry.getKey()) ? nodeIDs.get(entry.getKey()) : addNode(entry.getKey());
+			int[] targets = new int[entry.getValue().length];
+			for (int i = 0; i < targets.length; i++) {
+				String target = entry.getValue()[i];
+				targets[i] = nodeIDs.containsKey(target) ? nodeIDs.get(target) : addNode(target);
+			}
+			Arrays.sort(targets);
+			int len = 0;
+			for (int i = 0; i < targets.length; i++)
+				if (i == 0 || targets[i] != targets[i - 1])
+					targets[len++] = targets[i];
+			outLinks[node] = Arrays.copyOf(targets, len);
+
+			if (node >= changed.length)
+				changed = Arrays.copyOf(changed, 2 * node + 1);
+			changed[node] = true;
+		}
+		if (changed.length < numNodes)
+			changed = Arrays.copyOf(changed, numNodes);
+
+		// walks visiting a changed node go on from their first visit to one
+		int[] stamp = new int[numWalks];
+		int resimulated = 0;
+		for (int node = 0; node < firstNewNode; node++) {
+			if (!changed[node])
+				continue;
+			for (int i = 0; i < numWalksThrough[node]; i++) {
+				int w = walksThrough[node][i];
+				if (stamp[w] != 0)
+					continue;
+				stamp[w] = 1;
+
+				int[] old = walks[w];
+				int p = 0;
+				while (p < old.length && !changed[old[p]])
+					p++;
+				if (p == old.length)
+					continue;
+
+				for (int q = p + 1; q < old.length; q++) {
+					visits[old[q]]--;
+					totalVisits--;
+				}
+				visits[old[p]]--;
+				totalVisits--;
+				walks[w] = walk(old[p], Arrays.copyOf(old, Math.max(p + 1, 16)), p, random);
+				addVisits(w, p);
+				resimulated++;
+			}
+		}
+
+		// walks from the new nodes
+		int[] path = new int[16];
+		int newWalks = (numNodes - firstNewNode) * walksPerNode;
+		if (numWalks + newWalks > walks.length)
+			walks = Arrays.copyOf(walks, Math.max(2 * walks.length, numWalks + newWalks));
+		for (int node = firstNewNode; node < numNodes; node++) {
+			for (int j = 0; j < walksPerNode; j++) {
+				walks[numWalks] = walk(node, path, 0, random);
+				addVisits(numWalks++, 0);
+			}
+		}
+
+		return resimulated + newWalks;
+	}
+
+	/**
+	 *  Reads a link file and returns the out-links that differ from the current
+	 *  graph, including nodes that lost all their out-links.
+	 */
+	public synchronized HashMap<String,String[]> diff(String filename) throws IOException {
+		HashMap<String,String[]> changes = new HashMap<String,String[]>();
+		boolean[] listed = new boolean[numNodes];
+
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int idx = line.indexOf(";");
+				if (idx < 0)
+					continue;
+				String source = line.substring(0, idx).trim();
+				ArrayList<String> targets = new ArrayList<>();
+				for (String target : line.substring(idx + 1).split(",")) {
+					if (!target.trim().isEmpty())
+						targets.add(target.trim());
+				}
+				String[] newLinks = targets.toArray(new String[0]);
+
+				Integer node = nodeIDs.get(source);
+				if (node == null) {
+					changes.put(source, newLinks);
+					continue;
+				}
+				listed[node] = true;
+
+				int[] ids = new int[newLinks.length];
+				boolean known = true;
+				for (int i = 0; i < ids.length && known; i++) {
+					Integer id = nodeIDs.get(newLinks[i]);
+					known = id != null;
+					ids[i] = known ? id : -1;
+				}
+				if (known) {
+					ids = Arrays.stream(ids).sorted().distinct().toArray();
+					if (Arrays.equals(ids, outLinks[node]))
+						continue;
+				}
+				changes.put(source, newLinks);
+			}
+		}
+
+		for (HashMap.Entry<String,Integer> entry : nodeIDs.entrySet()) {
+			int node = entry.getValue();
+			if (!listed[node] && outLinks[node].length > 0)
+				changes.put(entry.getKey(), new String[0]);
+		}
+		return changes;
+	}
+
+	/**
+	 *  Brings the ranks up to date with the link file <code>filename</code>.
+	 *
+	 *  @return the number of walks simulated
+	 */
+	public int refresh(String filename) throws IOException {
+		HashMap<String,String[]> changes = diff(filename);
+		if (changes.isEmpty())
+			return 0;
+		return update(changes);
+	}
+
+	/* ----------------------------------------------- */
+
+	/** Returns the current ranks, indexed by node id */
+	public synchronized double[] ranks() {
+		double[] ranks = new double[numNodes];
+		for (int i = 0; i < numNodes; i++)
+			ranks[i] = (double) visits[i] / totalVisits;
+		return ranks;
+	}
+
+	/**
+	 *  Returns a new map from node names to the current ranks. The map is not
+	 *  modified afterwards, so it can be handed to searchers running concurrently.
+	 */
+	public synchronized HashMap<String,Double> ranksByName() {
+		HashMap<String,Double> ranks = new HashMap<String,Double>(2 * numNodes);
+		for (int i = 0; i < numNodes; i++)
+			ranks.put(nodeNames[i], (double) visits[i] / totalVisits);
+		return ranks;
+	}
+}
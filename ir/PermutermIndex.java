@@ -0,0 +1,195 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ *  Permuterm index over the vocabulary of a k-gram index: all the rotations
+ *  of every term followed by an end marker, sorted. A wildcard pattern
+ *  <code>X*Y</code> matches exactly the terms having a rotation starting
+ *  with <code>Y</code>, the end marker and <code>X</code>, so its matches are
+ *  a range of the sorted rotations, found by binary search. Patterns with
+ *  more than one <code>*</code> scan the range of their first and last parts
+ *  and check the middle parts on every term.
+ */
+public class PermutermIndex {
+
+	/** Ends every term in the rotations, sorts before any other character */
+	static final char END = '\0';
+
+	/** Bits of a rotation used by the offset, the term id takes the others */
+	private static final int OFFSET_BITS = 20;
+
+	/** Terms by id, each one followed by the end marker */
+	String[] terms;
+
+	/** Number of terms of the vocabulary the index was built from */
+	int numTerms;
+
+	/** Sorted rotations, each one a term id and the offset the rotation starts at */
+	long[] rotations;
+
+	/** Builds the rotations of all the terms of <code>kgIndex</code> */
+	public PermutermIndex(KGramIndex kgIndex) {
+		numTerms = kgIndex.lastTermID + 1;
+		terms = new String[numTerms];
+		int numRotations = 0;
+		for (int id = 0; id < numTerms; id++) {
+			terms[id] = kgIndex.getTermByID(id) + END;
+			numRotations += terms[id].length();
+		}
+
+		Long[] sorted = new Long[numRotations];
+		int n = 0;
+		for (int id = 0; id < numTerms; id++) {
+			for (int offset = 0; offset < terms[id].length() && offset < (1 << OFFSET_BITS); offset++)
+				sorted[n++] = ((long) id << OFFSET_BITS) | offset;
+		}
+		Arrays.sort(sorted, 0, n, this::compareRotations);
+
+		rotations = new long[n];
+		for (int i = 0; i < n; i++)
+			rotations[i] = sorted[i];
+	}
+
+	/**
+	 *  Builds the index of the vocabulary of <code>kgIndex</code>, which grew
+	 *  since <code>previous</code> was built: the rotations of the new terms
+	 *  are sorted and merged with the previous ones. The previous index is
+	 *  not modified, searches may still be reading it.
+	 */
+	private PermutermIndex(PermutermIndex previous, KGramIndex kgIndex) {
+		numTerms = kgIndex.lastTermID + 1;
+		terms = Arrays.copyOf(previous.terms, numTerms);
+		int numRotations = 0;
+		for (int id = previous.numTerms; id < numTerms; id++) {
+			terms[id] = kgIndex.getTermByID(id) + END;
+			numRotations += terms[id].length();
+		}
+
+		Long[] sorted = new Long[numRotations];
+		int n = 0;
+		for (int id = previous.numTerms; id < numTerms; id++) {
+			for (int offset = 0; offset < terms[id].length() && offset < (1 << OFFSET_BITS); offset++)
+				sorted[n++] = ((long) id << OFFSET_BITS) | offset;
+		}
+		Arrays.sort(sorted, 0, n, this::compareRotations);
+
+		long[] old = previous.rotations;
+		rotations = new long[old.length + n];
+		int i = 0, j = 0;
+		for (int k = 0; k < rotations.length; k++) {
+			if (j == n || i < old.length && compareRotations(old[i], sorted[j]) <= 0)
+				rotations[k] = old[i++];
+			else
+				rotations[k] = sorted[j++];
+		}
+	}
+
+	/**
+	 *  Returns the index of the vocabulary of <code>kgIndex</code>, which holds
+	 *  the terms of this index and maybe new ones, with larger ids.
+	 */
+	public PermutermIndex extend(KGramIndex kgIndex) {
+		return kgIndex.lastTermID + 1 == numTerms ? this : new PermutermIndex(this, kgIndex);
+	}
+
+	private int termID(long rotation) {
+		return (int) (rotation >>> OFFSET_BITS);
+	}
+
+	private int offset(long rotation) {
+		return (int) (rotation & ((1 << OFFSET_BITS) - 1));
+	}
+
+	private int compareRotations(long r1, long r2) {
+		String s1 = terms[termID(r1)], s2 = terms[termID(r2)];
+		int o1 = offset(r1), o2 = offset(r2);
+		int len = Math.min(s1.length(), s2.length());
+		for (int i = 0; i < len; i++) {
+			char c1 = s1.charAt((o1 + i) % s1.length()), c2 = s2.charAt((o2 + i) % s2.length());
+			if (c1 != c2)
+				return c1 - c2;
+		}
+		return s1.length() - s2.length();
+	}
+
+	/**
+	 *  Compares the beginning of a rotation with <code>prefix</code>: 0 if the
+	 *  rotation starts with it, negative if the rotation sorts before it.
+	 */
+	private int comparePrefix(long rotation, String prefix) {
+		String s = terms[termID(rotation)];
+		int offset = offset(rotation);
+		int len = Math.min(s.length(), prefix.length());
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt((offset + i) % s.length());
+			if (c != prefix.charAt(i))
+				return c - prefix.charAt(i);
+		}
+		return s.length() < prefix.length() ? -1 : 0;
+	}
+
+	/** First rotation not sorting before <code>prefix</code> */
+	private int lowerBound(String prefix) {
+		int lo = 0, hi = rotations.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (comparePrefix(rotations[mid], prefix) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 *  Returns the ids of the terms matching a wildcard pattern, in
+	 *  increasing order.
+	 */
+	public int[] expand(String pattern) {
+		int first = pattern.indexOf('*'), last = pattern.lastIndexOf('*');
+		if (first < 0) {
+			first = last = pattern.length();
+		}
+		String head = pattern.substring(0, first);
+		String tail = last < pattern.length() ? pattern.substring(last + 1) : "";
+		String[] middle = first < last ? pattern.substring(first + 1, last).split("\\*") : new String[0];
+		String prefix = tail + END + head;
+
+		int[] ids = new int[16];
+		int n = 0;
+		for (int i = lowerBound(prefix); i < rotations.length && comparePrefix(rotations[i], prefix) == 0; i++) {
+			int id = termID(rotations[i]);
+			if (middle.length > 0 && !matchesMiddle(terms[id], head.length(), terms[id].length() - 1 - tail.length(), middle))
+				continue;
+			if (n == ids.length)
+				ids = Arrays.copyOf(ids, 2 * n);
+			ids[n++] = id;
+		}
+		ids = Arrays.copyOf(ids, n);
+		Arrays.sort(ids);
+		return ids;
+	}
+
+	/** Checks that the middle parts of a pattern appear in order between <code>from</code> and <code>to</code> */
+	private boolean matchesMiddle(String term, int from, int to, String[] middle) {
+		for (String part : middle) {
+			if (part.isEmpty())
+				continue;
+			int idx = term.indexOf(part, from);
+			if (idx < 0 || idx + part.length() > to)
+				return false;
+			from = idx + part.length();
+		}
+		return true;
+	}
+
+	/** Returns the terms matching a wildcard pattern */
+	public ArrayList<String> matchingTerms(String pattern) {
+		ArrayList<String> result = new ArrayList<>();
+		for (int id : expand(pattern))
+			result.add(terms[id].substring(0, terms[id].length() - 1));
+		return result;
+	}
+}
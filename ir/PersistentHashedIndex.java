@@ -10,6 +10,11 @@ package ir;
 import java.io.*;
 import java.util.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 
 /*
  *   Implements an inverted index as a hashtable on disk.
@@ -21,8 +26,14 @@ import java.nio.ByteBuffer;
  *   When words are read and indexed, they are first put in an ordinary,
  *   main-memory HashMap. When all words are read, the index is committed
  *   to disk.
+ *
+ *   The index is written to work files, which are then renamed to the
+ *   files of a new generation and listed in the manifest of the index
+ *   directory (see IndexManifest). The previous generation stays valid
+ *   until the manifest is replaced, and the checksums of the files are
+ *   verified when the index is opened.
  */
-public class PersistentHashedIndex implements Index {
+public class PersistentHashedIndex implements CommittedIndex {
 
     /** The directory where the persistent index files are stored. */
     public static final String INDEXDIR = "index";
@@ -56,6 +67,9 @@ public class PersistentHashedIndex implements Index {
 
     /** The cache as a main-memory hash map. */
     HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
+
+    /** The manifest of the committed index, or null if the index predates manifests. */
+    IndexManifest manifest;
     
     // ===================================================================
 
@@ -81,9 +95,23 @@ public class PersistentHashedIndex implements Index {
      *  If these files don't exist, they will be created. 
      */
     public PersistentHashedIndex() {
+        manifest = IndexManifest.read( INDEXDIR );
+        if ( manifest != null && !manifest.verify( INDEXDIR )) {
+            System.err.println( "The committed index is damaged, it must be rebuilt" );
+            manifest = null;
+        }
+        if ( manifest != null && !manifest.contains( manifest.fileName( DICTIONARY_FNAME ))) {
+            System.err.println( "The index has " + manifest.segments().size() + " segments, it must be opened with -index segmented" );
+            manifest = null;
+        }
         try {
-            dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME, "rw" );
-            dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "rw" );
+            if ( manifest != null ) {
+                dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + manifest.fileName( DICTIONARY_FNAME ), "r" );
+                dataFile = new RandomAccessFile( INDEXDIR + "/" + manifest.fileName( DATA_FNAME ), "r" );
+            } else {
+                dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME, "rw" );
+                dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "rw" );
+            }
         }
         catch ( IOException e ) {
             e.printStackTrace();
@@ -121,15 +149,28 @@ public class PersistentHashedIndex implements Index {
     }
 
 
+    /**
+     *  Reads <code>size</code> bytes at <code>ptr</code> with a positional read,
+     *  which leaves the file pointer alone so that concurrent searches do not
+     *  interfere with each other.
+     */
+    static byte[] readBytes( RandomAccessFile file, long ptr, int size ) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate( size );
+        FileChannel channel = file.getChannel();
+        while ( buffer.hasRemaining() ) {
+            if ( channel.read( buffer, ptr + buffer.position() ) < 0 )
+                throw new EOFException();
+        }
+        return buffer.array();
+    }
+
+
     /**
      *  Reads data from the data file
      */ 
     String readData(RandomAccessFile file, long ptr, int size ) {
         try {
-            file.seek( ptr );
-            byte[] data = new byte[size];
-            file.readFully( data );
-            return new String(data);
+            return new String( readBytes( file, ptr, size ));
         }
         catch ( IOException e ) {
             e.printStackTrace();
@@ -167,9 +208,7 @@ public class PersistentHashedIndex implements Index {
      */
     Entry readEntry(RandomAccessFile dictionaryFile, RandomAccessFile dataFile, long ptr) {  
     	try {    		
-    		dictionaryFile.seek(ptr);
-            byte[] data = new byte[ENTRY_BYTE_SIZE];
-            dictionaryFile.readFully( data );
+            byte[] data = readBytes( dictionaryFile, ptr, ENTRY_BYTE_SIZE );
 //            Entry e = byteArrayToEntry(data);
 //            if(e != null) System.err.println(e.token + " " + e.ptr + " " + e.size);
             return byteArrayToEntry(dataFile, data);
@@ -247,13 +286,20 @@ public class PersistentHashedIndex implements Index {
      * @throws IOException  { exception_description }
      */
     protected void writeDocInfo(int counter) throws IOException {
-    	FileOutputStream fout;
-    	if(counter < 0) fout = new FileOutputStream( INDEXDIR + "/docInfo" );
-    	else fout = new FileOutputStream( INDEXDIR + "/docInfo" + counter );
-        for (Map.Entry<Integer,String> entry : docNames.entrySet()) {
-            Integer key = entry.getKey();
-            String docInfoEntry = key + ";" + entry.getValue() + ";" + docLengths.get(key) + "\n";
-            fout.write(docInfoEntry.getBytes());
+    	if(counter < 0) writeDocInfo( DOCINFO_FNAME, docNames.keySet() );
+    	else writeDocInfo( DOCINFO_FNAME + counter, docNames.keySet() );
+    }
+
+
+    /**
+     *  Writes the names and lengths of the documents <code>docIDs</code> to
+     *  file <code>fname</code> of the index directory.
+     */
+    protected void writeDocInfo(String fname, Iterable<Integer> docIDs) throws IOException {
+    	FileOutputStream fout = new FileOutputStream( INDEXDIR + "/" + fname );
+        for (Integer key : docIDs) {
+            String docInfoEntry = key + ";" + docNames.get(key) + ";" + docLengths.get(key) + "\n";
+            fout.write(docInfoEntry.getBytes(StandardCharsets.UTF_8));
         }
         fout.close();
     }
@@ -266,8 +312,15 @@ public class PersistentHashedIndex implements Index {
      * @throws     IOException  { exception_description }
      */
     protected void readDocInfo() throws IOException {
-        File file = new File( INDEXDIR + "/docInfo" );
-        FileReader freader = new FileReader(file);
+        readDocInfo( new File( INDEXDIR + "/" + ( manifest != null ? manifest.fileName( DOCINFO_FNAME ) : DOCINFO_FNAME )));
+    }
+
+
+    /**
+     *  Reads the document names and lengths of the given doc info file.
+     */
+    protected void readDocInfo( File file ) throws IOException {
+        Reader freader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
         try (BufferedReader br = new BufferedReader(freader)) {
             String line;
             while ((line = br.readLine()) != null) {
@@ -280,14 +333,71 @@ public class PersistentHashedIndex implements Index {
     }
 
 
+    /**
+     *  Opens an empty work file, the index is written to work files before
+     *  being committed.
+     */
+    RandomAccessFile openWorkFile( String fname ) throws IOException {
+        RandomAccessFile file = new RandomAccessFile( INDEXDIR + "/" + fname, "rw" );
+        file.setLength( 0 );
+        return file;
+    }
+
+
+    /**
+     *  Commits the index written to the work files: renames them to the files
+     *  of a new generation, syncs them and commits a manifest listing them
+     *  with their checksums. The committed files are then opened for reading.
+     */
+    protected void commit() throws IOException {
+        dictionaryFile.close();
+        dataFile.close();
+        IndexManifest committed = new IndexManifest( manifest == null ? 1 : manifest.generation + 1 );
+        for ( String role : new String[] { DICTIONARY_FNAME, DATA_FNAME, DOCINFO_FNAME } ) {
+            Files.move( Paths.get( INDEXDIR, role ), Paths.get( INDEXDIR, committed.fileName( role )), StandardCopyOption.ATOMIC_MOVE );
+            committed.add( INDEXDIR, committed.fileName( role ));
+        }
+        committed.commit( INDEXDIR, manifest );
+        manifest = committed;
+        dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + manifest.fileName( DICTIONARY_FNAME ), "r" );
+        dataFile = new RandomAccessFile( INDEXDIR + "/" + manifest.fileName( DATA_FNAME ), "r" );
+    }
+
+
+    public IndexManifest manifest() {
+        return manifest;
+    }
+
+    /**
+     *  Commits the manifest again, listing the derived file <code>name</code>.
+     */
+    public synchronized void commitDerivedFile( String name ) throws IOException {
+        IndexManifest committed = manifest.withDerivedFile( INDEXDIR, name );
+        committed.commit( INDEXDIR, manifest );
+        manifest = committed;
+    }
+
+    /**
+     *  Returns the terms of the index, read from every used slot of the
+     *  dictionary hash table.
+     */
+    public List<String> terms() throws IOException {
+        ArrayList<String> terms = new ArrayList<>();
+        for ( long ptr = 0; ptr < dictionaryFile.length(); ptr += ENTRY_BYTE_SIZE ) {
+            Entry entry = readEntry( dictionaryFile, dataFile, ptr );
+            if ( entry != null ) {
+                terms.add( entry.token );
+            }
+        }
+        return terms;
+    }
+
+
     /**
      *  Write the index to files.
      */
     public void writeIndex(boolean scalable) {
-        int i, len, collisions = 0;
-        long dicptr;
-        String plString;
-        Entry dicEntry;
+        int collisions = 0;
         try {
         	if(!scalable) {
 	            // Write the 'docNames' and 'docLengths' hash maps to a file
@@ -296,23 +406,7 @@ public class PersistentHashedIndex implements Index {
         	
             // Write the dictionary and the postings list
             for(Map.Entry<String,PostingsList> entry : index.entrySet()) {
-            	
-            	//Write posting list
-            	plString = postingsListToString(entry.getKey(), entry.getValue());
-            	len = writeData(dataFile, plString, free);
-            	
-            	//Write Dictionary
-            	dicEntry = new Entry(entry.getKey(), free, len);
-            	dicptr = hash(entry.getKey(), 0, TABLESIZE);
-            	//deal with collisions
-            	i=0;
-            	while(readEntry(dictionaryFile, dataFile, dicptr) != null) {
-            		collisions++;
-            		dicptr = hash(entry.getKey(), ++i, TABLESIZE);
-            	}
-            	writeEntry(dictionaryFile, dicEntry, dicptr);
-            	
-            	free += len;
+            	collisions += writePostings(entry.getKey(), postingsListToString(entry.getKey(), entry.getValue()));
             }
             
         }
@@ -321,6 +415,32 @@ public class PersistentHashedIndex implements Index {
         }
         System.err.println( collisions + " collisions." );
     }
+
+
+    /**
+     *  Appends the postings of a term, in their stored form, to the data file
+     *  and adds the term to the dictionary.
+     *
+     *  @return the number of collisions in the dictionary
+     */
+    int writePostings(String token, String plString) {
+    	int i = 0;
+    	
+    	//Write posting list
+    	int len = writeData(dataFile, plString, free);
+    	
+    	//Write Dictionary
+    	Entry dicEntry = new Entry(token, free, len);
+    	long dicptr = hash(token, 0, TABLESIZE);
+    	//deal with collisions
+    	while(readEntry(dictionaryFile, dataFile, dicptr) != null) {
+    		dicptr = hash(token, ++i, TABLESIZE);
+    	}
+    	writeEntry(dictionaryFile, dicEntry, dicptr);
+    	
+    	free += len;
+    	return i;
+    }
     
     protected String postingsListToString(String t, PostingsList p) {
     	StringBuffer str = new StringBuffer();
@@ -441,7 +561,18 @@ public class PersistentHashedIndex implements Index {
     	
         System.err.println( index.keySet().size() + " unique words" );
         System.err.print( "Writing index to disk..." );
-        writeIndex(false);
+        try {
+            dictionaryFile.close();
+            dataFile.close();
+            dictionaryFile = openWorkFile( DICTIONARY_FNAME );
+            dataFile = openWorkFile( DATA_FNAME );
+            free = 0L;
+            writeIndex(false);
+            commit();
+        }
+        catch ( IOException e ) {
+            e.printStackTrace();
+        }
         System.err.println( "done!" );
         
         boolean errors = false;
@@ -449,6 +580,7 @@ public class PersistentHashedIndex implements Index {
     		if(!testPostingsList(entry.getValue(), getPostings(entry.getKey()), entry.getKey())) errors = true;
     	}
         if(!errors) System.out.println("No errors!!");
+        generation.incrementAndGet();
      }
 
 
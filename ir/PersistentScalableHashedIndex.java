@@ -9,6 +9,7 @@ import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.StringTokenizer;
 
@@ -30,6 +31,9 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex impleme
 	private int docLength;
 	
 	private String docName;
+	
+	/** True once the blocks of a new index are being written to the work files */
+	private boolean building = false;
     
     // ===================================================================
     
@@ -67,6 +71,19 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex impleme
      */
     public void insert( String token, int docID, int offset ) {
     	
+    	// the committed index stays untouched while the new one is built
+    	if(!building) {
+    		building = true;
+    		try {
+    			dictionaryFile.close();
+    			dataFile.close();
+    			dictionaryFile = openWorkFile( DICTIONARY_FNAME );
+    			dataFile = openWorkFile( DATA_FNAME );
+    		} catch (IOException e) {
+    			e.printStackTrace();
+    		}
+    	}
+    	
     	if(index.size() == BLOCKSIZE) {
     		counter++;
     		 
@@ -193,10 +210,11 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex impleme
 			}
     	}
     	
+    	// the merged work files become the committed index
     	counter = 0;
+    	building = false;
     	try {
-    		dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME, "r" );
-            dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "r" );
+    		commit();
 			for(long ptr=0; ptr<dictionaryFile.length(); ptr += ENTRY_BYTE_SIZE) {
 								
 				Entry entry1 = readEntry(dictionaryFile, dataFile, ptr);
@@ -217,6 +235,7 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex impleme
 		}
     	
     	System.err.println("done " + counter);
+    	generation.incrementAndGet();
      }
 
     /*
@@ -326,12 +345,11 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex impleme
 			threadDictionaryFile.close();
 			threadDataFile.close();
 			
-			Files.deleteIfExists(Paths.get(INDEXDIR + "/" + DICTIONARY_FNAME));
-			Files.deleteIfExists(Paths.get(INDEXDIR + "/" + DATA_FNAME));
+			// the merged files replace the work files in one rename each
+			Files.move(Paths.get(INDEXDIR + "/" + DICTIONARY_FNAME + "_support" + this.threadCounter), Paths.get(INDEXDIR + "/" + DICTIONARY_FNAME), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			Files.move(Paths.get(INDEXDIR + "/" + DATA_FNAME + "_support" + this.threadCounter), Paths.get(INDEXDIR + "/" + DATA_FNAME), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
 			Files.deleteIfExists(Paths.get(INDEXDIR + "/" + DICTIONARY_FNAME + "_temp" + this.threadCounter));
 			Files.deleteIfExists(Paths.get(INDEXDIR + "/" + DATA_FNAME + "_temp" + this.threadCounter));
-			Files.move(Paths.get(INDEXDIR + "/" + DICTIONARY_FNAME + "_support" + this.threadCounter), Paths.get(INDEXDIR + "/" + DICTIONARY_FNAME));
-			Files.move(Paths.get(INDEXDIR + "/" + DATA_FNAME + "_support" + this.threadCounter), Paths.get(INDEXDIR + "/" + DATA_FNAME));
 			
 			mergedDictionaryFile.close();
 			mergedDataFile.close();
@@ -341,9 +359,8 @@ public class PersistentScalableHashedIndex extends PersistentHashedIndex impleme
 			File oldDoc = new File( INDEXDIR + "/" + DOCINFO_FNAME);
 			File newDoc = new File( INDEXDIR + "/" + DOCINFO_FNAME + (this.threadCounter+1));
 			mergeFiles(out, oldDoc, newDoc);
-			Files.deleteIfExists(Paths.get(INDEXDIR + "/" + DOCINFO_FNAME));
+			Files.move(Paths.get(INDEXDIR + "/" + DOCINFO_FNAME + "_merged"), Paths.get(INDEXDIR + "/" + DOCINFO_FNAME), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
 			Files.deleteIfExists(Paths.get(INDEXDIR + "/" + DOCINFO_FNAME + (this.threadCounter+1)));
-			Files.move(Paths.get(INDEXDIR + "/" + DOCINFO_FNAME + "_merged"), Paths.get(INDEXDIR + "/" + DOCINFO_FNAME));
 			
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -12,6 +12,7 @@ import java.util.HashMap;
 import java.util.StringTokenizer;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.nio.charset.*;
 import java.io.*;
 
@@ -54,6 +55,11 @@ public class Query {
      */
     double beta = 1 - alpha;
     
+    /**
+     *  Maximum number of new terms added to the query by relevance feedback.
+     */
+    int maxExpansionTerms = 50;
+    
     
     /**
      *  Creates a new empty Query 
@@ -117,6 +123,12 @@ public class Query {
     /**
      *  Expands the Query using Relevance Feedback
      *
+     *  The term vectors of the relevant documents are taken from the forward
+     *  index and summed in an array indexed by term id. Documents missing from
+     *  the forward index are read and tokenized again. The original query terms
+     *  are kept, together with the <code>maxExpansionTerms</code> new terms of
+     *  highest weight.
+     *
      *  @param results The results of the previous query.
      *  @param docIsRelevant A boolean array representing which query results the user deemed relevant.
      *  @param engine The search engine object
@@ -125,8 +137,8 @@ public class Query {
     	HashMap<String, QueryTerm> querytermTmp = new HashMap<>();
     	HashMap<String, Integer> doctf;
     	ArrayList<Integer> relevantResults = new ArrayList<>();
+    	ForwardIndex forwardindex = engine.forwardindex;
     	String token;
-    	QueryTerm qt;
     	double idf, df, weight;
     	int N = Index.docLengths.size();
     	int n = 0;
@@ -149,10 +161,34 @@ public class Query {
 	    		}
 	    	}
 	    	
+	    	// weights of the feedback terms, indexed by forward index term id
+	    	double[] feedback = new double[forwardindex.numTerms()];
+	    	boolean[] isFeedbackTerm = new boolean[forwardindex.numTerms()];
+	    	int[] feedbackTerms = new int[forwardindex.numTerms()];
+	    	int numFeedbackTerms = 0;
+	    	
+	    	// weights of the feedback terms unknown to the forward index
+	    	HashMap<String, Double> otherTerms = new HashMap<>();
+	    	
 	    	for(int docID: relevantResults) {
-	    		doctf = engine.indexer.readDoctf(Index.docNames.get(docID));
 	    		len = Index.docLengths.get(docID);
+	    		int[] vector = forwardindex.getVector(docID);
+	    		
+	    		if (vector != null) {
+	    			for (int i = 0; i < vector.length; i += 2) {
+	    				idf = Math.log(N / (double) forwardindex.getDf(vector[i]));
+	    				weight = (beta / n) * vector[i+1] * idf / len;
+	    				
+	    				if (!isFeedbackTerm[vector[i]]) {
+	    					isFeedbackTerm[vector[i]] = true;
+	    					feedbackTerms[numFeedbackTerms++] = vector[i];
+	    				}
+	    				feedback[vector[i]] += weight;
+	    			}
+	    			continue;
+	    		}
 	    		
+	    		doctf = engine.indexer.readDoctf(Index.docNames.get(docID));
 	    		for (Map.Entry<String,Integer> entry:doctf.entrySet()) {
 	    			token = entry.getKey();
 	    			df = engine.index.getPostings(token).size();
@@ -160,16 +196,51 @@ public class Query {
 	    			
 	    			weight = (beta / n) * entry.getValue() * idf / len;
 	    			
-	    			if (querytermTmp.containsKey(token))
-	    				querytermTmp.get(token).weight += weight;
+	    			Integer id = forwardindex.term2id.get(token);
+	    			if (id != null && id < feedback.length) {
+	    				if (!isFeedbackTerm[id]) {
+	    					isFeedbackTerm[id] = true;
+	    					feedbackTerms[numFeedbackTerms++] = id;
+	    				}
+	    				feedback[id] += weight;
+	    			}
 	    			else {
-	    				qt = new QueryTerm(token, weight);
-						querytermTmp.put(token, qt);
+	    				otherTerms.put(token, otherTerms.getOrDefault(token, 0.0) + weight);
 	    			}
 	    		}
 	    		
-	    	}    	
+	    	}
+	    	
+	    	// keep only the maxExpansionTerms heaviest new terms
+	    	PriorityQueue<QueryTerm> expansion = new PriorityQueue<>(maxExpansionTerms + 1, (t1, t2) -> Double.compare(t1.weight, t2.weight));
+	    	for (int i = 0; i < numFeedbackTerms; i++) {
+	    		addExpansionTerm(querytermTmp, expansion, forwardindex.getTerm(feedbackTerms[i]), feedback[feedbackTerms[i]]);
+	    	}
+	    	for (Map.Entry<String,Double> entry : otherTerms.entrySet()) {
+	    		addExpansionTerm(querytermTmp, expansion, entry.getKey(), entry.getValue());
+	    	}
+	    	for (QueryTerm t : expansion) {
+	    		querytermTmp.put(t.term, t);
+	    	}
 	    	queryterm = new ArrayList<>(querytermTmp.values());
     	}
     }
-}
\ No newline at end of file
+    
+    /**
+     *  Adds <code>weight</code> to <code>token</code> if it is already a query term,
+     *  otherwise offers it to <code>expansion</code>, which holds the heaviest
+     *  <code>maxExpansionTerms</code> new terms with the lightest one on top.
+     */
+    private void addExpansionTerm(HashMap<String, QueryTerm> terms, PriorityQueue<QueryTerm> expansion, String token, double weight) {
+    	if (terms.containsKey(token)) {
+    		terms.get(token).weight += weight;
+    	}
+    	else if (expansion.size() < maxExpansionTerms) {
+    		expansion.add(new QueryTerm(token, weight));
+    	}
+    	else if (weight > expansion.peek().weight) {
+    		expansion.poll();
+    		expansion.add(new QueryTerm(token, weight));
+    	}
+    }
+}
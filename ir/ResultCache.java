@@ -0,0 +1,179 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ir.Query.QueryTerm;
+
+/**
+ *  Cache of search results, keyed by the normalized query terms and weights,
+ *  the query type and the ranking type. Only the docIDs and scores of the
+ *  results are kept, and every hit returns new postings entries.
+ *
+ *  An entry remembers the index generation it was computed at, and is
+ *  dropped when the generation has changed since. The cache is bounded by
+ *  the estimated size of its entries, least recently used entries go first.
+ */
+public class ResultCache {
+
+	/** Results longer than this are not cached */
+	static final int MAX_CACHED_RESULTS = 1000;
+
+	long maxBytes;
+	long bytes = 0;
+
+	long hits = 0, misses = 0, evictions = 0, invalidations = 0;
+
+	/** A cached answer: the first results of a query */
+	static class CachedResult {
+		final long generation;
+
+		/** Null if the query matched no document */
+		final int[] docIDs;
+		final double[] scores;
+
+		/** Number of results asked for, or MAX_VALUE if all the results are here */
+		final int maxResults;
+
+		final long size;
+
+		CachedResult(String key, long generation, PostingsList results, int maxResults) {
+			this.generation = generation;
+			if (results == null) {
+				docIDs = null;
+				scores = null;
+				this.maxResults = Integer.MAX_VALUE;
+			}
+			else {
+				int n = Math.min(results.size(), maxResults);
+				docIDs = new int[n];
+				scores = new double[n];
+				for (int i = 0; i < n; i++) {
+					docIDs[i] = results.get(i).docID;
+					scores[i] = results.get(i).score;
+				}
+				// the searcher cuts its answer to maxResults, so a full answer may be cut
+				this.maxResults = results.size() < maxResults ? Integer.MAX_VALUE : maxResults;
+			}
+			size = 96 + 2L * key.length() + (docIDs == null ? 0 : 12L * docIDs.length);
+		}
+
+		PostingsList toPostingsList(int maxResults) {
+			if (docIDs == null)
+				return null;
+			int n = Math.min(docIDs.length, maxResults);
+			ArrayList<PostingsEntry> list = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				PostingsEntry e = new PostingsEntry(docIDs[i]);
+				e.score = scores[i];
+				list.add(e);
+			}
+			return new PostingsList(list);
+		}
+	}
+
+	/** The entries, in access order */
+	LinkedHashMap<String,CachedResult> cache = new LinkedHashMap<>(256, 0.75f, true);
+
+	public ResultCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 *  Returns the key of a query. The terms of ranked and intersection
+	 *  queries are sorted, and repeated terms of a ranked query have their
+	 *  weights added, since neither changes the results. Phrase queries keep
+	 *  their term order.
+	 */
+	static String key(Query query, QueryType queryType, RankingType rankingType) {
+		StringBuilder key = new StringBuilder();
+		key.append(queryType).append('|');
+		if (queryType == QueryType.RANKED_QUERY)
+			key.append(rankingType);
+		key.append('|');
+
+		if (queryType == QueryType.PHRASE_QUERY) {
+			for (QueryTerm t : query.queryterm)
+				key.append(t.term).append(' ');
+		}
+		else if (queryType == QueryType.INTERSECTION_QUERY) {
+			TreeMap<String,Double> terms = new TreeMap<>();
+			for (QueryTerm t : query.queryterm)
+				terms.put(t.term, 1.0);
+			for (String term : terms.keySet())
+				key.append(term).append(' ');
+		}
+		else {
+			TreeMap<String,Double> terms = new TreeMap<>();
+			for (QueryTerm t : query.queryterm)
+				terms.merge(t.term, t.weight, Double::sum);
+			for (Map.Entry<String,Double> t : terms.entrySet())
+				key.append(t.getKey()).append('^').append(t.getValue()).append(' ');
+		}
+		return key.toString();
+	}
+
+	/**
+	 *  Returns the first <code>maxResults</code> results cached under
+	 *  <code>key</code> at the current generation, or null on a miss.
+	 *
+	 *  @param found set to true on a hit, since a hit can also return null
+	 */
+	public synchronized PostingsList get(String key, long generation, int maxResults, boolean[] found) {
+		found[0] = false;
+		CachedResult entry = cache.get(key);
+		if (entry != null && entry.generation != generation) {
+			cache.remove(key);
+			bytes -= entry.size;
+			invalidations++;
+			entry = null;
+		}
+		if (entry == null || entry.maxResults < maxResults) {
+			misses++;
+			return null;
+		}
+		hits++;
+		found[0] = true;
+		return entry.toPostingsList(maxResults);
+	}
+
+	/**
+	 *  Caches the results of a query computed at <code>generation</code>. If
+	 *  the generation has changed during the search, the entry is dropped by
+	 *  the next lookup.
+	 */
+	public synchronized void put(String key, long generation, PostingsList results, int maxResults) {
+		if (results != null && Math.min(results.size(), maxResults) > MAX_CACHED_RESULTS)
+			return;
+		CachedResult newer = cache.get(key);
+		if (newer != null && newer.generation > generation)
+			return;
+
+		CachedResult entry = new CachedResult(key, generation, results, maxResults);
+		CachedResult previous = cache.put(key, entry);
+		if (previous != null)
+			bytes -= previous.size;
+		bytes += entry.size;
+
+		Iterator<CachedResult> it = cache.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			bytes -= it.next().size;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized void clear() {
+		cache.clear();
+		bytes = 0;
+	}
+
+	public synchronized String toString() {
+		long total = hits + misses;
+		return String.format("result cache: %d queries, %d bytes, %d hits, %d misses (%.1f%% hits), %d evictions, %d invalidations",
+				cache.size(), bytes, hits, misses, total == 0 ? 0.0 : 100.0 * hits / total, evictions, invalidations);
+	}
+}
@@ -32,6 +32,9 @@ public class SearchGUI extends JFrame {
     /**  The results of a search query. */
     private PostingsList results;
 
+    /**  The query string of the current search session. */
+    private String lastQueryString = null;
+
     /**  The query type (either intersection, phrase, or ranked). */
     QueryType queryType = QueryType.INTERSECTION_QUERY;
 
@@ -141,22 +144,35 @@ public class SearchGUI extends JFrame {
                 // Turn the search string into a Query
                 String queryString = queryWindow.getText().toLowerCase().trim();
                 query = new Query( queryString );
-                // Take relevance feedback from the user into account (assignment 3)
+                // A new query string starts a new search session, feedback iterations
+                // on the same query reuse the postings already fetched.
+                if ( !queryString.equals( lastQueryString )) {
+                    engine.searcher.newSession();
+                    lastQueryString = queryString;
+                }
                 // Check which documents the user has marked as relevant.
+                boolean[] relevant = null;
                 if ( box != null ) {
-                    boolean[] relevant = new boolean[box.length];
+                    relevant = new boolean[box.length];
                     for ( int i=0; i<box.length; i++ ) {
                         if ( box[i] != null )
                             relevant[i] = box[i].isSelected();
                     }
-                    query.relevanceFeedback( results, relevant, engine );
                 }
-                // Search and print results. Access to the index is synchronized since
-                // we don't want to search at the same time we're indexing new files
-                // (this might corrupt the index).
+                // Search and print results. Searches share the read lock of the index
+                // since we don't want to search at the same time we're indexing new
+                // files (this might corrupt the index). Relevance feedback reads the
+                // forward index and the document lengths, so it takes the lock too.
                 long startTime = System.currentTimeMillis();
-                synchronized ( engine.indexLock ) {
+                engine.indexLock.readLock().lock();
+                try {
+                    // Take relevance feedback from the user into account (assignment 3)
+                    if ( relevant != null ) {
+                        query.relevanceFeedback( results, relevant, engine );
+                    }
                     results = engine.searcher.search( query, queryType, rankingType );
+                } finally {
+                    engine.indexLock.readLock().unlock();
                 }
                 long elapsedTime = System.currentTimeMillis() - startTime;
                 // Display the first few results + a button to see all results.
@@ -170,7 +186,13 @@ public class SearchGUI extends JFrame {
                     SpellingOptionsDialog dialog = new SpellingOptionsDialog(50);
 		    // To make this compile, you will need to add to the Engine class
 		    // an instance variable 'speller' of class SpellChecker 
-                    String[] corrections = engine.speller.check(query, 10);
+                    String[] corrections;
+                    engine.indexLock.readLock().lock();
+                    try {
+                        corrections = engine.speller.check(query, 10);
+                    } finally {
+                        engine.indexLock.readLock().unlock();
+                    }
                     if (corrections != null && corrections.length > 0) {
                         String choice = dialog.show(corrections, corrections[0]);
                         if (choice != null) {
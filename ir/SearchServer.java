@@ -0,0 +1,377 @@
+package ir;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ *  Headless query server. Exposes search, spelling correction and relevance
+ *  feedback of an {@link Engine} over HTTP, with JSON responses:
+ *
+ *  <pre>
+ *  GET /search?q=...&amp;type=ranked&amp;ranking=tfidf&amp;k=10
+ *  GET /spell?q=...&amp;limit=10
+ *  GET /feedback?q=...&amp;relevant=12,40&amp;ranking=tfidf&amp;k=10
+ *  GET /stats
+ *  </pre>
+ *
+ *  At most <code>maxConcurrent</code> requests are processed at a time, the
+ *  others wait for a free slot up to the request timeout and then get a 503.
+ *  A request taking longer than the timeout gets a 504; its search is left
+ *  to finish in the background, since interrupting it would close the
+ *  channels of the persistent index, and keeps its slot until it ends.
+ */
+public class SearchServer {
+
+	/** The engine holding the index, the searcher and the spelling indexes */
+	Engine engine;
+
+	HttpServer server;
+
+	/** Threads handling the HTTP exchanges */
+	ExecutorService handlers;
+
+	/** Threads running the searches, so that they can be timed out */
+	ExecutorService workers;
+
+	/** Free slots for requests being processed */
+	Semaphore permits;
+
+	int maxConcurrent;
+
+	/** Request timeout, in milliseconds */
+	long timeout;
+
+	public SearchServer(Engine engine, int port, int maxConcurrent, long timeout) throws IOException {
+		this.engine = engine;
+		this.maxConcurrent = maxConcurrent;
+		this.timeout = timeout;
+		permits = new Semaphore(maxConcurrent);
+
+		handlers = Executors.newFixedThreadPool(2 * maxConcurrent);
+		workers = Executors.newFixedThreadPool(maxConcurrent);
+		server = HttpServer.create(new InetSocketAddress(port), 4 * maxConcurrent);
+		server.setExecutor(handlers);
+		server.createContext("/search", exchange -> handle(exchange, this::search));
+		server.createContext("/spell", exchange -> handle(exchange, this::spell));
+		server.createContext("/feedback", exchange -> handle(exchange, this::feedback));
+		server.createContext("/stats", exchange -> handle(exchange, this::stats));
+	}
+
+	public void start() {
+		server.start();
+		System.err.println("Serving queries on port " + server.getAddress().getPort());
+	}
+
+	public void stop() {
+		server.stop(0);
+		handlers.shutdown();
+		workers.shutdown();
+	}
+
+	/* ----------------------------------------------- */
+
+	/** Computes the JSON response of a request from its parameters */
+	interface Handler {
+		String respond(HashMap<String,String> params) throws Exception;
+	}
+
+	/**
+	 *  Runs a request on a worker thread, within the concurrency limit and
+	 *  the timeout, and sends its response. The slot of the request is freed
+	 *  by the worker when the request ends, not when the timeout expires, so
+	 *  that searches still running count against the limit. Timed out tasks
+	 *  are not cancelled, so that every task taking a slot runs and frees it.
+	 */
+	void handle(HttpExchange exchange, Handler handler) throws IOException {
+		try {
+			long start = System.nanoTime();
+			HashMap<String,String> params = parseParams(exchange.getRequestURI().getRawQuery());
+			if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+				send(exchange, 503, error("too many concurrent requests"));
+				return;
+			}
+			Future<String> response;
+			try {
+				response = workers.submit(() -> {
+					try {
+						return handler.respond(params);
+					}
+					finally {
+						permits.release();
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				permits.release();
+				throw e;
+			}
+			long left = timeout - (System.nanoTime() - start) / 1000000;
+			try {
+				send(exchange, 200, response.get(Math.max(left, 0), TimeUnit.MILLISECONDS));
+			}
+			catch (TimeoutException e) {
+				send(exchange, 504, error("timeout"));
+			}
+			catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IllegalArgumentException)
+					send(exchange, 400, error(cause.getMessage()));
+				else {
+					cause.printStackTrace();
+					send(exchange, 500, error(String.valueOf(cause)));
+				}
+			}
+		}
+		catch (IllegalArgumentException e) {
+			send(exchange, 400, error(e.getMessage()));
+		}
+		catch (InterruptedException e) {
+			send(exchange, 503, error("interrupted"));
+		}
+		catch (RejectedExecutionException e) {
+			send(exchange, 503, error("server stopped"));
+		}
+	}
+
+	String search(HashMap<String,String> params) {
+		Query query = new Query(param(params, "q").toLowerCase().trim());
+		QueryType queryType = queryType(params.getOrDefault("type", "ranked"));
+		RankingType rankingType = rankingType(params.getOrDefault("ranking", "tfidf"));
+		int k = intParam(params, "k", 10);
+
+		long start = System.nanoTime();
+		PostingsList results = search(query, queryType, rankingType, k);
+		return resultsToJson(results, k, System.nanoTime() - start, null);
+	}
+
+	String spell(HashMap<String,String> params) {
+		Query query = new Query(param(params, "q").toLowerCase().trim());
+		int limit = intParam(params, "limit", 10);
+
+		String[] corrections;
+		engine.indexLock.readLock().lock();
+		try {
+			corrections = engine.speller.check(query, limit);
+		}
+		finally {
+			engine.indexLock.readLock().unlock();
+		}
+
+		// the checker pads its answer with empty corrections
+		StringBuilder json = new StringBuilder("{\"corrections\":[");
+		boolean first = true;
+		for (int i = 0; corrections != null && i < corrections.length; i++) {
+			if (corrections[i] == null || corrections[i].trim().isEmpty())
+				continue;
+			if (!first)
+				json.append(',');
+			json.append(quote(corrections[i].trim()));
+			first = false;
+		}
+		return json.append("]}").toString();
+	}
+
+	/**
+	 *  Expands a query with the documents given as relevant, then runs the
+	 *  expanded query.
+	 */
+	String feedback(HashMap<String,String> params) {
+		Query query = new Query(param(params, "q").toLowerCase().trim());
+		RankingType rankingType = rankingType(params.getOrDefault("ranking", "tfidf"));
+		int k = intParam(params, "k", 10);
+
+		PostingsList relevant = new PostingsList();
+		for (String docID : param(params, "relevant").split(",")) {
+			try {
+				relevant.addEntry(Integer.parseInt(docID.trim()));
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException("bad docID: " + docID);
+			}
+		}
+		boolean[] isRelevant = new boolean[relevant.size()];
+		Arrays.fill(isRelevant, true);
+
+		long start = System.nanoTime();
+		PostingsList results;
+		engine.indexLock.readLock().lock();
+		// the feedback round is one search session
+		engine.searcher.newSession();
+		try {
+			// checked under the lock, the updater may remove documents
+			for (int i = 0; i < relevant.size(); i++) {
+				int docID = relevant.get(i).docID;
+				if (!Index.docLengths.containsKey(docID))
+					throw new IllegalArgumentException("unknown docID: " + docID);
+			}
+			query.relevanceFeedback(relevant, isRelevant, engine);
+			results = engine.searcher.search(query, QueryType.RANKED_QUERY, rankingType, k);
+		}
+		finally {
+			engine.searcher.endSession();
+			engine.indexLock.readLock().unlock();
+		}
+		return resultsToJson(results, k, System.nanoTime() - start, query);
+	}
+
+	/** Reports the postings cache metrics, if the engine has a cache */
+	String stats(HashMap<String,String> params) {
+		StringBuilder json = new StringBuilder("{");
+		if (engine.searchindex instanceof CachedIndex) {
+			CachedIndex cache = (CachedIndex) engine.searchindex;
+			json.append("\"postingsCache\":{\"terms\":").append(cache.size());
+			json.append(",\"bytes\":").append(cache.bytes());
+			json.append(",\"hits\":").append(cache.hits());
+			json.append(",\"misses\":").append(cache.misses());
+			json.append(",\"evictions\":").append(cache.evictions()).append('}');
+		}
+		if (engine.searcher.resultcache != null) {
+			if (json.length() > 1)
+				json.append(',');
+			json.append("\"resultCache\":").append(quote(engine.searcher.resultcache.toString()));
+		}
+		return json.append('}').toString();
+	}
+
+	/** Searches under the read lock of the index */
+	PostingsList search(Query query, QueryType queryType, RankingType rankingType, int k) {
+		engine.indexLock.readLock().lock();
+		try {
+			return engine.searcher.search(query, queryType, rankingType, k);
+		}
+		finally {
+			engine.indexLock.readLock().unlock();
+		}
+	}
+
+	/* ----------------------------------------------- */
+
+	String resultsToJson(PostingsList results, int k, long nanos, Query expanded) {
+		StringBuilder json = new StringBuilder("{");
+		int size = results == null ? 0 : results.size();
+		json.append("\"total\":").append(size);
+		json.append(",\"millis\":").append(String.format(Locale.ROOT, "%.3f", nanos / 1e6));
+		if (expanded != null) {
+			json.append(",\"query\":[");
+			for (int i = 0; i < expanded.queryterm.size(); i++) {
+				Query.QueryTerm t = expanded.queryterm.get(i);
+				if (i > 0)
+					json.append(',');
+				json.append("{\"term\":").append(quote(t.term)).append(",\"weight\":").append(t.weight).append('}');
+			}
+			json.append(']');
+		}
+		json.append(",\"results\":[");
+		for (int i = 0; i < size && i < k; i++) {
+			PostingsEntry e = results.get(i);
+			if (i > 0)
+				json.append(',');
+			json.append("{\"docID\":").append(e.docID);
+			json.append(",\"name\":").append(quote(Index.docNames.get(e.docID)));
+			json.append(",\"score\":").append(e.score).append('}');
+		}
+		return json.append("]}").toString();
+	}
+
+	static String error(String message) {
+		return "{\"error\":" + quote(message) + "}";
+	}
+
+	/** Returns a JSON string literal */
+	static String quote(String s) {
+		if (s == null)
+			return "null";
+		StringBuilder out = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"': out.append("\\\""); break;
+				case '\\': out.append("\\\\"); break;
+				case '\n': out.append("\\n"); break;
+				case '\r': out.append("\\r"); break;
+				case '\t': out.append("\\t"); break;
+				default:
+					if (c < 0x20)
+						out.append(String.format("\\u%04x", (int) c));
+					else
+						out.append(c);
+			}
+		}
+		return out.append('"').toString();
+	}
+
+	static void send(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	/* ----------------------------------------------- */
+
+	static HashMap<String,String> parseParams(String rawQuery) {
+		HashMap<String,String> params = new HashMap<String,String>();
+		if (rawQuery == null)
+			return params;
+		for (String pair : rawQuery.split("&")) {
+			int idx = pair.indexOf('=');
+			if (idx < 0)
+				params.put(URLDecoder.decode(pair, StandardCharsets.UTF_8), "");
+			else
+				params.put(URLDecoder.decode(pair.substring(0, idx), StandardCharsets.UTF_8),
+						URLDecoder.decode(pair.substring(idx + 1), StandardCharsets.UTF_8));
+		}
+		return params;
+	}
+
+	static String param(HashMap<String,String> params, String name) {
+		String value = params.get(name);
+		if (value == null || value.trim().isEmpty())
+			throw new IllegalArgumentException("missing parameter: " + name);
+		return value;
+	}
+
+	static int intParam(HashMap<String,String> params, String name, int defaultValue) {
+		String value = params.get(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			int n = Integer.parseInt(value);
+			if (n <= 0)
+				throw new IllegalArgumentException("parameter must be positive: " + name);
+			return n;
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("bad parameter: " + name);
+		}
+	}
+
+	static QueryType queryType(String name) {
+		switch (name) {
+			case "intersection": return QueryType.INTERSECTION_QUERY;
+			case "phrase": return QueryType.PHRASE_QUERY;
+			case "ranked": return QueryType.RANKED_QUERY;
+			default: throw new IllegalArgumentException("unknown query type: " + name);
+		}
+	}
+
+	static RankingType rankingType(String name) {
+		switch (name) {
+			case "tfidf": return RankingType.TF_IDF;
+			case "pagerank": return RankingType.PAGERANK;
+			case "combination": return RankingType.COMBINATION;
+			default: throw new IllegalArgumentException("unknown ranking: " + name);
+		}
+	}
+}
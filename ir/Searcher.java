@@ -8,8 +8,19 @@
 package ir;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import ir.Query.QueryTerm;
 
@@ -24,7 +35,80 @@ public class Searcher {
     int K;
     KGramIndex kgramindex;
     
-    HashMap<String, Double> pageRank = new HashMap<>();
+    /** 
+     *  PageRank of the documents, indexed by docID, and the docIDs sorted by
+     *  decreasing PageRank. Both are replaced together, never modified, when
+     *  the ranks are refreshed.
+     */
+    static class StaticRank {
+    	final double[] rank;
+    	final int[] order;
+    	
+    	StaticRank(double[] rank, int[] order) {
+    		this.rank = rank;
+    		this.order = order;
+    	}
+    }
+    
+    volatile StaticRank staticRank = new StaticRank(new double[0], new int[0]);
+    
+    /** Number of times the PageRank was replaced. */
+    AtomicLong rankGeneration = new AtomicLong();
+    
+    /** Cache of the results of recent queries, if any. */
+    ResultCache resultcache;
+    
+    /** Weights of tf-idf and PageRank in a COMBINATION query. */
+    static final double COMBINATION_TFIDF_WEIGHT = 0.01;
+    static final double COMBINATION_PAGERANK_WEIGHT = 1.0;
+    
+    /** 
+     *  Champion lists used to stop COMBINATION queries early, if any. They are
+     *  only used while the PageRank they were built with is the current one.
+     */
+    volatile ChampionIndex championindex;
+    
+    /** 
+     *  Postings fetched during a search session, i.e. a query and the
+     *  following relevance feedback iterations, and the index generation
+     *  they were fetched in.
+     */
+    static class Session {
+    	HashMap<String, PostingsList> postings = new HashMap<>();
+    	long generation = Index.generation.get();
+    }
+    
+    /** 
+     *  The search session of every thread, if it has one. Searches outside a
+     *  session read the index, and its cache, directly: the postings of a
+     *  session are not bounded in bytes, so servers only keep them for one
+     *  request.
+     */
+    ThreadLocal<Session> session = new ThreadLocal<>();
+    
+    /** The session postings are forgotten when they hold more terms than this. */
+    static final int MAX_SESSION_TERMS = 10000;
+    
+    /** Permuterm index answering wildcard terms, if any, k-gram intersection otherwise. */
+    volatile PermutermIndex permuterm;
+    
+    /** 
+     *  Term ids matching recent wildcard patterns, in access order, and the
+     *  vocabulary size they were computed with. The cache is dropped when
+     *  terms are added to the k-gram index.
+     */
+    LinkedHashMap<String, int[]> wildcardCache = new LinkedHashMap<>(256, 0.75f, true);
+    int wildcardVocabulary = 0;
+    long wildcardCacheIDs = 0;
+    
+    /** Maximum number of term ids held by the wildcard cache. */
+    static final int MAX_WILDCARD_CACHE_IDS = 1 << 20;
+    
+    /** 
+     *  The shards of the index, if it is sharded and searched directly:
+     *  ranked queries then run on all the shards in parallel.
+     */
+    volatile ShardedIndex shards;
     
     /** Constructor */
     public Searcher( Index index) {
@@ -37,11 +121,130 @@ public class Searcher {
         this.K = kgramindex.K;
     }
     
+    /**
+     *  Sets the PageRank of the documents, indexed by docID. Documents without
+     *  a rank get 0. <code>docNames</code> is a copy of the document names,
+     *  which may change while the ranks are computed.
+     */
+    public void setPageRank(double[] ranks, Map<Integer, String> docNames) {
+    	int numDocs = ranks.length;
+    	for (int docID : docNames.keySet())
+    		numDocs = Math.max(numDocs, docID + 1);
+    	double[] rank = Arrays.copyOf(ranks, numDocs);
+    	
+    	Integer[] sorted = new Integer[numDocs];
+    	for (int i = 0; i < numDocs; i++)
+    		sorted[i] = i;
+    	Arrays.sort(sorted, (d1, d2) -> Double.compare(rank[d2], rank[d1]));
+    	int[] order = new int[numDocs];
+    	for (int i = 0; i < numDocs; i++)
+    		order[i] = sorted[i];
+    	
+    	staticRank = new StaticRank(rank, order);
+    	rankGeneration.incrementAndGet();
+    }
+    
+    /**
+     *  Generation of the search results: changes when the index or the PageRank
+     *  changes. Both counters only grow, so their sum changes whenever either does.
+     */
+    long generation() {
+    	return Index.generation.get() + rankGeneration.get();
+    }
+    
+    /**
+     *  Sets the PageRank of the documents from a map keyed by file name, for
+     *  the documents of a copy <code>docNames</code> of the document names.
+     */
+    public void setPageRank(HashMap<String, Double> pageRank, Map<Integer, String> docNames) {
+    	int numDocs = 0;
+    	for (int docID : docNames.keySet())
+    		numDocs = Math.max(numDocs, docID + 1);
+    	double[] ranks = new double[numDocs];
+    	for (Map.Entry<Integer, String> entry : docNames.entrySet()) {
+    		Double rank = pageRank.get(PageRank.fileName(entry.getValue()));
+    		if (rank != null)
+    			ranks[entry.getKey()] = rank;
+    	}
+    	setPageRank(ranks, docNames);
+    }
+    
+    /**
+     *  Starts a new search session on the calling thread, forgetting the
+     *  postings it fetched so far.
+     */
+    public void newSession() {
+    	session.set(new Session());
+    }
+    
+    /**
+     *  Ends the search session of the calling thread, if any.
+     */
+    public void endSession() {
+    	session.remove();
+    }
+    
+    /**
+     *  Returns the postings for a term, fetching them from the index only
+     *  once per search session. The postings of a session are forgotten when
+     *  the index moves to a new generation.
+     */
+    PostingsList getPostings(String term) {
+    	Session s = session.get();
+    	if (s == null)
+    		return index.getPostings(term);
+    	
+    	long generation = Index.generation.get();
+    	if (s.generation != generation || s.postings.size() >= MAX_SESSION_TERMS) {
+    		s.postings.clear();
+    		s.generation = generation;
+    	}
+    	PostingsList list = s.postings.get(term);
+    	if (list == null && !s.postings.containsKey(term)) {
+    		list = index.getPostings(term);
+    		s.postings.put(term, list);
+    	}
+    	return list;
+    }
+    
     /**
      *  Searches the index for postings matching the query.
      *  @return A postings list representing the result of the query.
      */
     public PostingsList search( Query query, QueryType queryType, RankingType rankingType ) { 
+    	return search( query, queryType, rankingType, Integer.MAX_VALUE );
+    }
+    
+    /**
+     *  Searches the index for postings matching the query. Ranked queries
+     *  return at most <code>maxResults</code> documents. Results are taken
+     *  from the result cache when possible.
+     *  @return A postings list representing the result of the query.
+     */
+    public PostingsList search( Query query, QueryType queryType, RankingType rankingType, int maxResults ) { 
+    	ResultCache cache = resultcache;
+    	if (cache == null)
+    		return searchIndex(query, queryType, rankingType, maxResults);
+    	
+    	// only ranked queries are cut to maxResults
+    	if (queryType != QueryType.RANKED_QUERY)
+    		maxResults = Integer.MAX_VALUE;
+    	long generation = generation();
+    	String key = ResultCache.key(query, queryType, rankingType);
+    	boolean[] found = new boolean[1];
+    	PostingsList answer = cache.get(key, generation, maxResults, found);
+    	if (found[0])
+    		return answer;
+    	
+    	answer = searchIndex(query, queryType, rankingType, maxResults);
+    	cache.put(key, generation, answer, maxResults);
+    	return answer;
+    }
+    
+    /**
+     *  Searches the index itself, without looking at the result cache.
+     */
+    PostingsList searchIndex( Query query, QueryType queryType, RankingType rankingType, int maxResults ) { 
     	
     	if(query.queryterm.isEmpty()) return null;
     	
@@ -84,57 +287,26 @@ public class Searcher {
 				}
 			}
 			
-			HashMap<Integer, PostingsEntry> check = new HashMap<>();
-			int N = Index.docLengths.size();
-			double idf, df;
-			double score; 
-			double tfidfWeight, pageRankWeight;
-			String fName;
-			
-			tfidfWeight = 0.01;
-			pageRankWeight = 1.0;
-			
-			if(rankingType == RankingType.TF_IDF) {
-				tfidfWeight = 1.0;
-				pageRankWeight = 0.0;
-			} 
-			else if(rankingType == RankingType.PAGERANK) {
-				tfidfWeight = 0.0;
-				pageRankWeight = 1.0;
+			if (rankingType == RankingType.PAGERANK)
+				return searchByPageRank(query, maxResults);
+			if (rankingType == RankingType.COMBINATION && maxResults < Integer.MAX_VALUE) {
+				answer = searchChampions(query, maxResults);
+				if (answer != null)
+					return answer;
 			}
 			
-			for(int i = 0; i < query.queryterm.size(); i++) {
-				
-				list = index.getPostings(query.queryterm.get(i).term);
-				
-				if(list == null) return null;
-				
-				// Calculate scores
-				df = index.getPostings(query.queryterm.get(i).term).size();
-				idf = Math.log(N / df);
-				for(PostingsEntry e: list.list) {
-					// calculate tf-idf
-					score = e.offset.size() * idf / Index.docLengths.get(e.docID);
-					score *= tfidfWeight;
-					
-					// retrieve pagerank
-					fName = Index.docNames.get(e.docID);
-					fName = fName.substring(10, fName.length());
-					if(pageRank.containsKey(fName)) {
-						score += pageRank.get(fName) * pageRankWeight;	
-					}
-					
-					e.score = score * query.queryterm.get(i).weight;
-
-		    		if(check.containsKey(e.docID)) 
-		    			check.get(e.docID).score += e.score;
-		    		else
-		    			check.put(e.docID, e);
-		    	}				
-			}			
+			ShardedIndex sharded = shards;
+			if (sharded != null)
+				return searchShards(sharded, query, rankingType, maxResults);
 			
-			answer = new PostingsList(new ArrayList<>(check.values()));
-			Collections.sort(answer.list);
+			PostingsList[] lists = new PostingsList[query.queryterm.size()];
+			double[] df = new double[lists.length];
+			for(int i = 0; i < lists.length; i++) {
+				lists[i] = getPostings(query.queryterm.get(i).term);
+				if(lists[i] == null) return null;
+				df[i] = lists[i].size();
+			}
+			answer = topResults(score(query, rankingType, lists, df, Index.docLengths.size(), staticRank.rank).values(), maxResults);
 			
 		} else { // intersection or phrase query
 			
@@ -143,9 +315,9 @@ public class Searcher {
 				answer = new PostingsList(new ArrayList<>(check.values()));
 			} 
 			else {
-				answer = index.getPostings(query.queryterm.get(0).term);
+				answer = getPostings(query.queryterm.get(0).term);
 				for(int i=1; i<query.queryterm.size(); i++) {
-		    		list = index.getPostings(query.queryterm.get(i).term);
+		    		list = getPostings(query.queryterm.get(i).term);
 					if(answer == null || list == null) return null;
 					answer = intersect(answer, list, queryType);
 				}
@@ -155,6 +327,280 @@ public class Searcher {
 		return answer;
     }
     
+    /**
+     *  Scores the documents of the postings lists of the query terms by
+     *  tf-idf, or by tf-idf and PageRank for a COMBINATION query. The idf of
+     *  term i is computed from its document frequency <code>df[i]</code> in a
+     *  collection of <code>N</code> documents, which are those of the whole
+     *  index even when the lists only hold the postings of one shard. Terms
+     *  without postings (null lists) are skipped.
+     */
+    private HashMap<Integer, PostingsEntry> score(Query query, RankingType rankingType, PostingsList[] lists, double[] df, int N, double[] rank) {
+		HashMap<Integer, PostingsEntry> check = new HashMap<>();
+		double idf;
+		double score; 
+		double tfidfWeight, pageRankWeight;
+		PostingsEntry entry;
+		
+		tfidfWeight = COMBINATION_TFIDF_WEIGHT;
+		pageRankWeight = COMBINATION_PAGERANK_WEIGHT;
+		
+		if(rankingType == RankingType.TF_IDF) {
+			tfidfWeight = 1.0;
+			pageRankWeight = 0.0;
+		} 
+		
+		for(int i = 0; i < lists.length; i++) {
+			
+			if(lists[i] == null) continue;
+			
+			// Calculate scores
+			idf = Math.log(N / df[i]);
+			for(PostingsEntry e: lists[i].list) {
+				// calculate tf-idf
+				score = e.offset.size() * idf / Index.docLengths.get(e.docID);
+				score *= tfidfWeight;
+				
+				// retrieve pagerank
+				if(e.docID < rank.length) {
+					score += rank[e.docID] * pageRankWeight;	
+				}
+				
+				score *= query.queryterm.get(i).weight;
+
+				// the postings may be shared with other searches, scores go in new entries
+	    		if(check.containsKey(e.docID)) 
+	    			check.get(e.docID).score += score;
+	    		else {
+	    			entry = new PostingsEntry(e.docID);
+	    			entry.score = score;
+	    			check.put(e.docID, entry);
+	    		}
+	    	}				
+		}
+		return check;
+    }
+    
+    /**
+     *  Sorts scored documents by decreasing score and keeps the best
+     *  <code>maxResults</code>. Equal scores are ordered by docID, so that
+     *  the documents kept do not depend on the order they were scored in.
+     */
+    private static PostingsList topResults(Collection<PostingsEntry> entries, int maxResults) {
+    	PostingsList answer = new PostingsList(new ArrayList<>(entries));
+    	answer.list.sort(Comparator.<PostingsEntry>naturalOrder().thenComparingInt(e -> e.docID));
+    	if (answer.size() > maxResults)
+    		answer = new PostingsList(new ArrayList<>(answer.list.subList(0, maxResults)));
+    	return answer;
+    }
+    
+    /**
+     *  Ranks the documents of this index as one shard of a larger collection
+     *  of <code>N</code> documents, in which query term i has the document
+     *  frequency <code>df[i]</code> (see {@link ShardServer}).
+     */
+    PostingsList searchShard(Query query, RankingType rankingType, double[] df, int N, int maxResults) {
+    	PostingsList[] lists = new PostingsList[query.queryterm.size()];
+    	for (int i = 0; i < lists.length; i++)
+    		lists[i] = getPostings(query.queryterm.get(i).term);
+    	return topResults(score(query, rankingType, lists, df, N, staticRank.rank).values(), maxResults);
+    }
+    
+    /**
+     *  Ranks the documents of a sharded index. The postings of the query
+     *  terms are looked up in every shard, to sum their document frequencies,
+     *  then every shard scores its own documents in parallel and keeps its
+     *  best <code>maxResults</code>, which are merged. A document is in one
+     *  shard only and the idf is global, so the scores, and the results, are
+     *  those of the same index unsharded.
+     */
+    PostingsList searchShards(ShardedIndex sharded, Query query, RankingType rankingType, int maxResults) {
+    	int numShards = sharded.numShards();
+    	int numTerms = query.queryterm.size();
+    	PostingsList[][] lists = new PostingsList[numShards][numTerms];
+    	double[] df = new double[numTerms];
+    	for (int i = 0; i < numTerms; i++) {
+    		String term = query.queryterm.get(i).term;
+    		for (int s = 0; s < numShards; s++) {
+    			lists[s][i] = sharded.shards[s].getPostings(term);
+    			if (lists[s][i] != null)
+    				df[i] += lists[s][i].size();
+    		}
+    		if (df[i] == 0)
+    			return null;
+    	}
+    	int N = Index.docLengths.size();
+    	double[] rank = staticRank.rank;
+    	
+    	ArrayList<Callable<PostingsList>> tasks = new ArrayList<>();
+    	for (int s = 0; s < numShards; s++) {
+    		PostingsList[] shardLists = lists[s];
+    		tasks.add(() -> topResults(score(query, rankingType, shardLists, df, N, rank).values(), maxResults));
+    	}
+    	ArrayList<PostingsEntry> merged = new ArrayList<>();
+    	for (PostingsList top : sharded.scatter(tasks))
+    		merged.addAll(top.list);
+    	return topResults(merged, maxResults);
+    }
+    
+    /**
+     *  Ranks the documents matching a query by PageRank only. The score of a
+     *  document is its PageRank times the weight of the query terms it
+     *  contains, so the documents are visited in decreasing PageRank order and
+     *  the search stops when no remaining document can enter the top results.
+     */
+    private PostingsList searchByPageRank(Query query, int maxResults) {
+    	StaticRank ranks = staticRank;
+    	PostingsList[] lists = new PostingsList[query.queryterm.size()];
+    	int numDocs = ranks.rank.length;
+    	for (int i = 0; i < lists.length; i++) {
+    		lists[i] = getPostings(query.queryterm.get(i).term);
+    		if (lists[i] == null) return null;
+    		if (lists[i].size() > 0)
+    			numDocs = Math.max(numDocs, lists[i].get(lists[i].size() - 1).docID + 1);
+    	}
+    	
+    	double[] weight = new double[numDocs];
+    	boolean[] matched = new boolean[numDocs];
+    	double maxWeight = 0;
+    	int numMatches = 0;
+    	
+    	for (int i = 0; i < lists.length; i++) {
+    		QueryTerm t = query.queryterm.get(i);
+    		for (PostingsEntry e : lists[i].list) {
+    			if (!matched[e.docID]) {
+    				matched[e.docID] = true;
+    				numMatches++;
+    			}
+    			weight[e.docID] += t.weight;
+    			maxWeight = Math.max(maxWeight, weight[e.docID]);
+    		}
+    	}
+    	
+    	// min-heap of the best documents so far
+    	PriorityQueue<PostingsEntry> top = new PriorityQueue<>(Collections.reverseOrder());
+    	for (int i = 0; i < ranks.order.length && numMatches > 0; i++) {
+    		int docID = ranks.order[i];
+    		if (!matched[docID])
+    			continue;
+    		numMatches--;
+    		
+    		double rank = ranks.rank[docID];
+    		if (top.size() == maxResults && rank * maxWeight <= top.peek().score)
+    			break;
+    		PostingsEntry entry = new PostingsEntry(docID);
+    		entry.score = rank * weight[docID];
+    		top.add(entry);
+    		if (top.size() > maxResults)
+    			top.poll();
+    	}
+    	
+    	// documents newer than the PageRank have rank 0
+    	for (int docID = ranks.rank.length; docID < numDocs && top.size() < maxResults; docID++) {
+    		if (matched[docID])
+    			top.add(new PostingsEntry(docID));
+    	}
+    	
+    	PostingsList answer = new PostingsList(new ArrayList<>(top));
+    	Collections.sort(answer.list);
+    	return answer;
+    }
+    
+    /**
+     *  Ranks the documents matching a COMBINATION query with the threshold
+     *  algorithm on the champion lists: the lists are read in parallel by
+     *  decreasing impact, every new document gets its exact score from the
+     *  full postings, and the search stops when the sum of the impacts at the
+     *  current depth cannot beat the top results any more. The impacts of a
+     *  truncated list stay bounded by its last champion.
+     *
+     *  @return the top results, or null if the champion lists cannot be used
+     *  or do not reach far enough, in which case all postings must be scored
+     */
+    private PostingsList searchChampions(Query query, int maxResults) {
+    	ChampionIndex champions = championindex;
+    	double[] rank = staticRank.rank;
+    	if (champions == null || champions.rank != rank || maxResults <= 0)
+    		return null;
+    	
+    	int n = query.queryterm.size();
+    	PostingsList[] lists = new PostingsList[n];
+    	PostingsList[] postings = new PostingsList[n];
+    	boolean[] complete = new boolean[n];
+    	double[] idf = new double[n];
+    	int N = Index.docLengths.size();
+    	for (int i = 0; i < n; i++) {
+    		String term = query.queryterm.get(i).term;
+    		if (query.queryterm.get(i).weight <= 0)
+    			return null;
+    		lists[i] = champions.getChampions(term);
+    		postings[i] = getPostings(term);
+    		if (lists[i] == null || postings[i] == null)
+    			return null;
+    		complete[i] = champions.isComplete(term, lists[i]);
+    		idf[i] = Math.log(N / (double) postings[i].size());
+    	}
+    	
+    	// min-heap of the best documents so far
+    	PriorityQueue<PostingsEntry> top = new PriorityQueue<>(Collections.reverseOrder());
+    	HashSet<Integer> seen = new HashSet<>();
+    	for (int depth = 0; ; depth++) {
+    		double threshold = 0;
+    		boolean exhausted = true;
+    		
+    		for (int i = 0; i < n; i++) {
+    			PostingsList list = lists[i];
+    			double weight = query.queryterm.get(i).weight;
+    			if (depth >= list.size()) {
+    				if (!complete[i])
+    					threshold += weight * list.get(list.size() - 1).score;
+    				continue;
+    			}
+    			exhausted = false;
+    			
+    			int docID = list.get(depth).docID;
+    			threshold += weight * list.get(depth).score;
+    			if (!seen.add(docID))
+    				continue;
+    			
+    			PostingsEntry entry = new PostingsEntry(docID);
+    			for (int j = 0; j < n; j++) {
+    				PostingsEntry e = findPosting(postings[j], docID);
+    				if (e != null)
+    					entry.score += query.queryterm.get(j).weight * ChampionIndex.impact(e, idf[j], rank);
+    			}
+    			top.add(entry);
+    			if (top.size() > maxResults)
+    				top.poll();
+    		}
+    		
+    		if (top.size() == maxResults && top.peek().score >= threshold)
+    			break;
+    		if (exhausted) {
+    			if (threshold > 0)
+    				return null;
+    			break;
+    		}
+    	}
+    	
+    	PostingsList answer = new PostingsList(new ArrayList<>(top));
+    	Collections.sort(answer.list);
+    	return answer;
+    }
+    
+    /** Finds the posting of a document by binary search, or returns null. */
+    private PostingsEntry findPosting(PostingsList list, int docID) {
+    	int lo = 0, hi = list.size() - 1;
+    	while (lo <= hi) {
+    		int mid = (lo + hi) >>> 1;
+    		int d = list.get(mid).docID;
+    		if (d < docID) lo = mid + 1;
+    		else if (d > docID) hi = mid - 1;
+    		else return list.get(mid);
+    	}
+    	return null;
+    }
+    
     private PostingsList intersect(PostingsList p1, PostingsList p2, QueryType queryType) {
     	PostingsList result = new PostingsList();
     	PostingsEntry entry1, entry2;
@@ -204,6 +650,49 @@ public class Searcher {
     }
 
     private Query addMatchingTerms(Query query, String term) {
+    	for (int id : matchingTermIDs(term))
+    		query.addQueryTerm(kgramindex.getTermByID(id), 1);
+    	return query;
+    }
+    
+    /**
+     *  Returns the ids of the terms matching a wildcard pattern, from the
+     *  wildcard cache if the pattern was expanded recently. Patterns are
+     *  expanded with the permuterm index when it covers the whole vocabulary,
+     *  with k-gram intersection and regex filtering otherwise.
+     */
+    int[] matchingTermIDs(String term) {
+    	int vocabulary = kgramindex.lastTermID + 1;
+    	synchronized (wildcardCache) {
+    		if (vocabulary != wildcardVocabulary) {
+    			wildcardCache.clear();
+    			wildcardCacheIDs = 0;
+    			wildcardVocabulary = vocabulary;
+    		}
+    		int[] ids = wildcardCache.get(term);
+    		if (ids != null)
+    			return ids;
+    	}
+    	
+    	PermutermIndex pt = permuterm;
+    	int[] ids = pt != null && pt.numTerms == vocabulary ? pt.expand(term) : expandKGrams(term);
+    	
+    	synchronized (wildcardCache) {
+    		if (vocabulary == wildcardVocabulary && ids.length <= MAX_WILDCARD_CACHE_IDS / 16) {
+    			int[] previous = wildcardCache.put(term, ids);
+    			wildcardCacheIDs += ids.length - (previous == null ? 0 : previous.length);
+    			Iterator<int[]> it = wildcardCache.values().iterator();
+    			while (wildcardCacheIDs > MAX_WILDCARD_CACHE_IDS && it.hasNext()) {
+    				wildcardCacheIDs -= it.next().length;
+    				it.remove();
+    			}
+    		}
+    	}
+    	return ids;
+    }
+    
+    /** Expands a wildcard pattern by k-gram intersection and regex filtering */
+    int[] expandKGrams(String term) {
     	String kgram, queryterm;
     	
     	term = "$" + term + "$";
@@ -219,6 +708,7 @@ public class Searcher {
     		}
     	}
     	
+    	ArrayList<Integer> ids = new ArrayList<>();
     	if (postings != null) {
     		String regex;
     		String[] substrings;
@@ -236,21 +726,23 @@ public class Searcher {
 	    			regex += ".*";
 	    		
 	    		if (queryterm.matches(regex))
-	    			query.addQueryTerm(queryterm, 1);
+	    			ids.add(p.tokenID);
 	    	}
     	}
     	
-    	return query;
+    	return ids.stream().mapToInt(Integer::intValue).toArray();
     }
     
     private HashMap<Integer, PostingsEntry> intersectWildcard(int l, int wc, Query query, Query partialQuery, QueryType queryType, ArrayList<Query> wildcardQuery, HashMap<Integer, PostingsEntry> result) {
     	
     	if (query.queryterm.size() == l) {
     		PostingsList list;
-    		PostingsList partialAnswer = index.getPostings(partialQuery.queryterm.get(0).term);
+    		PostingsList partialAnswer = getPostings(partialQuery.queryterm.get(0).term);
 			for(int i=1; i<partialQuery.queryterm.size(); i++) {
-	    		list = index.getPostings(partialQuery.queryterm.get(i).term);
-				if(partialAnswer == null || list == null) break;
+	    		list = getPostings(partialQuery.queryterm.get(i).term);
+				// a term in no document leaves no answer, not the partial intersection
+				if(list == null) partialAnswer = null;
+				if(partialAnswer == null) break;
 				partialAnswer = intersect(partialAnswer, list, queryType);
 			}
 			
@@ -0,0 +1,211 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ *  Index accepting new and deleted documents after the main index is built,
+ *  without indexing everything again.
+ *
+ *  New documents go into a small in-memory active segment, searchable as
+ *  soon as they are inserted. When the active segment grows too large it is
+ *  sealed, and sealed segments are merged in the background when there are
+ *  too many of them. Deleted documents are marked in a tombstone bitset and
+ *  filtered out of the postings at query time; merges drop their postings
+ *  for good. The main index is never rewritten, its deleted documents stay
+ *  tombstoned until the next full indexing.
+ *
+ *  New documents must get larger docIDs than all the documents already in
+ *  the index, so that the postings of the main index and of the segments,
+ *  in order, form one sorted list.
+ *
+ *  Changes are made under the write lock of the engine and searches run
+ *  under its read lock. The returned postings are never modified afterwards.
+ */
+public class SegmentedIndex implements Index {
+
+	/** The index built at startup */
+	Index base;
+
+	/** Sealed segments, oldest first, never modified once sealed */
+	ArrayList<HashMap<String,PostingsList>> segments = new ArrayList<>();
+
+	/** The segment receiving new documents */
+	HashMap<String,PostingsList> active = new HashMap<>();
+
+	/** Number of postings entries in the active segment */
+	int activePostings = 0;
+
+	/** Deleted docIDs */
+	BitSet deleted = new BitSet();
+
+	/** The active segment is sealed when it holds more postings entries than this */
+	static final int MAX_ACTIVE_POSTINGS = 100000;
+
+	/** Sealed segments are merged into one when there are more of them than this */
+	static final int MAX_SEGMENTS = 8;
+
+	/** Lock shared with the searches */
+	ReentrantReadWriteLock lock;
+
+	/** Runs the merges, one at a time */
+	ExecutorService merger = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "segment merger");
+		t.setDaemon(true);
+		return t;
+	});
+
+	AtomicBoolean merging = new AtomicBoolean();
+
+	public SegmentedIndex(Index base, ReentrantReadWriteLock lock) {
+		this.base = base;
+		this.lock = lock;
+	}
+
+	/** Inserts a token of a new document into the active segment. */
+	public void insert(String token, int docID, int offset) {
+		PostingsList list = active.get(token);
+		if (list == null) {
+			active.put(token, new PostingsList(docID, offset));
+			activePostings++;
+		}
+		else {
+			if (list.get(list.size() - 1).docID != docID)
+				activePostings++;
+			list.addEntry(docID, offset);
+		}
+	}
+
+	/**
+	 *  Returns the postings of a term in the main index and all the segments,
+	 *  without the deleted documents.
+	 */
+	public PostingsList getPostings(String token) {
+		PostingsList baseList = base.getPostings(token);
+		ArrayList<PostingsList> lists = new ArrayList<>();
+		for (HashMap<String,PostingsList> segment : segments) {
+			PostingsList list = segment.get(token);
+			if (list != null)
+				lists.add(list);
+		}
+		PostingsList list = active.get(token);
+		if (list != null)
+			lists.add(list);
+
+		if (lists.isEmpty() && (baseList == null || !containsDeleted(baseList)))
+			return baseList;
+
+		ArrayList<PostingsEntry> entries = new ArrayList<>();
+		if (baseList != null)
+			addLive(entries, baseList);
+		for (PostingsList l : lists)
+			addLive(entries, l);
+		return entries.isEmpty() ? null : new PostingsList(entries);
+	}
+
+	private boolean containsDeleted(PostingsList list) {
+		if (deleted.isEmpty())
+			return false;
+		for (PostingsEntry e : list.list) {
+			if (deleted.get(e.docID))
+				return true;
+		}
+		return false;
+	}
+
+	private void addLive(ArrayList<PostingsEntry> entries, PostingsList list) {
+		for (PostingsEntry e : list.list) {
+			if (!deleted.get(e.docID))
+				entries.add(e);
+		}
+	}
+
+	/** Marks a document as deleted. */
+	public void delete(int docID) {
+		deleted.set(docID);
+	}
+
+	public boolean isDeleted(int docID) {
+		return deleted.get(docID);
+	}
+
+	/**
+	 *  Commits the documents inserted since the last call: seals the active
+	 *  segment if it is large enough, starts a merge if there are too many
+	 *  segments, and moves to the next index generation.
+	 */
+	public void cleanup() {
+		if (activePostings > MAX_ACTIVE_POSTINGS) {
+			segments.add(active);
+			active = new HashMap<>();
+			activePostings = 0;
+			if (segments.size() > MAX_SEGMENTS && merging.compareAndSet(false, true))
+				merger.submit(this::merge);
+		}
+		generation.incrementAndGet();
+	}
+
+	/**
+	 *  Merges the sealed segments into one, without the deleted documents.
+	 *  The merge itself runs without the lock, the sealed segments do not
+	 *  change; only the replacement of the merged segments takes the write
+	 *  lock.
+	 */
+	void merge() {
+		try {
+			ArrayList<HashMap<String,PostingsList>> merged;
+			BitSet dead;
+			lock.readLock().lock();
+			try {
+				merged = new ArrayList<>(segments);
+				dead = (BitSet) deleted.clone();
+			}
+			finally {
+				lock.readLock().unlock();
+			}
+
+			HashMap<String,PostingsList> result = new HashMap<>();
+			for (HashMap<String,PostingsList> segment : merged) {
+				for (Map.Entry<String,PostingsList> entry : segment.entrySet()) {
+					for (PostingsEntry e : entry.getValue().list) {
+						if (!dead.get(e.docID))
+							result.computeIfAbsent(entry.getKey(), t -> new PostingsList()).addEntry(e);
+					}
+				}
+			}
+
+			// segments are only appended while merging, so the merged ones are still first
+			lock.writeLock().lock();
+			try {
+				segments.subList(0, merged.size()).clear();
+				segments.add(0, result);
+			}
+			finally {
+				lock.writeLock().unlock();
+			}
+			System.err.println("Merged " + merged.size() + " segments, " + result.size() + " terms");
+		}
+		catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+		finally {
+			merging.set(false);
+		}
+	}
+
+	/** Returns true if no document was added or deleted since startup */
+	public boolean isUnchanged() {
+		return segments.isEmpty() && active.isEmpty() && deleted.isEmpty();
+	}
+
+	/** Number of segments, the active one included */
+	public int numSegments() {
+		return segments.size() + 1;
+	}
+}
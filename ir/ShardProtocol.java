@@ -0,0 +1,315 @@
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *  Binary protocol between a {@link DistributedSearcher} and the
+ *  {@link ShardServer}s. Every message is a frame:
+ *
+ *  <pre>
+ *  int  length       number of bytes after this field
+ *  byte type         one of the message types below
+ *  int  requestID    chosen by the coordinator, sent back by the shard
+ *  payload
+ *  </pre>
+ *
+ *  with the payloads (strings are written with writeUTF):
+ *
+ *  <pre>
+ *  STATS       int n, n * term
+ *  STATISTICS  int numDocs, n * (byte wildcard, int m, m * (term, int df))
+ *  SEARCH      byte queryType, byte rankingType, int maxResults, int N,
+ *              int n, n * (term, double weight, double df)
+ *  RESULTS     int n, n * (int docID, double score, name)
+ *  ERROR       message
+ *  </pre>
+ *
+ *  A ranked query is run in two phases: STATS asks every shard for its
+ *  number of documents and the document frequencies of the query terms,
+ *  with wildcard terms expanded on the vocabulary of the shard; SEARCH then
+ *  sends the expanded terms with their global frequencies, so that every
+ *  shard computes the same idf as an index of the whole collection.
+ */
+public class ShardProtocol {
+
+	static final byte STATS = 1;
+	static final byte STATISTICS = 2;
+	static final byte SEARCH = 3;
+	static final byte RESULTS = 4;
+	static final byte ERROR = 5;
+
+	/** Frames larger than this are refused */
+	static final int MAX_FRAME_SIZE = 64 << 20;
+
+	/** A received message */
+	static class Frame {
+		final byte type;
+		final int requestID;
+		final byte[] payload;
+
+		Frame(byte type, int requestID, byte[] payload) {
+			this.type = type;
+			this.requestID = requestID;
+			this.payload = payload;
+		}
+
+		DataInputStream data() {
+			return new DataInputStream(new ByteArrayInputStream(payload));
+		}
+	}
+
+	/** Writes the payload of a message */
+	interface Payload {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	/** Encodes a message as a frame ready to be written */
+	static ByteBuffer frame(byte type, int requestID, Payload payload) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(0);
+			out.writeByte(type);
+			out.writeInt(requestID);
+			payload.write(out);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+		frame.putInt(0, frame.limit() - 4);
+		return frame;
+	}
+
+	/* ----------------------------------------------- */
+
+	static ByteBuffer stats(int requestID, Query query) {
+		return frame(STATS, requestID, out -> {
+			out.writeInt(query.queryterm.size());
+			for (Query.QueryTerm t : query.queryterm)
+				out.writeUTF(t.term);
+		});
+	}
+
+	static Query readStats(Frame frame) throws IOException {
+		DataInputStream in = frame.data();
+		Query query = new Query();
+		for (int n = in.readInt(); n > 0; n--)
+			query.addQueryTerm(in.readUTF(), 1);
+		return query;
+	}
+
+	/**
+	 *  Document frequencies of the terms of a query in one shard. A wildcard
+	 *  term has the frequencies of the terms it matches, any other term its
+	 *  own frequency.
+	 */
+	static class Statistics {
+		int numDocs;
+		boolean[] wildcard;
+		ArrayList<LinkedHashMap<String,Integer>> df = new ArrayList<>();
+	}
+
+	static ByteBuffer statistics(int requestID, Statistics stats) {
+		return frame(STATISTICS, requestID, out -> {
+			out.writeInt(stats.numDocs);
+			for (int i = 0; i < stats.df.size(); i++) {
+				out.writeBoolean(stats.wildcard[i]);
+				out.writeInt(stats.df.get(i).size());
+				for (Map.Entry<String,Integer> entry : stats.df.get(i).entrySet()) {
+					out.writeUTF(entry.getKey());
+					out.writeInt(entry.getValue());
+				}
+			}
+		});
+	}
+
+	static Statistics readStatistics(Frame frame, int numTerms) throws IOException {
+		DataInputStream in = frame.data();
+		Statistics stats = new Statistics();
+		stats.numDocs = in.readInt();
+		stats.wildcard = new boolean[numTerms];
+		for (int i = 0; i < numTerms; i++) {
+			stats.wildcard[i] = in.readBoolean();
+			LinkedHashMap<String,Integer> df = new LinkedHashMap<>();
+			for (int m = in.readInt(); m > 0; m--)
+				df.put(in.readUTF(), in.readInt());
+			stats.df.add(df);
+		}
+		return stats;
+	}
+
+	/** A query sent to the shards, with the global statistics of its terms for ranked queries */
+	static class SearchRequest {
+		QueryType queryType;
+		RankingType rankingType;
+		int maxResults;
+		int numDocs;
+		Query query;
+		double[] df;
+	}
+
+	static ByteBuffer search(int requestID, SearchRequest request) {
+		return frame(SEARCH, requestID, out -> {
+			out.writeByte(request.queryType.ordinal());
+			out.writeByte(request.rankingType == null ? -1 : request.rankingType.ordinal());
+			out.writeInt(request.maxResults);
+			out.writeInt(request.numDocs);
+			out.writeInt(request.query.queryterm.size());
+			for (int i = 0; i < request.query.queryterm.size(); i++) {
+				out.writeUTF(request.query.queryterm.get(i).term);
+				out.writeDouble(request.query.queryterm.get(i).weight);
+				out.writeDouble(request.df == null ? 0 : request.df[i]);
+			}
+		});
+	}
+
+	static SearchRequest readSearch(Frame frame) throws IOException {
+		DataInputStream in = frame.data();
+		SearchRequest request = new SearchRequest();
+		request.queryType = QueryType.values()[in.readByte()];
+		int ranking = in.readByte();
+		request.rankingType = ranking < 0 ? null : RankingType.values()[ranking];
+		request.maxResults = in.readInt();
+		request.numDocs = in.readInt();
+		int n = in.readInt();
+		request.query = new Query();
+		request.df = new double[n];
+		for (int i = 0; i < n; i++) {
+			request.query.addQueryTerm(in.readUTF(), in.readDouble());
+			request.df[i] = in.readDouble();
+		}
+		return request;
+	}
+
+	/** Sends the documents of a result list with their names, at most <code>maxResults</code> of them */
+	static ByteBuffer results(int requestID, PostingsList results, int maxResults) {
+		return frame(RESULTS, requestID, out -> {
+			int n = results == null ? 0 : Math.min(results.size(), maxResults);
+			out.writeInt(n);
+			for (int i = 0; i < n; i++) {
+				PostingsEntry e = results.get(i);
+				out.writeInt(e.docID);
+				out.writeDouble(e.score);
+				String name = Index.docNames.get(e.docID);
+				out.writeUTF(name == null ? "" : name);
+			}
+		});
+	}
+
+	/** Reads a result list, and the names of its documents into <code>names</code> */
+	static PostingsList readResults(Frame frame, HashMap<Integer,String> names) throws IOException {
+		DataInputStream in = frame.data();
+		PostingsList results = new PostingsList();
+		for (int n = in.readInt(); n > 0; n--) {
+			PostingsEntry e = new PostingsEntry(in.readInt());
+			e.score = in.readDouble();
+			names.put(e.docID, in.readUTF());
+			results.addEntry(e);
+		}
+		return results;
+	}
+
+	static ByteBuffer error(int requestID, String message) {
+		return frame(ERROR, requestID, out -> out.writeUTF(String.valueOf(message)));
+	}
+
+	static String readError(Frame frame) throws IOException {
+		return frame.data().readUTF();
+	}
+
+	/* ----------------------------------------------- */
+
+	/**
+	 *  A non-blocking socket exchanging frames. Frames are read and written
+	 *  by the selector thread of the connection; other threads only queue
+	 *  frames with send(), and must then wake the selector up.
+	 */
+	static class Connection {
+		final SocketChannel channel;
+
+		/** Bytes received and not yet cut into frames */
+		ByteBuffer in = ByteBuffer.allocate(1 << 16);
+
+		/** Frames waiting to be written */
+		private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		synchronized void send(ByteBuffer frame) {
+			out.add(frame);
+		}
+
+		synchronized boolean hasOutput() {
+			return !out.isEmpty();
+		}
+
+		/**
+		 *  Writes the queued frames until the socket would block.
+		 *
+		 *  @return true if everything was written
+		 */
+		synchronized boolean flush() throws IOException {
+			while (!out.isEmpty()) {
+				ByteBuffer frame = out.peek();
+				channel.write(frame);
+				if (frame.hasRemaining())
+					return false;
+				out.poll();
+			}
+			return true;
+		}
+
+		/**
+		 *  Reads the available bytes and returns the frames they complete.
+		 *
+		 *  @throws EOFException if the peer closed the connection
+		 */
+		ArrayList<Frame> read() throws IOException {
+			if (channel.read(in) < 0)
+				throw new EOFException("connection closed");
+			ArrayList<Frame> frames = new ArrayList<>();
+			in.flip();
+			while (in.remaining() >= 4) {
+				int length = in.getInt(in.position());
+				if (length < 5 || length > MAX_FRAME_SIZE)
+					throw new IOException("bad frame length " + length);
+				if (in.remaining() < 4 + length) {
+					if (in.capacity() < 4 + length) {
+						// the frame does not fit, the buffer grows to its size
+						ByteBuffer larger = ByteBuffer.allocate(4 + length);
+						larger.put(in);
+						in = larger;
+						return frames;
+					}
+					break;
+				}
+				in.getInt();
+				byte type = in.get();
+				int requestID = in.getInt();
+				byte[] payload = new byte[length - 5];
+				in.get(payload);
+				frames.add(new Frame(type, requestID, payload));
+			}
+			in.compact();
+			return frames;
+		}
+
+		void close() {
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
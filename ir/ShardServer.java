@@ -0,0 +1,222 @@
+package ir;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import ir.ShardProtocol.Connection;
+import ir.ShardProtocol.Frame;
+
+/**
+ *  Serves the documents of one shard of a distributed index to a
+ *  {@link DistributedSearcher}, with the binary protocol of
+ *  {@link ShardProtocol}. The engine of the shard only indexes the
+ *  documents whose docID modulo the number of shards is its shard number,
+ *  and keeps the docIDs of the whole collection.
+ *
+ *  A selector thread reads the requests of all the connections; the
+ *  requests are run by a pool of workers under the read lock of the
+ *  engine, and the responses written back by the selector thread, in the
+ *  order they are ready.
+ */
+public class ShardServer {
+
+	Engine engine;
+
+	ServerSocketChannel server;
+
+	Selector selector;
+
+	/** Threads running the requests */
+	ExecutorService workers;
+
+	/** Connections with responses to write, registered for writing by the selector thread */
+	ConcurrentLinkedQueue<SelectionKey> ready = new ConcurrentLinkedQueue<>();
+
+	public ShardServer(Engine engine, int port, int maxConcurrent) throws IOException {
+		this.engine = engine;
+		workers = Executors.newFixedThreadPool(maxConcurrent);
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port), 4 * maxConcurrent);
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/** Starts the selector thread, which keeps the process alive */
+	public void start() {
+		new Thread(this::serve, "shard server").start();
+		System.err.println("Serving shard " + engine.shard_id + " of " + engine.num_shards + " on port " + server.socket().getLocalPort());
+	}
+
+	public void stop() {
+		try {
+			selector.close();
+			server.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		workers.shutdown();
+	}
+
+	void serve() {
+		while (selector.isOpen()) {
+			try {
+				selector.select();
+				SelectionKey pending;
+				while ((pending = ready.poll()) != null) {
+					if (pending.isValid())
+						pending.interestOps(pending.interestOps() | SelectionKey.OP_WRITE);
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid() && key.isAcceptable())
+						accept();
+					else
+						exchange(key);
+				}
+			}
+			catch (ClosedSelectorException e) {
+				return;
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null)
+			return;
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+	}
+
+	/** Reads the requests of a connection and writes its responses */
+	void exchange(SelectionKey key) {
+		Connection connection = (Connection) key.attachment();
+		try {
+			if (key.isValid() && key.isReadable()) {
+				for (Frame frame : connection.read())
+					submit(key, connection, frame);
+			}
+			if (key.isValid() && key.isWritable() && connection.flush())
+				key.interestOps(SelectionKey.OP_READ);
+		}
+		catch (IOException e) {
+			// the coordinator went away, its requests are dropped
+			key.cancel();
+			connection.close();
+		}
+	}
+
+	void submit(SelectionKey key, Connection connection, Frame frame) {
+		try {
+			workers.submit(() -> {
+				connection.send(respond(frame));
+				ready.add(key);
+				selector.wakeup();
+			});
+		}
+		catch (RejectedExecutionException e) {
+			connection.send(ShardProtocol.error(frame.requestID, "server stopped"));
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
+
+	/* ----------------------------------------------- */
+
+	/** Computes the response to a request */
+	ByteBuffer respond(Frame frame) {
+		try {
+			engine.indexLock.readLock().lock();
+			// the postings of the request are only kept until its response
+			engine.searcher.newSession();
+			try {
+				switch (frame.type) {
+				case ShardProtocol.STATS:
+					return ShardProtocol.statistics(frame.requestID, statistics(ShardProtocol.readStats(frame)));
+				case ShardProtocol.SEARCH:
+					ShardProtocol.SearchRequest request = ShardProtocol.readSearch(frame);
+					return ShardProtocol.results(frame.requestID, search(request), request.maxResults);
+				default:
+					return ShardProtocol.error(frame.requestID, "unknown request type " + frame.type);
+				}
+			}
+			finally {
+				engine.searcher.endSession();
+				engine.indexLock.readLock().unlock();
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+			return ShardProtocol.error(frame.requestID, String.valueOf(e));
+		}
+	}
+
+	/**
+	 *  Counts the documents of the shard and the documents containing every
+	 *  term of the query. Wildcard terms are expanded on the vocabulary of
+	 *  the shard, like the searcher does.
+	 */
+	ShardProtocol.Statistics statistics(Query query) {
+		Searcher searcher = engine.searcher;
+		ShardProtocol.Statistics stats = new ShardProtocol.Statistics();
+		stats.numDocs = Index.docLengths.size();
+		stats.wildcard = new boolean[query.queryterm.size()];
+		for (int i = 0; i < query.queryterm.size(); i++) {
+			String term = query.queryterm.get(i).term;
+			LinkedHashMap<String,Integer> df = new LinkedHashMap<>();
+			stats.wildcard[i] = searcher.kgramindex != null && term.length() >= searcher.K && term.indexOf('*') >= 0;
+			if (stats.wildcard[i]) {
+				for (int id : searcher.matchingTermIDs(term))
+					df.put(searcher.kgramindex.getTermByID(id), 0);
+			}
+			else
+				df.put(term, 0);
+			for (String t : df.keySet()) {
+				PostingsList list = searcher.getPostings(t);
+				df.put(t, list == null ? 0 : list.size());
+			}
+			stats.df.add(df);
+		}
+		return stats;
+	}
+
+	/**
+	 *  Runs a query on the shard. Ranked tf-idf queries use the global
+	 *  statistics of the request. The terms of a ranked query are in some
+	 *  document of the collection, but maybe not in this shard: PageRank
+	 *  queries are run on the terms of the shard. The other queries do not
+	 *  depend on the other shards.
+	 */
+	PostingsList search(ShardProtocol.SearchRequest request) {
+		Searcher searcher = engine.searcher;
+		if (request.queryType != QueryType.RANKED_QUERY)
+			return searcher.search(request.query, request.queryType, request.rankingType, request.maxResults);
+		if (request.rankingType != RankingType.PAGERANK)
+			return searcher.searchShard(request.query, request.rankingType, request.df, request.numDocs, request.maxResults);
+
+		Query local = new Query();
+		for (Query.QueryTerm t : request.query.queryterm) {
+			if (searcher.getPostings(t.term) != null)
+				local.addQueryTerm(t.term, t.weight);
+		}
+		if (local.queryterm.isEmpty())
+			return null;
+		return searcher.search(local, request.queryType, request.rankingType, request.maxResults);
+	}
+}
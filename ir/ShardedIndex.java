@@ -0,0 +1,107 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ *  In-memory index partitioned by document into shards, each a HashedIndex
+ *  holding the postings of its own documents. Document <code>d</code> goes
+ *  to shard <code>d % numShards</code>.
+ *
+ *  Ranked queries are scattered over the shards and run in parallel (see
+ *  {@link Searcher#searchShards}); the postings of a term in the whole
+ *  collection, used by the other kinds of queries, are the merge of its
+ *  postings in every shard.
+ */
+public class ShardedIndex implements Index {
+
+	/** The shards, indexed by docID modulo their number */
+	HashedIndex[] shards;
+
+	/** Runs the per-shard part of the queries */
+	ForkJoinPool pool;
+
+	public ShardedIndex(int numShards) {
+		shards = new HashedIndex[numShards];
+		for (int s = 0; s < numShards; s++)
+			shards[s] = new HashedIndex();
+		pool = new ForkJoinPool(Math.min(numShards, Runtime.getRuntime().availableProcessors()));
+	}
+
+	public int numShards() {
+		return shards.length;
+	}
+
+	/** Returns the shard holding document <code>docID</code> */
+	public int shardOf(int docID) {
+		return docID % shards.length;
+	}
+
+	/** Inserts a token into the shard of its document. */
+	public void insert(String token, int docID, int offset) {
+		shards[shardOf(docID)].insert(token, docID, offset);
+	}
+
+	/**
+	 *  Returns the postings of a term in all the shards, merged in docID
+	 *  order. The entries are those of the shards, not copies.
+	 */
+	public PostingsList getPostings(String token) {
+		ArrayList<PostingsList> lists = new ArrayList<>();
+		int size = 0;
+		for (HashedIndex shard : shards) {
+			PostingsList list = shard.getPostings(token);
+			if (list != null) {
+				lists.add(list);
+				size += list.size();
+			}
+		}
+		if (lists.isEmpty())
+			return null;
+		if (lists.size() == 1)
+			return lists.get(0);
+
+		PostingsList result = new PostingsList(new ArrayList<>(size));
+		int[] next = new int[lists.size()];
+		for (int n = 0; n < size; n++) {
+			int best = -1;
+			for (int l = 0; l < lists.size(); l++) {
+				if (next[l] < lists.get(l).size() && (best < 0 || lists.get(l).get(next[l]).docID < lists.get(best).get(next[best]).docID))
+					best = l;
+			}
+			result.addEntry(lists.get(best).get(next[best]++));
+		}
+		return result;
+	}
+
+	/**
+	 *  Runs one task per shard on the pool of the index, and returns their
+	 *  results in shard order.
+	 */
+	<T> List<T> scatter(List<Callable<T>> tasks) {
+		ArrayList<T> results = new ArrayList<>(tasks.size());
+		try {
+			for (Future<T> result : pool.invokeAll(tasks))
+				results.add(result.get());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return results;
+	}
+
+	/**
+	 *  The shards are HashedIndexes, which have nothing to write.
+	 */
+	public void cleanup() {
+		generation.incrementAndGet();
+	}
+}
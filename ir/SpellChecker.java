@@ -8,12 +8,11 @@
 package ir;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.StringTokenizer;
+import java.util.PriorityQueue;
 
 
 public class SpellChecker {
@@ -23,10 +22,33 @@ public class SpellChecker {
     /** K-gram index to be used by the spell checker */
     KGramIndex kgIndex;
 
-    HashMap<Integer, Integer> tokenSet;
+    /**
+     *  Buffers of one call to check, so that concurrent checks on the same
+     *  checker do not share any state.
+     */
+    static class Scratch {
+    	/** Overlap counters indexed by term id, all zero between two calls to generateCandidates */
+    	int[] counts = new int[0];
+    	
+    	/** Candidate term ids and their k-gram overlap, filled by generateCandidates */
+    	int[] candidates = new int[64], overlaps = new int[64];
+    	
+    	/** Row buffers reused by the edit distance computation */
+    	int[] prevRow = new int[32], currRow = new int[32];
+    	
+    	/** Stores candidate number <code>n</code> and its overlap, growing the arrays if needed */
+    	void setCandidate(int n, int id, int overlap) {
+    		if (n >= candidates.length) {
+    			candidates = Arrays.copyOf(candidates, 2 * n);
+    			overlaps = Arrays.copyOf(overlaps, 2 * n);
+    		}
+    		candidates[n] = id;
+    		overlaps[n] = overlap;
+    	}
+    }
     
     /** The auxiliary class for containing the value of your ranking function for a token */
-    class KGramStat implements Comparable {
+    class KGramStat implements Comparable<KGramStat> {
         double score;
         String token;
 
@@ -39,9 +61,9 @@ public class SpellChecker {
             return token;
         }
 
-	public int compareTo(Object other) {
-            if (this.score == ((KGramStat)other).score) return 0;
-            return this.score < ((KGramStat)other).score ? -1 : 1;
+	public int compareTo(KGramStat other) {
+            if (this.score == other.score) return 0;
+            return this.score < other.score ? -1 : 1;
         }
 
         public String toString() {
@@ -63,6 +85,14 @@ public class SpellChecker {
     private static final int MAX_EDIT_DISTANCE = 2;
 
 
+    /** Number of best candidates of every query term used to build corrected phrases */
+    private static final int BEAM_WIDTH = 10;
+
+
+    /** Maximum number of corrected phrases looked up in the index */
+    private static final int MAX_COMBINATIONS = 1000;
+
+
     public SpellChecker(Index index, KGramIndex kgIndex) {
         this.index = index;
         this.kgIndex = kgIndex;
@@ -83,87 +113,188 @@ public class SpellChecker {
      *      => insert (cost 1)
      *      => delete (cost 1)
      *      => substitute (cost 2)
+     *
+     * Only the cells at most <code>max</code> positions away from the diagonal
+     * are computed, since any other cell costs more than <code>max</code>.
+     * Returns <code>max + 1</code> as soon as the distance is known to exceed
+     * <code>max</code>.
      */
-    private int editDistance(String s1, String s2) {
-    	int m[][] = new int[s1.length()+1][s2.length()+1];
-        
-        for(int i = 0; i < s1.length()+1; i++) {
-            m[i][0] = i;
-        }
-       
-        for(int j = 0; j < s2.length()+1; j++) {
-            m[0][j] = j;
-        }
-       
-        for(int i = 1; i < s1.length()+1; i++) {
-            for(int j = 1; j < s2.length()+1; j++) {
-               
-                int v = m[i-1][j-1];
-                if(s1.charAt(i-1) != s2.charAt(j-1)) {
-                    v += 2;
-                    if(v > (m[i-1][j]+1))
-                        v = (m[i-1][j]+1);
-                    if(v > (m[i][j-1]+1))
-                        v = (m[i][j-1]+1);
-                    m[i][j] = v;
-                } else {
-                    m[i][j] = v;
-                }
-               
-            }
-        }
- 
-        return m[s1.length()][s2.length()];
+    private int editDistance(String s1, String s2, int max, Scratch scratch) {
+    	int n1 = s1.length(), n2 = s2.length();
+    	int inf = max + 1;
+    	
+    	if (Math.abs(n1 - n2) > max)
+    		return inf;
+    	
+    	if (scratch.prevRow.length < n2 + 2) {
+    		scratch.prevRow = new int[n2 + 2];
+    		scratch.currRow = new int[n2 + 2];
+    	}
+    	int[] prev = scratch.prevRow, curr = scratch.currRow, tmp;
+    	
+    	for (int j = 0; j <= n2 + 1; j++) {
+    		prev[j] = j <= max ? j : inf;
+    	}
+    	
+    	for (int i = 1; i <= n1; i++) {
+    		int from = Math.max(1, i - max);
+    		int to = Math.min(n2, i + max);
+    		char c = s1.charAt(i-1);
+    		
+    		// left border of the band
+    		curr[from-1] = (from == 1 && i <= max) ? i : inf;
+    		int rowMin = curr[from-1];
+    		
+    		for (int j = from; j <= to; j++) {
+    			int v = prev[j-1];
+    			if (c != s2.charAt(j-1)) {
+    				v += 2;
+    				if (v > prev[j] + 1)
+    					v = prev[j] + 1;
+    				if (v > curr[j-1] + 1)
+    					v = curr[j-1] + 1;
+    				if (v > inf)
+    					v = inf;
+    			}
+    			curr[j] = v;
+    			if (v < rowMin)
+    				rowMin = v;
+    		}
+    		// right border of the band, read by the next row
+    		curr[to+1] = inf;
+    		
+    		if (rowMin > max)
+    			return inf;
+    		
+    		tmp = prev;
+    		prev = curr;
+    		curr = tmp;
+    	}
+    	
+    	return prev[n2];
+    }
+
+    /** Number of k-grams of a term of length <code>len</code>, including the '$' markers */
+    int numKGrams(int len) {
+    	return len + 3 - kgIndex.getK();
+    }
+
+    /**
+     *  Smallest number of shared k-grams for which the Jaccard coefficient of
+     *  two k-gram sets of sizes <code>szA</code> and <code>szB</code> reaches
+     *  JACCARD_THRESHOLD.
+     */
+    private int minOverlap(int szA, int szB) {
+    	return (int) Math.ceil(JACCARD_THRESHOLD * (szA + szB) / (1 + JACCARD_THRESHOLD) - 1e-9);
+    }
+
+    /**
+     *  Collects the terms sharing enough k-grams with <code>term</code> to pass
+     *  JACCARD_THRESHOLD, counting the overlaps in a plain array (ScanCount).
+     *
+     *  Terms whose length cannot pass both thresholds are never counted, and
+     *  once the k-gram lists left to scan are too few for an unseen term to
+     *  reach the minimum overlap, only terms already seen are counted.
+     *
+     *  @return the number of candidates, stored with their overlap in
+     *  <code>scratch.candidates</code> and <code>scratch.overlaps</code>
+     */
+    int generateCandidates(String term, Scratch scratch) {
+    	int K = kgIndex.getK();
+    	String token = "$" + term + "$";
+    	int szA = numKGrams(term.length());
+    	
+    	// the sizes of two k-gram sets can differ at most by a factor JACCARD_THRESHOLD
+    	int minLen = Math.max(term.length() - MAX_EDIT_DISTANCE, (int) Math.ceil(szA * JACCARD_THRESHOLD - 1e-9) - 3 + K);
+    	int maxLen = Math.min(term.length() + MAX_EDIT_DISTANCE, (int) Math.floor(szA / JACCARD_THRESHOLD + 1e-9) - 3 + K);
+    	int minOverlap = minOverlap(szA, numKGrams(Math.max(minLen, 0)));
+    	
+    	ArrayList<List<KGramPostingsEntry>> lists = new ArrayList<>();
+    	for (int i = 0; i < token.length() - K + 1; i++) {
+    		List<KGramPostingsEntry> postings = kgIndex.getPostings(token.substring(i, i + K));
+    		if (postings != null)
+    			lists.add(postings);
+    	}
+    	// scan the short lists first, so that the long ones are scanned when no new terms are counted
+    	lists.sort((l1, l2) -> Integer.compare(l1.size(), l2.size()));
+    	
+    	if (scratch.counts.length <= kgIndex.lastTermID) {
+    		scratch.counts = new int[kgIndex.lastTermID + 1];
+    	}
+    	int[] counts = scratch.counts, candidates = scratch.candidates;
+    	int touched = 0;
+    	
+    	for (int i = 0; i < lists.size(); i++) {
+    		// a term first met in this list shares at most lists.size() - i k-grams
+    		boolean open = lists.size() - i >= minOverlap;
+    		
+    		for (KGramPostingsEntry p : lists.get(i)) {
+    			int id = p.tokenID;
+    			if (counts[id] == 0) {
+    				if (!open)
+    					continue;
+    				int len = kgIndex.getTermLength(id);
+    				if (len < minLen || len > maxLen)
+    					continue;
+    				if (touched == candidates.length)
+    					candidates = Arrays.copyOf(candidates, 2 * touched);
+    				candidates[touched++] = id;
+    			}
+    			counts[id]++;
+    		}
+    	}
+    	
+    	scratch.candidates = candidates;
+    	if (scratch.overlaps.length < touched)
+    		scratch.overlaps = new int[candidates.length];
+    	int[] overlaps = scratch.overlaps;
+    	int n = 0;
+    	for (int c = 0; c < touched; c++) {
+    		int id = candidates[c];
+    		if (counts[id] >= minOverlap(szA, numKGrams(kgIndex.getTermLength(id)))) {
+    			candidates[n] = id;
+    			overlaps[n++] = counts[id];
+    		}
+    		counts[id] = 0;
+    	}
+    	
+    	return n;
     }
 
     /**
      *  Checks spelling of all terms in <code>query</code> and returns up to
      *  <code>limit</code> ranked suggestions for spelling correction.
+     *
+     *  The candidate and edit distance buffers belong to the call, so one
+     *  checker serves concurrent searches.
      */
-    @SuppressWarnings("unchecked")
 	public String[] check(Query query, int limit) {    	
-    	ArrayList<KGramPostingsEntry> postings;
+    	Scratch scratch = new Scratch();
     	ArrayList<KGramStat> filteredToken;
     	ArrayList<ArrayList<KGramStat>> qCorrections = new ArrayList<ArrayList<KGramStat>>();
-    	int K = kgIndex.K;
-    	String kgram, token;
     	String[] result = null;
-    	int frequency;
     	
     	for (Query.QueryTerm qt:query.queryterm) {
-    		tokenSet = new HashMap<>();
     		filteredToken = new ArrayList<>();
     		
     		if (index.getPostings(qt.term) == null) {
-		    	token = "$" + qt.term + "$";
-		    	// generate kgrams from token and store kgindex postings in a table with frequency 
-		    	for (int i = 0; i < token.length() - K + 1; i++) {
-		    		kgram = token.substring(i, i + K);
-		    		
-		    		postings = (ArrayList<KGramPostingsEntry>) kgIndex.getPostings(kgram);
-		    		
-		    		if (postings != null) {
-			    		for (KGramPostingsEntry p:postings) {
-			    			frequency = 1;
-			    			if (tokenSet.containsKey(p.tokenID)) {
-			    				frequency += tokenSet.get(p.tokenID);
-			    			}
-			    			tokenSet.put(p.tokenID, frequency);
-			    		}
-		    		}
-		    	}
+		    	int n = generateCandidates(qt.term, scratch);
 		    	
 		    	double jaccardScore;
 		    	int szB, szA, editDistance;
-		    	// calculate scores for each element of the table and filter
-		    	for (Map.Entry<Integer,Integer> entry : tokenSet.entrySet()) {
-		    		szA = token.length() - 1;
-		    		szB = kgIndex.id2term.get(entry.getKey()).length() + 1;
-		    		jaccardScore = jaccard(szA, szB, entry.getValue());
-		    		editDistance = editDistance(qt.term, kgIndex.id2term.get(entry.getKey()));
+		    	String candidate;
+		    	// calculate scores for each candidate and filter
+		    	szA = numKGrams(qt.term.length());
+		    	for (int c = 0; c < n; c++) {
+		    		candidate = kgIndex.getTermByID(scratch.candidates[c]);
+		    		szB = numKGrams(candidate.length());
+		    		jaccardScore = jaccard(szA, szB, scratch.overlaps[c]);
+		    		if (jaccardScore < JACCARD_THRESHOLD)
+		    			continue;
 		    		
-		    		if (jaccardScore >= JACCARD_THRESHOLD && editDistance <= MAX_EDIT_DISTANCE) {
-		    			filteredToken.add(new KGramStat(kgIndex.id2term.get(entry.getKey()), editDistance - jaccardScore));
+		    		editDistance = editDistance(qt.term, candidate, MAX_EDIT_DISTANCE, scratch);
+		    		if (editDistance <= MAX_EDIT_DISTANCE) {
+		    			filteredToken.add(new KGramStat(candidate, editDistance - jaccardScore));
 		    		}
 		    	}
     		}
@@ -189,61 +320,106 @@ public class SpellChecker {
         return result;
     }
 
+    /**
+     *  A choice of one candidate for every query term, with the sum of their scores.
+     *  Only the candidates from position <code>last</code> onwards may be changed
+     *  to get the next combinations, so that every combination is generated once.
+     */
+    class Combination implements Comparable<Combination> {
+        int[] choice;
+        int last;
+        double score;
+
+        Combination(int[] choice, int last, double score) {
+            this.choice = choice;
+            this.last = last;
+            this.score = score;
+        }
+
+        public int compareTo(Combination other) {
+            return Double.compare(score, other.score);
+        }
+    }
+
     /**
      *  Merging ranked candidate spelling corrections for all query terms available in
      *  <code>qCorrections</code> into one final merging of query phrases. Returns up
      *  to <code>limit</code> corrected phrases.
+     *
+     *  Only the BEAM_WIDTH best candidates of every term are considered, and the
+     *  phrases are enumerated lazily from the best total score, so that at most
+     *  MAX_COMBINATIONS of them are looked up in the index. The intersection of
+     *  every phrase prefix is computed once and shared by all phrases starting
+     *  with it.
      */
-    @SuppressWarnings("unchecked")
 	private List<KGramStat> mergeCorrections(ArrayList<ArrayList<KGramStat>> qCorrections, int limit) {
-    	ArrayList<ArrayList<KGramStat>> combination = buildQuery(qCorrections, new ArrayList<KGramStat>(), new ArrayList<ArrayList<KGramStat>>(), 0);
+    	ArrayList<KGramStat> result = new ArrayList<>();
+    	ArrayList<ArrayList<KGramStat>> beam = new ArrayList<>();
+    	int n = qCorrections.size();
     	
-    	Comparator<ArrayList<KGramStat>> cmp = new Comparator<ArrayList<KGramStat>>() {
-			@Override
-			public int compare(ArrayList<KGramStat> o1, ArrayList<KGramStat> o2) {
-				Double score1 = 0., score2 = 0.;
-				
-				for(int i = 0; i < o1.size() || i < o2.size(); i++) {
-					if (i < o1.size())
-						score1 += o1.get(i).score;
-					if (i < o2.size())
-						score2 += o2.get(i).score;
-				}
-				
-				return score1.compareTo(score2);
-			}
-    	};
-    	Collections.sort(combination, cmp);
+    	for (ArrayList<KGramStat> corrections : qCorrections) {
+    		if (corrections.isEmpty())
+    			return result;
+    		ArrayList<KGramStat> sorted = new ArrayList<>(corrections);
+    		Collections.sort(sorted);
+    		beam.add(new ArrayList<>(sorted.subList(0, Math.min(BEAM_WIDTH, sorted.size()))));
+    	}
+    	if (n == 0)
+    		return result;
     	
-    	ArrayList<KGramStat> result = new ArrayList<>();
+    	PriorityQueue<Combination> queue = new PriorityQueue<>();
+    	double score = 0;
+    	for (ArrayList<KGramStat> candidates : beam)
+    		score += candidates.get(0).score;
+    	queue.add(new Combination(new int[n], 0, score));
     	
-    	int idx = 0;
-		StringBuffer query;
-    	while (result.size() < limit) {
+    	HashMap<String, PostingsList> prefixes = new HashMap<>();
+    	HashMap<String, PostingsList> postings = new HashMap<>();
+    	int visited = 0;
+    	
+    	while (result.size() < limit && !queue.isEmpty() && visited++ < MAX_COMBINATIONS) {
+    		Combination combination = queue.poll();
+    		
+    		// intersection, reusing the intersections of the prefixes already seen
+    		StringBuffer query = new StringBuffer();
+    		PostingsList answer = null;
+    		for (int i = 0; i < n; i++) {
+    			String token = beam.get(i).get(combination.choice[i]).token;
+    			query.append(token + " ");
+    			String prefix = query.toString();
+    			
+    			if (prefixes.containsKey(prefix)) {
+    				answer = prefixes.get(prefix);
+    			} else {
+    				if (!postings.containsKey(token))
+    					postings.put(token, index.getPostings(token));
+    				PostingsList list = postings.get(token);
+    				
+    				if (i == 0)
+    					answer = list;
+    				else if (answer != null && list != null)
+    					answer = intersect(answer, list);
+    				else
+    					answer = null;
+    				prefixes.put(prefix, answer);
+    			}
+    			if (answer == null)
+    				break;
+    		}
     		
-    		if (idx >= combination.size())
-    			break;
+    		// put number of retrieved documents as score
+    		if (answer != null)
+    			result.add(new KGramStat(query.toString(), -answer.size()));
     		
-			query = new StringBuffer();
-			
-			for(KGramStat k:combination.get(idx)) 
-				query.append(k.token + " ");
-			
-			// intersection
-			StringTokenizer st = new StringTokenizer(query.toString());
-			PostingsList list;
-			PostingsList answer = index.getPostings(st.nextToken());
-			while (st.hasMoreTokens()) {
-	    		list = index.getPostings(st.nextToken());
-				if(answer == null || list == null) break;
-				answer = intersect(answer, list);
-			}
-			
-			// put number of retrieved documents as score
-			if (answer != null) 
-				result.add(new KGramStat(query.toString(), -answer.size()));
-			
-			idx++;
+    		// next best combinations
+    		for (int i = combination.last; i < n; i++) {
+    			int next = combination.choice[i] + 1;
+    			if (next < beam.get(i).size()) {
+    				int[] choice = combination.choice.clone();
+    				choice[i] = next;
+    				queue.add(new Combination(choice, i, combination.score - beam.get(i).get(next - 1).score + beam.get(i).get(next).score));
+    			}
+    		}
     	}
     	
     	Collections.sort(result);
@@ -251,26 +427,6 @@ public class SpellChecker {
         return(result);
     }
     
-    public ArrayList<ArrayList<KGramStat>> buildQuery(ArrayList<ArrayList<KGramStat>> list, ArrayList<KGramStat> partial, ArrayList<ArrayList<KGramStat>> result, int index) {
-    	 
-        if(index == list.size()) {
-            result.add(new ArrayList<KGramStat>());
-            for(KGramStat entry : partial) {
-                result.get(result.size()-1).add(new KGramStat(entry.token, entry.score));
-            }
-            return result;
-        }
- 
-        for(KGramStat entry : list.get(index)) {
-            partial.add(entry);
-            result = buildQuery(list, partial, result, index+1);
-            partial.remove(partial.size()-1);
-        }
- 
-        return result;
- 
-    }
-    
     private PostingsList intersect(PostingsList p1, PostingsList p2) {
     	PostingsList result = new PostingsList();
     	PostingsEntry entry1, entry2;
@@ -0,0 +1,57 @@
+package ir;
+
+/**
+ *  Spell checker finding its candidates in a symmetric delete index instead
+ *  of scanning the k-gram postings. Candidates are scored and filtered exactly
+ *  like in {@link SpellChecker}, so both give the same corrections.
+ */
+public class SymSpellChecker extends SpellChecker {
+
+	/** The symmetric delete index, built from the vocabulary of the k-gram index */
+	SymSpellIndex symIndex;
+
+	public SymSpellChecker(Index index, KGramIndex kgIndex, SymSpellIndex symIndex) {
+		super(index, kgIndex);
+		this.symIndex = symIndex;
+	}
+
+	/**
+	 *  Looks up every delete of <code>term</code> in the symmetric delete index.
+	 *  The k-gram overlap is computed only for the terms found there. The
+	 *  overlap counters of <code>scratch</code> mark the terms already
+	 *  collected, and are cleared again before returning.
+	 */
+	@Override
+	int generateCandidates(String term, Scratch scratch) {
+		int K = kgIndex.getK();
+		String token = "$" + term + "$";
+
+		if (scratch.counts.length <= kgIndex.lastTermID)
+			scratch.counts = new int[kgIndex.lastTermID + 1];
+		int[] seen = scratch.counts;
+
+		int n = 0;
+		for (String delete : symIndex.deletes(term)) {
+			int[] ids = symIndex.getTermIDs(delete);
+			if (ids == null)
+				continue;
+
+			for (int id : ids) {
+				if (seen[id] != 0)
+					continue;
+				seen[id] = 1;
+
+				String candidate = "$" + kgIndex.getTermByID(id) + "$";
+				int overlap = 0;
+				for (int i = 0; i < token.length() - K + 1; i++) {
+					if (candidate.contains(token.substring(i, i + K)))
+						overlap++;
+				}
+				scratch.setCandidate(n++, id, overlap);
+			}
+		}
+		for (int c = 0; c < n; c++)
+			seen[scratch.candidates[c]] = 0;
+		return n;
+	}
+}
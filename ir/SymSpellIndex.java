@@ -0,0 +1,195 @@
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ *  Symmetric delete spelling index. Every term of the k-gram index vocabulary
+ *  is stored under all the strings obtained by deleting up to
+ *  <code>maxDeletes</code> of its characters. Two terms within edit distance
+ *  <code>maxDeletes</code> (insert and delete cost 1, substitute cost 2) always
+ *  share one of these strings, so the candidate corrections of a term are found
+ *  by looking up its own deletes.
+ */
+public class SymSpellIndex {
+
+	/** The symmetric delete index file name */
+	public static final String SYMSPELL_FNAME = "symspell";
+
+	/** Marks the beginning of a symmetric delete index file */
+	private static final int MAGIC = 0x53594D44;
+
+	/** Maximum number of deleted characters */
+	int maxDeletes;
+
+	/** Number of terms of the vocabulary the index was built from */
+	int numTerms = 0;
+
+	/** Mapping from deletes to the ids of the terms generating them */
+	HashMap<String,int[]> index = new HashMap<String,int[]>();
+
+	/** The symmetric delete file mapped in memory, if the index was read from disk */
+	ByteBuffer mapped;
+
+	/** Position in the mapped file of the term ids of every delete */
+	HashMap<String,Integer> deletePtr = new HashMap<String,Integer>();
+
+	public SymSpellIndex(int maxDeletes) {
+		this.maxDeletes = maxDeletes;
+	}
+
+	/**
+	 *  Returns all strings obtained by deleting at most <code>maxDeletes</code>
+	 *  characters from <code>term</code>, including the term itself.
+	 */
+	public HashSet<String> deletes(String term) {
+		HashSet<String> result = new HashSet<>();
+		result.add(term);
+		addDeletes(term, maxDeletes, result);
+		return result;
+	}
+
+	private void addDeletes(String term, int left, HashSet<String> result) {
+		if (left == 0)
+			return;
+		for (int i = 0; i < term.length(); i++) {
+			String delete = term.substring(0, i) + term.substring(i + 1);
+			if (result.add(delete))
+				addDeletes(delete, left - 1, result);
+		}
+	}
+
+	/**
+	 *  Builds the index from the vocabulary of <code>kgIndex</code>.
+	 *  The term ids of every delete are stored in increasing order.
+	 */
+	public void build(KGramIndex kgIndex) {
+		index.clear();
+		deletePtr.clear();
+		mapped = null;
+		numTerms = kgIndex.lastTermID + 1;
+
+		// the first element of every array is the number of ids stored in it
+		for (int id = 0; id < numTerms; id++) {
+			for (String delete : deletes(kgIndex.getTermByID(id))) {
+				int[] ids = index.get(delete);
+				if (ids == null) {
+					ids = new int[2];
+					index.put(delete, ids);
+				}
+				else if (ids[0] + 1 == ids.length) {
+					ids = Arrays.copyOf(ids, 2 * ids.length);
+					index.put(delete, ids);
+				}
+				ids[++ids[0]] = id;
+			}
+		}
+		for (HashMap.Entry<String,int[]> entry : index.entrySet()) {
+			int[] ids = entry.getValue();
+			entry.setValue(Arrays.copyOfRange(ids, 1, ids[0] + 1));
+		}
+	}
+
+	/** Returns the ids of the terms generating <code>delete</code>, or null */
+	public int[] getTermIDs(String delete) {
+		int[] ids = index.get(delete);
+		if (ids == null && mapped != null && deletePtr.containsKey(delete)) {
+			ByteBuffer buf = mapped.duplicate();
+			buf.position(deletePtr.get(delete));
+
+			ids = new int[VByte.read(buf)];
+			VByte.read(buf);
+			int id = 0;
+			for (int i = 0; i < ids.length; i++) {
+				id += VByte.read(buf);
+				ids[i] = id;
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 *  Writes the index to the file <code>name</code> of <code>dirname</code>,
+	 *  atomically, in the same layout as the k-gram index: every delete with
+	 *  its term ids stored as variable byte encoded gaps.
+	 */
+	public void writeIndex(String dirname, String name) throws IOException {
+		IndexManifest.writeAtomically(dirname, name, out -> {
+			out.writeInt(MAGIC);
+			out.writeInt(maxDeletes);
+			out.writeInt(numTerms);
+			out.writeInt(index.size());
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream idsOut = new DataOutputStream(bytes);
+			for (HashMap.Entry<String,int[]> entry : index.entrySet()) {
+				int last = 0;
+
+				bytes.reset();
+				for (int id : entry.getValue()) {
+					VByte.write(idsOut, id - last);
+					last = id;
+				}
+
+				VByte.writeString(out, entry.getKey());
+				VByte.write(out, entry.getValue().length);
+				VByte.write(out, bytes.size());
+				bytes.writeTo(out);
+			}
+		});
+	}
+
+	/**
+	 *  Maps the index written by {@link #writeIndex} in memory.
+	 *
+	 *  @return false if there is no file <code>name</code> in <code>dirname</code>,
+	 *  if it is damaged, or if it was built from a vocabulary of a different
+	 *  size than <code>kgIndex</code>
+	 */
+	public boolean readIndex(String dirname, String name, KGramIndex kgIndex) {
+		if (name == null)
+			return false;
+		File file = new File(dirname, name);
+		if (!file.exists())
+			return false;
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			ByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+
+			if (buf.getInt() != MAGIC || buf.getInt() != maxDeletes || buf.getInt() != kgIndex.lastTermID + 1) {
+				System.err.println("The symmetric delete index on disk does not match the k-gram index");
+				return false;
+			}
+			int numDeletes = buf.getInt();
+
+			index.clear();
+			deletePtr = new HashMap<String,Integer>(numDeletes * 2);
+			for (int i = 0; i < numDeletes; i++) {
+				String delete = VByte.readString(buf);
+				deletePtr.put(delete, buf.position());
+				VByte.read(buf);
+				int len = VByte.read(buf);
+				buf.position(buf.position() + len);
+			}
+			if (buf.position() != buf.limit())
+				throw new IllegalStateException("trailing bytes");
+			numTerms = kgIndex.lastTermID + 1;
+			mapped = buf;
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			deletePtr = new HashMap<String,Integer>();
+			return false;
+		}
+		catch (RuntimeException e) {
+			System.err.println("Damaged symmetric delete index " + file + ": " + e);
+			deletePtr = new HashMap<String,Integer>();
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,59 @@
+package ir;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *  Variable byte encoding of non-negative integers, used by the binary
+ *  index files. Each byte carries 7 bits of the value, the high bit is
+ *  set on every byte except the last one.
+ */
+public class VByte {
+
+	/**
+	 *  Writes <code>v</code> to <code>out</code> and returns the number of bytes written.
+	 */
+	public static int write(DataOutput out, int v) throws IOException {
+		int n = 1;
+		while ((v & ~0x7F) != 0) {
+			out.writeByte((v & 0x7F) | 0x80);
+			v >>>= 7;
+			n++;
+		}
+		out.writeByte(v);
+		return n;
+	}
+
+	/**
+	 *  Reads one value starting at the current position of <code>buf</code>.
+	 */
+	public static int read(ByteBuffer buf) {
+		int b = buf.get();
+		int v = b & 0x7F;
+		for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+			b = buf.get();
+			v |= (b & 0x7F) << shift;
+		}
+		return v;
+	}
+
+	/**
+	 *  Writes a string as its UTF-8 byte length followed by the bytes.
+	 */
+	public static void writeString(DataOutput out, String s) throws IOException {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		write(out, b.length);
+		out.write(b);
+	}
+
+	/**
+	 *  Reads a string written by {@link #writeString}.
+	 */
+	public static String readString(ByteBuffer buf) {
+		byte[] b = new byte[read(buf)];
+		buf.get(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+}
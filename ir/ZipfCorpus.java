@@ -0,0 +1,478 @@
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.edit.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+
+/**
+ *  Synthetic collection of text documents whose words follow a Zipf
+ *  distribution: the word of rank r occurs with a probability proportional
+ *  to 1 / r^exponent. The words are pronounceable strings of lower case
+ *  letters, shorter for the frequent ranks, which the tokenizer keeps as
+ *  they are.
+ *
+ *  Everything is derived from the seed: the same seed gives the same
+ *  vocabulary, and document <code>d</code> the same text, whatever the
+ *  other documents generated.
+ *
+ *  Besides the documents, the generator writes the inputs needed to test
+ *  the engine at scale: a link graph in the format of
+ *  {@link PageRank#readLinks} with its titles file, and a query log in the
+ *  format of {@link BatchRunner}. Run as a program it writes all three, for
+ *  instance
+ *  <pre>
+ *  ZipfCorpus -n 10000000 -d corpus -l links.txt -t titles.txt -q queries.txt
+ *  PageRank -l links.txt -t titles.txt -o ranks.txt
+ *  Engine -d corpus -r ranks.txt ...
+ *  </pre>
+ */
+public class ZipfCorpus {
+
+	/** Syllables the words are made of, shuffled by the seed */
+	String[] syllables;
+
+	/** Cumulative probability of the words of rank 0 to i */
+	double[] cdf;
+
+	/** The words, by rank */
+	String[] words;
+
+	long seed;
+
+	/** Length of the documents, in words */
+	int minLength = 50, maxLength = 550;
+
+	/** Fraction of the documents written as PDF files instead of text files */
+	double pdfFraction = 0;
+
+	/** Number of threads writing the documents */
+	int numThreads = 1;
+
+	/** Mean number of out-links of a document */
+	double meanOutDegree = 8;
+
+	/**
+	 *  Probability that a link goes to a popular document rather than to
+	 *  any document, which gives the in-degrees a power law tail.
+	 */
+	double popularLinkProbability = 0.5;
+
+	public ZipfCorpus(int vocabularySize, double exponent, long seed) {
+		this.seed = seed;
+		String consonants = "bcdfghjklmnprstvz", vowels = "aeiou";
+		syllables = new String[consonants.length() * vowels.length()];
+		for (int c = 0; c < consonants.length(); c++) {
+			for (int v = 0; v < vowels.length(); v++)
+				syllables[c * vowels.length() + v] = "" + consonants.charAt(c) + vowels.charAt(v);
+		}
+		SplittableRandom random = new SplittableRandom(seed);
+		for (int i = syllables.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			String s = syllables[i];
+			syllables[i] = syllables[j];
+			syllables[j] = s;
+		}
+
+		words = new String[vocabularySize];
+		cdf = new double[vocabularySize];
+		double sum = 0;
+		for (int r = 0; r < vocabularySize; r++) {
+			words[r] = makeWord(r);
+			sum += 1 / Math.pow(r + 1, exponent);
+			cdf[r] = sum;
+		}
+		for (int r = 0; r < vocabularySize; r++)
+			cdf[r] /= sum;
+	}
+
+	/**
+	 *  The word of rank <code>r</code>: r + 1 written in bijective base
+	 *  <code>syllables.length</code>, one syllable per digit, so that every
+	 *  rank has its own word.
+	 */
+	private String makeWord(int r) {
+		StringBuilder word = new StringBuilder();
+		for (long n = r + 1L; n > 0; n = (n - 1) / syllables.length)
+			word.append(syllables[(int) ((n - 1) % syllables.length)]);
+		return word.toString();
+	}
+
+	public int vocabularySize() {
+		return words.length;
+	}
+
+	/** The word of rank <code>r</code> */
+	public String word(int r) {
+		return words[r];
+	}
+
+	/** Draws the rank of a word */
+	public int sampleRank(SplittableRandom random) {
+		double u = random.nextDouble();
+		int lo = 0, hi = cdf.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (cdf[mid] < u)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/** Draws a word */
+	public String sampleWord(SplittableRandom random) {
+		return words[sampleRank(random)];
+	}
+
+	/** The random generator of document <code>docID</code>, independent of the other documents */
+	SplittableRandom documentRandom(int docID) {
+		return new SplittableRandom(seed * 0x9E3779B97F4A7C15L + docID);
+	}
+
+	/** The text of document <code>docID</code>, words separated by spaces with a line break every 12 words */
+	public String document(int docID) {
+		SplittableRandom random = documentRandom(docID);
+		int length = minLength + random.nextInt(maxLength - minLength + 1);
+		StringBuilder text = new StringBuilder(length * 6);
+		for (int i = 0; i < length; i++) {
+			text.append(sampleWord(random));
+			text.append(i % 12 == 11 ? '\n' : ' ');
+		}
+		return text.toString();
+	}
+
+	/** The random generator of the links of document <code>docID</code> */
+	SplittableRandom linkRandom(int docID) {
+		return new SplittableRandom(~seed * 0x9E3779B97F4A7C15L + docID);
+	}
+
+	/** Whether document <code>docID</code> is written as a PDF file */
+	public boolean isPDF(int docID) {
+		return pdfFraction > 0 && new SplittableRandom((seed + docID) * 0xBF58476D1CE4E5B9L).nextDouble() < pdfFraction;
+	}
+
+	/**
+	 *  Path of document <code>docID</code> under the corpus directory. The
+	 *  documents are spread over subdirectories of 1000 files.
+	 */
+	public String fileName(int docID) {
+		return String.format("d%05d/d%07d.%s", docID / 1000, docID, isPDF(docID) ? "pdf" : "txt");
+	}
+
+	/**
+	 *  Writes documents 0 to numDocs - 1 under <code>dir</code>, one
+	 *  subdirectory at a time on each of the <code>numThreads</code> threads.
+	 */
+	public void write(File dir, int numDocs) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		ArrayList<Future<Void>> results = new ArrayList<>();
+		try {
+			for (int first = 0; first < numDocs; first += 1000) {
+				final int start = first, end = Math.min(first + 1000, numDocs);
+				results.add(pool.submit(() -> {
+					new File(dir, fileName(start)).getParentFile().mkdirs();
+					for (int d = start; d < end; d++)
+						writeDocument(new File(dir, fileName(d)), d);
+					return null;
+				}));
+			}
+			for (int i = 0; i < results.size(); i++) {
+				results.get(i).get();
+				if (i % 100 == 99)
+					System.err.println("Wrote " + (i + 1) * 1000 + " documents");
+			}
+		}
+		catch (Exception e) {
+			Throwable cause = e.getCause() != null ? e.getCause() : e;
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException(cause);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	void writeDocument(File f, int docID) throws IOException {
+		if (isPDF(docID)) {
+			writePDF(f, document(docID));
+			return;
+		}
+		try (Writer out = new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8)) {
+			out.write(document(docID));
+		}
+	}
+
+	/** Lines of text on a PDF page */
+	static final int LINES_PER_PAGE = 55;
+
+	/** Writes <code>text</code> to a PDF file, one line of the text per line of the page */
+	static void writePDF(File f, String text) throws IOException {
+		String[] lines = text.split("\n");
+		PDDocument doc = new PDDocument();
+		try {
+			for (int first = 0; first < lines.length; first += LINES_PER_PAGE) {
+				PDPage page = new PDPage();
+				doc.addPage(page);
+				PDPageContentStream content = new PDPageContentStream(doc, page);
+				content.beginText();
+				content.setFont(PDType1Font.HELVETICA, 10);
+				content.moveTextPositionByAmount(50, 740);
+				for (int i = first; i < Math.min(first + LINES_PER_PAGE, lines.length); i++) {
+					content.drawString(lines[i].trim());
+					content.moveTextPositionByAmount(0, -12);
+				}
+				content.endText();
+				content.close();
+			}
+			doc.save(f.getPath());
+		}
+		catch (COSVisitorException e) {
+			throw new IOException(e);
+		}
+		finally {
+			doc.close();
+		}
+	}
+
+	/* ----------------------------------------------- */
+
+	/**
+	 *  The documents document <code>docID</code> links to. The number of
+	 *  links is geometric with mean <code>meanOutDegree</code>, so some
+	 *  documents have no links at all. A link goes either to any document,
+	 *  or to a popular one: the popularity of the documents follows a power
+	 *  law, and the most popular ones are spread over the docIDs.
+	 */
+	public int[] links(int docID, int numDocs) {
+		SplittableRandom random = linkRandom(docID);
+		int degree = (int) (Math.log(1 - random.nextDouble()) / Math.log(meanOutDegree / (meanOutDegree + 1)));
+		int[] links = new int[Math.min(degree, numDocs - 1)];
+		for (int i = 0; i < links.length; i++) {
+			int target;
+			do {
+				if (random.nextDouble() < popularLinkProbability) {
+					long popularity = (long) Math.pow(numDocs, random.nextDouble()) - 1;
+					target = (int) (popularity * 1000000007L % numDocs);
+				}
+				else
+					target = random.nextInt(numDocs);
+			} while (target == docID);
+			links[i] = target;
+		}
+		return links;
+	}
+
+	/**
+	 *  Writes the link graph of documents 0 to numDocs - 1, with lines
+	 *  <code>docID;target,target,...</code> where the nodes are named by
+	 *  docID, and the titles file which maps the nodes to the file names of
+	 *  the documents, with lines <code>docID;name</code>. PageRank run on
+	 *  the two files gives ranks by file name, as the engine reads them.
+	 */
+	public void writeLinks(File linkFile, File titleFile, int numDocs) throws IOException {
+		try (Writer links = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(linkFile), StandardCharsets.UTF_8));
+			 Writer titles = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(titleFile), StandardCharsets.UTF_8))) {
+			StringBuilder line = new StringBuilder();
+			for (int d = 0; d < numDocs; d++) {
+				line.setLength(0);
+				line.append(d).append(';');
+				int[] targets = links(d, numDocs);
+				for (int i = 0; i < targets.length; i++) {
+					if (i > 0)
+						line.append(',');
+					line.append(targets[i]);
+				}
+				links.write(line.append('\n').toString());
+				titles.write(d + ";" + PageRank.fileName(fileName(d)) + "\n");
+			}
+		}
+	}
+
+	/* ----------------------------------------------- */
+
+	/** Kinds of queries in the query log */
+	enum QueryKind { RANKED, COMBINATION, PAGERANK, INTERSECTION, PHRASE, WILDCARD, MISSPELLED }
+
+	/** Share of every kind of query in the log, in percent, in the order of QueryKind */
+	static final int[] QUERY_MIX = { 40, 8, 4, 15, 15, 10, 8 };
+
+	/**
+	 *  Draws a query of <code>kind</code>, as a line of the query log. The
+	 *  words of a query are taken from one document, so that they occur
+	 *  together like the words of a real query: the phrases are consecutive
+	 *  words of the document, the wildcards a prefix or a suffix of one of
+	 *  its words, and the misspelled queries have one edit in one word.
+	 */
+	String query(QueryKind kind, SplittableRandom random, int numDocs) {
+		String[] words = document(random.nextInt(numDocs)).split("\\s+");
+		switch (kind) {
+		case RANKED:
+			return "ranked;tfidf;" + someWords(words, 1 + random.nextInt(4), random);
+		case COMBINATION:
+			return "ranked;combination;" + someWords(words, 1 + random.nextInt(4), random);
+		case PAGERANK:
+			return "ranked;pagerank;" + someWords(words, 1 + random.nextInt(2), random);
+		case INTERSECTION:
+			return "intersection;tfidf;" + someWords(words, 2 + random.nextInt(2), random);
+		case PHRASE: {
+			int length = 2 + random.nextInt(2);
+			int start = random.nextInt(words.length - length + 1);
+			StringBuilder phrase = new StringBuilder(words[start]);
+			for (int i = 1; i < length; i++)
+				phrase.append(' ').append(words[start + i]);
+			return "phrase;tfidf;" + phrase;
+		}
+		case WILDCARD: {
+			String word = longWord(words, random);
+			int length = Math.min(3, word.length() - 1);
+			String pattern = random.nextBoolean() ? word.substring(0, length) + "*" : "*" + word.substring(word.length() - length);
+			return (random.nextBoolean() ? "ranked;tfidf;" : "intersection;tfidf;") + pattern + " " + someWords(words, 1, random);
+		}
+		default: {
+			String[] query = someWords(words, 1 + random.nextInt(3), random).split(" ");
+			int i = random.nextInt(query.length);
+			query[i] = misspell(query[i], random);
+			return "ranked;tfidf;" + String.join(" ", query);
+		}
+		}
+	}
+
+	/** <code>n</code> different words drawn from <code>words</code>, separated by spaces */
+	static String someWords(String[] words, int n, SplittableRandom random) {
+		ArrayList<String> chosen = new ArrayList<>();
+		for (int tries = 0; chosen.size() < n && tries < 10 * n; tries++) {
+			String word = words[random.nextInt(words.length)];
+			if (!chosen.contains(word))
+				chosen.add(word);
+		}
+		return String.join(" ", chosen);
+	}
+
+	/** A word of at least 4 letters drawn from <code>words</code>, if there is one */
+	static String longWord(String[] words, SplittableRandom random) {
+		String longest = words[0];
+		for (int tries = 0; tries < 100; tries++) {
+			String word = words[random.nextInt(words.length)];
+			if (word.length() >= 4)
+				return word;
+			if (word.length() > longest.length())
+				longest = word;
+		}
+		return longest;
+	}
+
+	/** <code>word</code> with one letter substituted, deleted, inserted or transposed */
+	static String misspell(String word, SplittableRandom random) {
+		int pos = random.nextInt(word.length());
+		char c = (char) ('a' + random.nextInt(26));
+		switch (random.nextInt(word.length() > 2 ? 4 : 3)) {
+		case 0:
+			return word.substring(0, pos) + c + word.substring(pos + 1);
+		case 1:
+			return word.substring(0, pos) + c + word.substring(pos);
+		case 2:
+			return word.length() > 1 ? word.substring(0, pos) + word.substring(pos + 1) : word + c;
+		default:
+			pos = Math.min(pos, word.length() - 2);
+			return word.substring(0, pos) + word.charAt(pos + 1) + word.charAt(pos) + word.substring(pos + 2);
+		}
+	}
+
+	/**
+	 *  Writes a log of <code>numQueries</code> queries on documents 0 to
+	 *  numDocs - 1, in the format of {@link BatchRunner}. The queries are
+	 *  drawn from a pool of distinct queries, a quarter of the size of the
+	 *  log: half of them uniformly, and half with a power law so that a few
+	 *  queries come back often, like in the logs of a real engine.
+	 */
+	public void writeQueries(File queryFile, int numDocs, int numQueries) throws IOException {
+		SplittableRandom random = new SplittableRandom(seed ^ 0x5DEECE66DL);
+		int total = 0;
+		for (int share : QUERY_MIX)
+			total += share;
+		String[] pool = new String[Math.max(1, numQueries / 4)];
+		for (int q = 0; q < pool.length; q++) {
+			int draw = random.nextInt(total), kind = 0;
+			while (draw >= QUERY_MIX[kind])
+				draw -= QUERY_MIX[kind++];
+			pool[q] = query(QueryKind.values()[kind], random, numDocs);
+		}
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(queryFile), StandardCharsets.UTF_8))) {
+			for (int q = 0; q < numQueries; q++) {
+				if (random.nextBoolean())
+					out.write(pool[random.nextInt(pool.length)] + "\n");
+				else {
+					long rank = (long) Math.pow(pool.length, random.nextDouble()) - 1;
+					out.write(pool[(int) (rank * 1000000007L % pool.length)] + "\n");
+				}
+			}
+		}
+	}
+
+	/* ----------------------------------------------- */
+
+	private static HashMap<String,String> decodeArgs( String[] args ) {
+		HashMap<String,String> decodedArgs = new HashMap<String,String>();
+		int i=0;
+		while ( i < args.length ) {
+			String option = args[i++];
+			if ( i < args.length && ( "-n".equals( option ) || "-v".equals( option ) || "-z".equals( option ) ||
+				"-s".equals( option ) || "-d".equals( option ) || "-l".equals( option ) || "-t".equals( option ) ||
+				"-q".equals( option ) || "-nq".equals( option ) || "-pdf".equals( option ) || "-j".equals( option ))) {
+				decodedArgs.put( option, args[i++] );
+			}
+			else {
+				System.err.println( "Unknown option: " + option );
+				break;
+			}
+		}
+		return decodedArgs;
+	}
+
+	/**
+	 *  Options: -n documents, -v vocabulary size, -z Zipf exponent, -s seed,
+	 *  -d directory the documents are written to, -pdf fraction of the
+	 *  documents written as PDF, -j threads writing the documents, -l link
+	 *  file and -t titles file of the link graph, -q query log and -nq
+	 *  number of queries in it. Only the outputs given are written.
+	 */
+	public static void main( String[] arguments ) throws IOException {
+		HashMap<String,String> args = decodeArgs( arguments );
+		int numDocs = Integer.parseInt( args.getOrDefault( "-n", "10000" ));
+		ZipfCorpus corpus = new ZipfCorpus( Integer.parseInt( args.getOrDefault( "-v", "100000" )), Double.parseDouble( args.getOrDefault( "-z", "1.0" )), Long.parseLong( args.getOrDefault( "-s", "1" )));
+		corpus.pdfFraction = Double.parseDouble( args.getOrDefault( "-pdf", "0" ));
+		corpus.numThreads = Integer.parseInt( args.getOrDefault( "-j", "" + Runtime.getRuntime().availableProcessors() ));
+
+		if ( args.containsKey( "-d" )) {
+			long start = System.currentTimeMillis();
+			corpus.write( new File( args.get( "-d" )), numDocs );
+			System.err.println( "Wrote " + numDocs + " documents to " + args.get( "-d" ) + " in " + ( System.currentTimeMillis() - start ) / 1000.0 + " s" );
+		}
+		if ( args.containsKey( "-l" ) || args.containsKey( "-t" )) {
+			if ( !args.containsKey( "-l" ) || !args.containsKey( "-t" )) {
+				System.err.println( "The link graph needs both a link file (-l) and a titles file (-t)" );
+				System.exit( 1 );
+			}
+			corpus.writeLinks( new File( args.get( "-l" )), new File( args.get( "-t" )), numDocs );
+			System.err.println( "Wrote the link graph to " + args.get( "-l" ) + " and " + args.get( "-t" ));
+		}
+		if ( args.containsKey( "-q" )) {
+			int numQueries = Integer.parseInt( args.getOrDefault( "-nq", "10000" ));
+			corpus.writeQueries( new File( args.get( "-q" )), numDocs, numQueries );
+			System.err.println( "Wrote " + numQueries + " queries to " + args.get( "-q" ));
+		}
+	}
+}
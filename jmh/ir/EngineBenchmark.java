@@ -0,0 +1,227 @@
+package ir;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ *  JMH microbenchmarks of the hot paths of the engine: tokenizing, inserting
+ *  into a HashedIndex, writing and reading postings in the format of the
+ *  persistent index, intersection, phrase and ranked queries, wildcard
+ *  expansion and spelling correction. They run on a synthetic Zipf corpus
+ *  (see {@link ZipfCorpus}), so that the results are reproducible without
+ *  the davisWiki collection: the same seed gives the same documents and
+ *  the same queries.
+ *
+ *  Every benchmark is a method of its own, so that JMH compiles and
+ *  measures it separately, and its results go to a Blackhole. The corpus
+ *  is written and indexed once per fork.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class EngineBenchmark {
+
+	static final int NUM_QUERIES = 1000;
+
+	/** The indexed corpus and the queries, shared by the threads of a benchmark */
+	@State(Scope.Benchmark)
+	public static class Corpus {
+
+		@Param("2000")
+		int numDocs;
+
+		@Param("50000")
+		int vocabulary;
+
+		@Param("1.0")
+		double zipfExponent;
+
+		@Param("1")
+		long seed;
+
+		/** Patterns file of the tokenizer, none if empty */
+		@Param("")
+		String patterns;
+
+		String patterns_file;
+
+		ZipfCorpus corpus;
+		String[] texts;
+		String[][] tokens;
+		HashedIndex index;
+		KGramIndex kgramindex;
+		Searcher searcher;
+		PermutermIndex permuterm;
+		SpellChecker speller;
+
+		/** Postings lists, and their stored form, of terms of all frequencies */
+		String[] postingsTerms, postingsStrings;
+
+		String[] termQueries, phraseQueries, wildcardPatterns, misspellings;
+
+		/**
+		 *  Writes the corpus to a temporary directory, indexes it with the
+		 *  Indexer like the engine does, and draws the queries.
+		 */
+		@Setup(Level.Trial)
+		public void setup() throws IOException {
+			patterns_file = patterns.isEmpty() ? null : patterns;
+			corpus = new ZipfCorpus(vocabulary, zipfExponent, seed);
+			texts = new String[numDocs];
+			tokens = new String[numDocs][];
+			for (int d = 0; d < numDocs; d++) {
+				texts[d] = corpus.document(d);
+				tokens[d] = texts[d].split("\\s+");
+			}
+
+			Path dir = Files.createTempDirectory("ir-benchmark");
+			try {
+				corpus.write(dir.toFile(), numDocs);
+				index = new HashedIndex();
+				kgramindex = new KGramIndex(2);
+				new Indexer(index, patterns_file, kgramindex).processFiles(dir.toFile());
+				index.cleanup();
+			} finally {
+				delete(dir);
+			}
+			searcher = new Searcher(index, kgramindex);
+			permuterm = new PermutermIndex(kgramindex);
+			speller = new SpellChecker(index, kgramindex);
+
+			SplittableRandom random = new SplittableRandom(seed);
+			PersistentHashedIndex writer = new PersistentHashedIndex(0);
+			postingsTerms = new String[NUM_QUERIES];
+			postingsStrings = new String[NUM_QUERIES];
+			termQueries = new String[NUM_QUERIES];
+			phraseQueries = new String[NUM_QUERIES];
+			wildcardPatterns = new String[NUM_QUERIES];
+			misspellings = new String[NUM_QUERIES];
+			for (int q = 0; q < NUM_QUERIES; q++) {
+				String term = indexedWord(random);
+				postingsTerms[q] = term;
+				postingsStrings[q] = writer.postingsListToString(term, index.getPostings(term));
+
+				termQueries[q] = indexedWord(random) + " " + indexedWord(random);
+
+				// consecutive words of a document, so that the phrase is found
+				String[] doc = tokens[random.nextInt(numDocs)];
+				int start = random.nextInt(doc.length - 2);
+				phraseQueries[q] = doc[start] + " " + doc[start + 1] + " " + doc[start + 2];
+
+				String word = longWord(random);
+				wildcardPatterns[q] = random.nextBoolean() ? word.substring(0, 3) + "*" : "*" + word.substring(word.length() - 3);
+
+				word = longWord(random);
+				int pos = random.nextInt(word.length());
+				misspellings[q] = word.substring(0, pos) + (char) ('a' + random.nextInt(26)) + word.substring(pos + 1);
+			}
+		}
+
+		/** Draws a word of the corpus which is in the index */
+		String indexedWord(SplittableRandom random) {
+			String word;
+			do
+				word = corpus.sampleWord(random);
+			while (index.getPostings(word) == null);
+			return word;
+		}
+
+		/** Draws a word of the index with at least 4 letters */
+		String longWord(SplittableRandom random) {
+			String word;
+			do
+				word = indexedWord(random);
+			while (word.length() < 4);
+			return word;
+		}
+	}
+
+	/** Counts the calls, to go through the documents and the queries in turn */
+	int calls;
+
+	/** Index being filled by the insert benchmark */
+	HashedIndex insertIndex;
+
+	PersistentHashedIndex postings = new PersistentHashedIndex(0);
+
+	int nextQuery() {
+		return calls++ % NUM_QUERIES;
+	}
+
+	@Benchmark
+	public void tokenize(Corpus c, Blackhole bh) throws IOException {
+		Tokenizer tok = new Tokenizer(new StringReader(c.texts[calls++ % c.numDocs]), true, false, true, c.patterns_file);
+		while (tok.hasMoreTokens())
+			bh.consume(tok.nextToken());
+	}
+
+	@Benchmark
+	public HashedIndex insert(Corpus c) {
+		int d = calls++ % c.numDocs;
+		if (d == 0 || insertIndex == null)
+			insertIndex = new HashedIndex();
+		String[] doc = c.tokens[d];
+		for (int offset = 0; offset < doc.length; offset++)
+			insertIndex.insert(doc[offset], d, offset);
+		return insertIndex;
+	}
+
+	@Benchmark
+	public String postingsWrite(Corpus c) {
+		String term = c.postingsTerms[nextQuery()];
+		return postings.postingsListToString(term, c.index.getPostings(term));
+	}
+
+	@Benchmark
+	public PostingsList postingsRead(Corpus c) {
+		return postings.stringToPostingList(c.postingsStrings[nextQuery()]);
+	}
+
+	@Benchmark
+	public PostingsList intersection(Corpus c) {
+		return c.searcher.search(new Query(c.termQueries[nextQuery()]), QueryType.INTERSECTION_QUERY, RankingType.TF_IDF);
+	}
+
+	@Benchmark
+	public PostingsList phrase(Corpus c) {
+		return c.searcher.search(new Query(c.phraseQueries[nextQuery()]), QueryType.PHRASE_QUERY, RankingType.TF_IDF);
+	}
+
+	@Benchmark
+	public PostingsList ranked(Corpus c) {
+		return c.searcher.search(new Query(c.termQueries[nextQuery()]), QueryType.RANKED_QUERY, RankingType.TF_IDF, 10);
+	}
+
+	@Benchmark
+	public int[] wildcardKGram(Corpus c) {
+		return c.searcher.expandKGrams(c.wildcardPatterns[nextQuery()]);
+	}
+
+	@Benchmark
+	public int[] wildcardPermuterm(Corpus c) {
+		return c.permuterm.expand(c.wildcardPatterns[nextQuery()]);
+	}
+
+	@Benchmark
+	public String[] spell(Corpus c) {
+		return c.speller.check(new Query(c.misspellings[nextQuery()]), 10);
+	}
+
+	/** Deletes the corpus written by the benchmark */
+	static void delete(Path dir) throws IOException {
+		try (Stream<Path> paths = Files.walk(dir)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+}
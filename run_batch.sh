@@ -0,0 +1,2 @@
+#!/bin/sh
+java -cp classes:pdfbox -Xmx1g ir.Engine -d davisWiki -p patterns.txt -r davisPageRank.txt -index persistent -ni -batch queries.txt -batchout batch_results.txt -k 10 -concurrency 8 -cache 256 -rcache 64
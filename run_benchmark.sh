@@ -0,0 +1,6 @@
+#!/bin/sh
+# JMH benchmarks of jmh/ir on a Zipf corpus of 5000 documents, results
+# written to benchmark_results.csv. Extra arguments go to JMH, for example
+# a regular expression selecting the benchmarks.
+mvn -B -q test-compile || exit 1
+java -cp target/classes:target/test-classes:$(cat target/classpath.txt) org.openjdk.jmh.Main -p numDocs=5000 -p vocabulary=100000 -p seed=1 -rf csv -rff benchmark_results.csv "$@"
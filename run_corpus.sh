@@ -0,0 +1,8 @@
+#!/bin/sh
+# A synthetic corpus of 1 million documents, a tenth of them PDF, with its
+# link graph, PageRank and a log of 100000 queries, then the queries are run
+# on a persistent index built from the corpus.
+java -cp classes:pdfbox -Xmx2g ir.ZipfCorpus -n 1000000 -v 1000000 -z 1.0 -s 1 -pdf 0.1 -d zipfCorpus -l zipfLinks.txt -t zipfTitles.txt -q zipfQueries.txt -nq 100000
+java -cp classes -Xmx2g ir.PageRank -l zipfLinks.txt -t zipfTitles.txt -m mc4 -w 10 -o zipfPageRank.txt
+mkdir -p index
+java -cp classes:pdfbox -Xmx4g ir.Engine -d zipfCorpus -r zipfPageRank.txt -index persistent -batch zipfQueries.txt -batchout zipf_results.txt -k 10 -concurrency 8
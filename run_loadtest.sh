@@ -0,0 +1,11 @@
+#!/bin/sh
+# Load test of the persistent index built by run_corpus.sh: a closed loop of
+# 8 clients measuring the capacity, then an open loop at 200 queries/s whose
+# p99 latency is checked against the report of an earlier build, if there is
+# one. The exit status is 1 when the p99 latency regressed.
+java -cp "classes:pdfbox:lib/*" -Xmx4g ir.Engine -r zipfPageRank.txt -index persistent -ni -loadtest zipfQueries.txt -concurrency 8 -warmup 10 -duration 60 -loadreport loadtest_closed.json
+if [ -f loadtest_baseline.json ]; then
+    java -cp "classes:pdfbox:lib/*" -Xmx4g ir.Engine -r zipfPageRank.txt -index persistent -ni -loadtest zipfQueries.txt -qps 200 -concurrency 16 -warmup 10 -duration 60 -loadreport loadtest_open.json -baseline loadtest_baseline.json -tolerance 10
+else
+    java -cp "classes:pdfbox:lib/*" -Xmx4g ir.Engine -r zipfPageRank.txt -index persistent -ni -loadtest zipfQueries.txt -qps 200 -concurrency 16 -warmup 10 -duration 60 -loadreport loadtest_baseline.json
+fi
@@ -0,0 +1,2 @@
+#!/bin/sh
+java -cp classes -Xmx1g ir.PageRank -l linksDavis.txt -t davisTitles.txt -m mc4 -w 10 -o davisPageRank.txt
@@ -1,2 +1,2 @@
 #!/bin/sh
-java -cp classes:pdfbox -Xmx1g ir.Engine -d davisWiki -l ir18.jpg -p patterns.txt -ni
+java -cp classes:pdfbox -Xmx1g ir.Engine -d davisWiki -l ir18.jpg -p patterns.txt -r davisPageRank.txt -index persistent -ni -watch 30
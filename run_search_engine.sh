@@ -1,3 +1,3 @@
 #!/bin/sh
 rm index/*
-java -cp classes:pdfbox -Xmx1g ir.Engine -d davisWiki -l ir18.jpg -p patterns.txt
+java -cp classes:pdfbox -Xmx1g ir.Engine -d davisWiki -l ir18.jpg -p patterns.txt -r davisPageRank.txt -index persistent
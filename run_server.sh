@@ -0,0 +1,2 @@
+#!/bin/sh
+java -cp classes:pdfbox -Xmx1g ir.Engine -d davisWiki -p patterns.txt -r davisPageRank.txt -index persistent -ni -server 8080 -concurrency 16 -cache 256 -rcache 64 -timeout 5000
@@ -0,0 +1,7 @@
+#!/bin/sh
+# Three shard servers and a coordinator on one machine. Every shard server
+# indexes the documents of its shard in memory.
+for shard in 0 1 2; do
+    java -cp classes:pdfbox -Xmx1g ir.Engine -d davisWiki -p patterns.txt -r davisPageRank.txt -shards 3 -shard $shard -shardport 910$shard &
+done
+java -cp classes:pdfbox -Xmx256m ir.Engine -l ir18.jpg -coordinator localhost:9100,localhost:9101,localhost:9102 -hedge 50 -timeout 2000